@@ -4,12 +4,29 @@ import org.usb4java.BufferUtils;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-
+import java.nio.ByteOrder;
+
+/**
+ * Big-endian bit reader/writer over a {@link ByteBuffer}.
+ * Reads load 64-bit words into a cache that is reused across calls;
+ * writes accumulate into a 64-bit word that is stored whole once full.
+ * Pending write bits are synced to the buffer before any buffer view is handed out.
+ */
 public class BitBuffer {
     private final ByteBuffer buffer;
     private int bindex = 0;
     private int blength;
 
+    // read cache: 8 bytes starting at byte index cpos, zero-filled past the limit
+    private long cache;
+    private int cpos = -1;
+
+    // write accumulator: wbits bits, right-aligned, starting at byte index wpos
+    private long acc;
+    private int wbits;
+    private int wpos = -1;
+    private boolean dirty;
+
     public BitBuffer(ByteBuffer buffer) {
         this.buffer = buffer;
         this.blength = buffer.limit() * 8;
@@ -21,7 +38,25 @@ public class BitBuffer {
         blength = 0;
     }
 
-    public int limit() { return buffer.limit(); }
+    /**
+     * Discard pending writes and start reading again from bit 0 of the first
+     * {@code byteLength} bytes, whose contents may have changed.
+     */
+    public void reset(int byteLength) {
+        buffer.limit(byteLength);
+        bindex = 0;
+        blength = byteLength * 8;
+        cpos = -1;
+        wpos = -1;
+        wbits = 0;
+        acc = 0;
+        dirty = false;
+    }
+
+    public int limit() {
+        sync();
+        return buffer.limit();
+    }
 
     public int getBitLength() { return blength; }
     public int getBitIndex() { return bindex; }
@@ -46,87 +81,107 @@ public class BitBuffer {
             throw new IllegalArgumentException
                     (String.format("underflow: %d %d %d", len, bindex, blength));
         }
-        int pos = bindex / 8;
-        int b0 = Util.b2i(buffer.get(pos)); // 00110101
-        int off = bindex % 8;               // 3
+        if (dirty) { sync(); }
+        int pos = bindex >>> 3;
+        int start = bindex - (cpos << 3);
+        if (cpos < 0 || pos < cpos || start + len > 64) {
+            load(pos);
+            start = bindex & 7;
+        }
         bindex += len;
+        return (int) ((cache >>> (64 - start - len)) & ((1L << len) - 1));
+    }
 
-        int omask = 0xff >> off;             // 11111111 -> 00011111
-        int r = b0 & omask;              //  00010101
-        int rem0 = 8 - off;         // 5
-        if (len <= rem0) { // len=4
-            return r >> (rem0 - len);  // 00001010
-        }
-        len -= rem0;    //len=7 => 2, len=15 => 10
-        while (len > 0) {
-            int b1 = Util.b2i(buffer.get(++pos)); // 10011010, 11110000
-            if (len <= 8) { // len=2
-                int rem1 = 8 - len; // 6
-                int b1s = b1 >> rem1; // 00000010, 00000011
-                int rs = r << len; //   01010100,  00 01010110 01101000
-                return rs | b1s;     // 01010110,  00 01010110 01101011
+    private void load(int pos) {
+        int lim = buffer.limit();
+        if (pos + 8 <= lim) {
+            long w = buffer.getLong(pos);
+            cache = buffer.order() == ByteOrder.BIG_ENDIAN ? w : Long.reverseBytes(w);
+        } else {
+            long w = 0;
+            for (int i = 0; i < 8; i++) {
+                w = (w << 8) | (pos + i < lim ? Util.b2i(buffer.get(pos + i)) : 0);
             }
-            len -= 8; // len=10 => 2
-            int rs = r << 8; // 00010101 00000000
-            r = rs | b1;   // 00010101 10011010
+            cache = w;
         }
-        throw new RuntimeException("Loop failure");
+        cpos = pos;
     }
 
 
     public void put(int len, int val) {
-        if (val >= Math.pow(2, len)) {
+        if (len < 31 && val >= (1 << len)) {
             throw new IllegalArgumentException("invalid val for len: " + val + ", " + len);
         }
-        int pos = bindex / 8;
-        int off = bindex % 8; // 3
+        if (wpos < 0) {
+            // start accumulating at the current byte, keeping any bits already written in it
+            wpos = bindex >>> 3;
+            wbits = bindex & 7;
+            acc = wbits > 0 ? Util.b2i(buffer.get(wpos)) >>> (8 - wbits) : 0;
+        }
+        long v = val & ((1L << len) - 1);
         bindex += len;
         blength += len;
-        int b0;
-        if (off > 0) {
-            b0 = Util.b2i(buffer.get(pos)); // 10100000
-        } else {
-            b0 = 0;
-            buffer.limit(buffer.limit() + 1);
-            buffer.put((byte) b0);
+        dirty = true;
+        int free = 64 - wbits;
+        if (len < free) {
+            acc = (acc << len) | v;
+            wbits += len;
+            return;
         }
-        int end = off + len; // off=3,len=4,val=00001010 => 7; off=0 => 4
-        if (end <= 8) {
-            int rem = 8 - end; // 1; 4
-            int vs = val << rem;  //00010100; 10100000
-            int r = b0 | vs; // 10110100; 10100000
-            buffer.put(pos,(byte) r);
+        int rem = len - free;
+        storeWord((acc << free) | (v >>> rem));
+        wpos += 8;
+        acc = v & ((1L << rem) - 1);
+        wbits = rem;
+    }
+
+    private void storeWord(long w) {
+        if (wpos + 8 > buffer.capacity()) {
+            storeBytes(w, 8);
             return;
         }
-        // off=3,len=7,end=10,val=01101101, r=10111011, v0=00011011
-        // off=3,len=11,end=14,val=00000110 01101101, r=10111001, v0=00011001
-        // off=3,len=15,end=18,val=01011010 11010110, r=10110110, v0=00010110
-        int rem = end - 8; //2; 6; 10
-        int v0 = val >> rem; // 00011011; 00011001; 00010110
-        int r = b0 | v0; // 10111011; 10111001; 10110110
-        buffer.put(pos,(byte) r);
-        while (rem > 0) {
-            if (rem <= 8) { // len=7,rem=2;len=11,rem=6;len=15,rem=2
-                int v1 = (val << (8-rem)) & 0xff; // 01000000; 01000000; 10000000
-                buffer.limit(buffer.limit()+1);
-                buffer.put((byte) v1);
-                return;
-            }
-            // len=15,rem=10,val=01011010 11010110,r=10110101,r=10 110101
-            rem = rem - 8; // 2
-            int r1 = (val >> rem) & 0xff; //10110101
-            buffer.limit(buffer.limit()+1);
-            buffer.put((byte) r1);
+        if (buffer.limit() < wpos + 8) {
+            buffer.limit(wpos + 8);
         }
+        buffer.putLong(wpos, buffer.order() == ByteOrder.BIG_ENDIAN ? w : Long.reverseBytes(w));
+    }
 
+    /**
+     * Store the top {@code n} bytes of {@code w} at {@code wpos}.
+     */
+    private void storeBytes(long w, int n) {
+        if (buffer.limit() < wpos + n) {
+            buffer.limit(wpos + n);
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.put(wpos + i, (byte) (w >>> (56 - 8 * i)));
+        }
+    }
 
+    /**
+     * Flush pending write bits (zero-padding a trailing partial byte) without
+     * resetting the accumulator, so subsequent puts continue in place.
+     */
+    private void sync() {
+        if (!dirty) { return; }
+        int n = (wbits + 7) >>> 3;
+        if (n > 0) {
+            storeBytes(acc << (64 - wbits), n);
+        }
+        int end = Math.max((blength + 7) >>> 3, wpos + n);
+        buffer.limit(end);
+        buffer.position(end);
+        cpos = -1;
+        dirty = false;
     }
 
     public ByteBuffer toBuffer() {
+        sync();
         return buffer.duplicate().rewind();
     }
 
     public ByteBuffer slice() {
+        sync();
         int pos = bindex/8;
         return buffer.slice(pos,buffer.limit()-pos);
     }
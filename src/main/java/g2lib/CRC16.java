@@ -1,6 +1,9 @@
 package g2lib;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /*
 MIT License
@@ -60,6 +63,28 @@ public class CRC16 {
             0x5C64, 0x4C45, 0x3CA2, 0x2C83, 0x1CE0, 0x0CC1, 0xEF1F, 0xFF3E, 0xCF5D, 0xDF7C, 0xAF9B, 0xBFBA, 0x8FD9, 0x9FF8,
             0x6E17, 0x7E36, 0x4E55, 0x5E74, 0x2E93, 0x3EB2, 0x0ED1, 0x1EF0 };
 
+    /**
+     * Slicing-by-8 tables: {@code SLICES[k][b]} is the CRC of byte {@code b}
+     * followed by {@code k} zero bytes, so eight bytes fold in with eight
+     * independent lookups. {@code SLICES[0]} is {@link #LOOKUP_TABLE}.
+     */
+    private static final int[][] SLICES = slices();
+
+    private static final VarHandle ARRAY_LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static int[][] slices() {
+        int[][] t = new int[8][];
+        t[0] = LOOKUP_TABLE;
+        for (int k = 1; k < 8; k++) {
+            t[k] = new int[256];
+            for (int b = 0; b < 256; b++) {
+                t[k][b] = doCrc((byte) 0, t[k - 1][b]) & 0xFFFF;
+            }
+        }
+        return t;
+    }
+
     /**
      * Utility constructor.
      */
@@ -84,27 +109,15 @@ public class CRC16 {
      * @return CRC16 as integer value
      */
     public static int crc16(byte[] bytes, int off, int len) {
-
-        int crc = 0x0000;
-        int end = off + len;
-
-        for (int i = off; i < end; i++) {
-            crc = doCrc(bytes[i], crc);
-        }
-
-        return crc & 0xFFFF;
+        return crcArray(0, bytes, off, off + len) & 0xFFFF;
     }
 
+    /**
+     * Create a CRC16 checksum from {@code len} bytes at absolute index {@code off}.
+     * Buffer position is not changed.
+     */
     public static int crc16(ByteBuffer bytes, int off, int len) {
-
-        int crc = 0x0000;
-        int end = off + len;
-
-        for (int i = off; i < end; i++) {
-            crc = doCrc(bytes.get(i), crc);
-        }
-
-        return crc & 0xFFFF;
+        return crcBuffer(bytes, off, off + len) & 0xFFFF;
     }
 
     /**
@@ -115,14 +128,61 @@ public class CRC16 {
      * @since 4.4
      */
     public static int crc16(ByteBuffer bytes) {
+        int crc = crcBuffer(bytes, bytes.position(), bytes.limit());
+        bytes.position(bytes.limit());
+        return crc & 0xFFFF;
+    }
+
+    /**
+     * Byte-at-a-time reference implementation.
+     */
+    static int crc16Bytewise(byte[] bytes, int off, int len) {
+        int crc = 0x0000;
+        for (int i = off; i < off + len; i++) {
+            crc = doCrc(bytes[i], crc);
+        }
+        return crc & 0xFFFF;
+    }
 
+    /**
+     * Heap buffers go straight to the backing array; direct and read-only
+     * buffers read big-endian longs through the buffer.
+     */
+    private static int crcBuffer(ByteBuffer bytes, int start, int end) {
+        if (bytes.hasArray()) {
+            int base = bytes.arrayOffset();
+            return crcArray(0, bytes.array(), base + start, base + end);
+        }
+        ByteBuffer b = bytes.order() == ByteOrder.BIG_ENDIAN ? bytes : bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
         int crc = 0x0000;
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            crc = doCrc8(b.getLong(i), crc);
+        }
+        for (; i < end; i++) {
+            crc = doCrc(b.get(i), crc);
+        }
+        return crc;
+    }
 
-        while (bytes.hasRemaining()) {
-            crc = doCrc(bytes.get(), crc);
+    private static int crcArray(int crc, byte[] bytes, int start, int end) {
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            crc = doCrc8((long) ARRAY_LONG.get(bytes, i), crc);
+        }
+        for (; i < end; i++) {
+            crc = doCrc(bytes[i], crc);
         }
+        return crc;
+    }
 
-        return crc & 0xFFFF;
+    private static int doCrc8(long w, int crc) {
+        int[][] t = SLICES;
+        int hi = (int) (w >>> 48) ^ (crc & 0xFFFF);
+        return t[7][(hi >>> 8) & 0xFF] ^ t[6][hi & 0xFF]
+                ^ t[5][(int) (w >>> 40) & 0xFF] ^ t[4][(int) (w >>> 32) & 0xFF]
+                ^ t[3][(int) (w >>> 24) & 0xFF] ^ t[2][(int) (w >>> 16) & 0xFF]
+                ^ t[1][(int) (w >>> 8) & 0xFF] ^ t[0][(int) w & 0xFF];
     }
 
     private static int doCrc(byte b, int crc) {
@@ -414,13 +414,7 @@ public class Protocol {
         Notes(NoteData.FIELDS,CurrentNote.NoteCount);
         CurrentNote(int size) { f = new SizedField(this,size); }
         CurrentNote(Fields fs,FieldEnum e) {
-            final SubfieldsField.FieldCount c = new SubfieldsField.FieldCount(e);
-            f = new SubfieldsField(this, fs, new SubfieldsField.SubfieldCount() {
-                @Override
-                public int getCount(List<FieldValues> values) {
-                    return c.getCount(values) + 1;
-                }
-            });
+            f = new SubfieldsField(this, fs, SubfieldsField.fieldCount(e, c -> c + 1));
         }
         private final Field f;
         public Field field() { return f; }
@@ -453,13 +447,7 @@ public class Protocol {
         Labels(ParamLabel.FIELDS,ModuleLabel.ModLabelLen);
         ModuleLabel(int size) { f = new SizedField(this,size); }
         ModuleLabel(Fields fs,FieldEnum e) {
-            final SubfieldsField.FieldCount fc = new SubfieldsField.FieldCount(e);
-            f = new SubfieldsField(this, fs, new SubfieldsField.SubfieldCount() {
-                @Override
-                public int getCount(List<FieldValues> values) {
-                    return fc.getCount(values)/7;
-                }
-            });
+            f = new SubfieldsField(this, fs, SubfieldsField.fieldCount(e, c -> c / 7));
         }
         private final Field f;
         public Field field() { return f; }
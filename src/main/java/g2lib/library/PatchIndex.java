@@ -0,0 +1,179 @@
+package g2lib.library;
+
+import g2lib.Util;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Persistent metadata index over a {@link PatchLibrary} tree.
+ * <p>
+ * {@link #refresh} re-parses only files whose mtime or size differ from the
+ * indexed entry and drops entries for files that are gone. Module id and
+ * category lookups are answered from in-memory bitsets over the entries,
+ * without touching the patch files.
+ * <p>
+ * File format (big-endian): magic "G2IX", version, entry count, then per entry:
+ * path (UTF), mtime, size, crc (short), name (UTF), category, voices,
+ * voice cables, fx cables, module id count (shorts) and ids (bytes).
+ */
+public class PatchIndex {
+
+    private static final Logger log = Util.getLogger(PatchIndex.class);
+
+    private static final int MAGIC = 0x47324958; // G2IX
+    private static final int VERSION = 1;
+
+    public record RefreshStats(int unchanged, int parsed, int failed, int removed) {
+    }
+
+    private final Map<Path, PatchLibrary.Entry> entries = new TreeMap<>();
+    private List<PatchLibrary.Entry> byIndex;
+    private BitSet[] byModule;
+    private final Map<Integer, BitSet> byCategory = new HashMap<>();
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return a copy, so callers can iterate while a refresh runs
+     */
+    public synchronized List<PatchLibrary.Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    public synchronized Optional<PatchLibrary.Entry> get(Path path) {
+        return Optional.ofNullable(entries.get(path));
+    }
+
+    public synchronized RefreshStats refresh(Path root, PatchLibrary library) throws IOException {
+        Path dir = root.toAbsolutePath().normalize();
+        Set<Path> seen = new HashSet<>();
+        Set<Path> changed = new HashSet<>();
+        Map<Path, PatchLibrary.Entry> parsed = new HashMap<>();
+        PatchLibrary.ScanStats stats = library.scan(dir, (p, attrs) -> {
+            seen.add(p);
+            PatchLibrary.Entry e = entries.get(p);
+            if (e != null && e.size() == attrs.size() && e.mtime() == attrs.lastModifiedTime().toMillis()) {
+                return false;
+            }
+            changed.add(p);
+            return true;
+        }, e -> {
+            synchronized (parsed) {
+                parsed.put(e.path(), e);
+            }
+        });
+        int removed = 0;
+        for (Iterator<Path> i = entries.keySet().iterator(); i.hasNext(); ) {
+            Path p = i.next();
+            // gone, or changed and no longer parses
+            if (p.startsWith(dir) && (!seen.contains(p) || (changed.contains(p) && !parsed.containsKey(p)))) {
+                i.remove();
+                removed++;
+            }
+        }
+        entries.putAll(parsed);
+        invalidate();
+        return new RefreshStats(stats.skipped(), parsed.size(), stats.failed(), removed);
+    }
+
+    private void invalidate() {
+        byIndex = null;
+        byModule = null;
+        byCategory.clear();
+    }
+
+    private void buildLookups() {
+        if (byIndex != null) { return; }
+        byIndex = new ArrayList<>(entries.values());
+        byModule = new BitSet[256];
+        for (int i = 0; i < byIndex.size(); i++) {
+            PatchLibrary.Entry e = byIndex.get(i);
+            for (int id : e.moduleIds()) {
+                if (byModule[id] == null) { byModule[id] = new BitSet(); }
+                byModule[id].set(i);
+            }
+            byCategory.computeIfAbsent(e.category(), c -> new BitSet()).set(i);
+        }
+    }
+
+    private List<PatchLibrary.Entry> select(BitSet bits) {
+        if (bits == null) { return List.of(); }
+        List<PatchLibrary.Entry> r = new ArrayList<>(bits.cardinality());
+        bits.stream().forEach(i -> r.add(byIndex.get(i)));
+        return r;
+    }
+
+    public synchronized List<PatchLibrary.Entry> withModule(int moduleId) {
+        buildLookups();
+        return moduleId < 0 || moduleId >= byModule.length ? List.of() : select(byModule[moduleId]);
+    }
+
+    public synchronized List<PatchLibrary.Entry> inCategory(int category) {
+        buildLookups();
+        return select(byCategory.get(category));
+    }
+
+    public static PatchIndex load(Path file) throws IOException {
+        PatchIndex index = new PatchIndex();
+        if (!Files.exists(file)) { return index; }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warning("Ignoring index with unknown format: " + file);
+                return index;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                Path path = Path.of(in.readUTF());
+                long mtime = in.readLong();
+                long size = in.readLong();
+                int crc = in.readUnsignedShort();
+                String name = in.readUTF();
+                int category = in.readUnsignedByte();
+                int voices = in.readUnsignedByte();
+                int voiceCables = in.readUnsignedShort();
+                int fxCables = in.readUnsignedShort();
+                int count = in.readUnsignedShort();
+                List<Integer> ids = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    ids.add(in.readUnsignedByte());
+                }
+                index.entries.put(path, new PatchLibrary.Entry(path, mtime, size, crc, name,
+                        category, voices, ids, voiceCables, fxCables));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write to a temporary file beside {@code file} and move it into place.
+     */
+    public synchronized void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (PatchLibrary.Entry e : entries.values()) {
+                out.writeUTF(e.path().toString());
+                out.writeLong(e.mtime());
+                out.writeLong(e.size());
+                out.writeShort(e.crc());
+                out.writeUTF(e.name());
+                out.writeByte(e.category());
+                out.writeByte(e.voices());
+                out.writeShort(e.voiceCables());
+                out.writeShort(e.fxCables());
+                out.writeShort(e.moduleIds().size());
+                for (int id : e.moduleIds()) {
+                    out.writeByte(id);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,166 @@
+package g2lib.library;
+
+import g2lib.Protocol;
+import g2lib.Util;
+import g2lib.protocol.FieldValues;
+import g2lib.state.Patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Scans directory trees of .pch2 files. Each file is memory-mapped and read
+ * with {@link Patch#readFromFile(ByteBuffer, String, boolean)} in lazy mode,
+ * so the header and CRC are validated but only the patch description is decoded.
+ * Files are parsed on a ForkJoin pool as the walk finds them, and entries are
+ * handed to the consumer as soon as each file is done. Module and cable lists
+ * are also decoded for {@link PatchIndex}.
+ */
+public class PatchLibrary {
+
+    private static final Logger log = Util.getLogger(PatchLibrary.class);
+
+    public static final String EXTENSION = ".pch2";
+
+    /**
+     * @param name patch name, from the file name as the G2 editor does
+     * @param crc trailing file CRC16
+     * @param moduleIds distinct module type ids in both locations, sorted
+     * @param voiceCables cable count in location 1 (voice area)
+     * @param fxCables cable count in location 0 (FX area)
+     */
+    public record Entry(Path path, long mtime, long size, int crc,
+                        String name, int category, int voices,
+                        List<Integer> moduleIds, int voiceCables, int fxCables) {
+        public Entry {
+            moduleIds = List.copyOf(moduleIds);
+        }
+    }
+
+    /**
+     * @param files files parsed or skipped
+     * @param skipped files not parsed because the filter rejected them
+     */
+    public record ScanStats(int files, int failed, int skipped) {
+    }
+
+    private final ForkJoinPool pool;
+
+    public PatchLibrary() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public PatchLibrary(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public static boolean isPatchFile(Path p) {
+        return p.getFileName().toString().toLowerCase().endsWith(EXTENSION);
+    }
+
+    public static String patchName(Path p) {
+        String n = p.getFileName().toString();
+        return n.substring(0, n.length() - EXTENSION.length());
+    }
+
+    /**
+     * Scan {@code root} recursively. {@code sink} is called from pool threads
+     * and must be thread-safe. Files that fail to parse are logged and counted.
+     */
+    public ScanStats scan(Path root, Consumer<Entry> sink) throws IOException {
+        return scan(root, (p, a) -> true, sink);
+    }
+
+    /**
+     * Scan {@code root}, parsing only files for which {@code filter} returns true.
+     * The filter is called on the calling thread in walk order.
+     */
+    public ScanStats scan(Path root, BiPredicate<Path, BasicFileAttributes> filter,
+                          Consumer<Entry> sink) throws IOException {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        int files = 0;
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                if (!isPatchFile(p)) { continue; }
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) { continue; }
+                files++;
+                if (!filter.test(p, attrs)) { continue; }
+                tasks.add(pool.submit(() -> {
+                        try {
+                            sink.accept(read(p));
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            log.warning(String.format("%s: %s", p, e));
+                        }
+                    }));
+            }
+        }
+        tasks.forEach(ForkJoinTask::join);
+        return new ScanStats(files, failed.get(), files - tasks.size());
+    }
+
+    public List<Entry> scan(Path root) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        scan(root, e -> {
+            synchronized (entries) {
+                entries.add(e);
+            }
+        });
+        return entries;
+    }
+
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    public static Entry read(Path path) throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        ByteBuffer buf = map(path);
+        Patch patch = Patch.readFromFile(buf, path.toString(), true);
+        FieldValues pd = patch.getSection(Patch.Sections.SPatchDescription).values();
+        return new Entry(path,
+                attrs.lastModifiedTime().toMillis(),
+                attrs.size(),
+                Util.addb(buf.get(buf.limit() - 2), buf.get(buf.limit() - 1)),
+                patchName(path),
+                Protocol.PatchDescription.Category.intValue(pd).orElse(0),
+                Protocol.PatchDescription.Voices.intValue(pd).orElse(0),
+                moduleIds(patch),
+                cableCount(patch, Patch.Sections.SCableList1),
+                cableCount(patch, Patch.Sections.SCableList0));
+    }
+
+    private static List<Integer> moduleIds(Patch patch) {
+        BitSet ids = new BitSet(256);
+        for (Patch.Sections s : new Patch.Sections[] {Patch.Sections.SModuleList1, Patch.Sections.SModuleList0}) {
+            FieldValues ml = patch.getSection(s).values();
+            for (FieldValues m : Protocol.ModuleList.Modules.subfieldsValue(ml).orElse(List.of())) {
+                Protocol.Module_.Id.intValue(m).ifPresent(ids::set);
+            }
+        }
+        return ids.stream().boxed().toList();
+    }
+
+    private static int cableCount(Patch patch, Patch.Sections s) {
+        return Protocol.CableList.CableCount.intValue(patch.getSection(s).values()).orElse(0);
+    }
+}
@@ -0,0 +1,265 @@
+package g2lib.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * {@link FieldValues} view over one row of a {@link Columns} table.
+ * <p>
+ * A decoded tree is stored as one {@code int[]} table per schema level, rows
+ * laid out by {@link FieldsCodec#cols}. Int fields take one column; string
+ * and subfields fields take two: (offset, length) into the shared string
+ * bytes, or (first row, row count) in the child table. A negative second
+ * column marks a value set through {@link #update(FieldValue)} or
+ * {@link #add(FieldValue)}, held
+ * in {@link Store#opaque}. {@link #values} materializes {@link FieldValue}s
+ * on access only.
+ */
+public class ColumnarFieldValues extends FieldValues {
+
+    /**
+     * String bytes and replaced values shared by every table of a tree.
+     */
+    static final class Store {
+        byte[] bytes = new byte[256];
+        int length;
+        final List<FieldValue> opaque = new ArrayList<>(0);
+
+        void ensure(int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+        }
+
+        String string(int off, int len) {
+            return new String(bytes, off, len, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Row table for one schema level.
+     */
+    static final class Columns {
+        final FieldsCodec codec;
+        final Store store;
+        final Columns[] children;
+        int[] data;
+        int rows;
+
+        Columns(FieldsCodec codec, Store store, int rowHint) {
+            this.codec = codec;
+            this.store = store;
+            this.data = new int[codec.width * Math.max(rowHint, 1)];
+            this.children = new Columns[codec.children.length];
+        }
+
+        int addRow() {
+            int need = (rows + 1) * codec.width;
+            if (need > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, need));
+            }
+            return rows++;
+        }
+
+        int at(int row, int field) {
+            return row * codec.width + codec.cols[field];
+        }
+
+        FieldValue value(int row, int i) {
+            int c = at(row, i);
+            Field f = codec.fs[i];
+            if (codec.ops[i] == FieldsCodec.OP_INT) {
+                return new IntValue((SizedField) f, data[c]);
+            }
+            if (data[c + 1] < 0) {
+                return store.opaque.get(-1 - data[c + 1]);
+            }
+            if (codec.ops[i] == FieldsCodec.OP_STRING) {
+                return new StringValue((StringField) f, store.string(data[c], data[c + 1]));
+            }
+            return new SubfieldsValue((SubfieldsField) f, new Rows(children[i], data[c], data[c + 1]));
+        }
+    }
+
+    /**
+     * Child rows of a subfields value. Supports removal from either end
+     * as a cursor over the rows; the table itself is not changed.
+     */
+    static final class Rows extends AbstractList<FieldValues> {
+        private final Columns columns;
+        private int start;
+        private int size;
+
+        Rows(Columns columns, int start, int size) {
+            this.columns = columns;
+            this.start = start;
+            this.size = size;
+        }
+
+        @Override
+        public FieldValues get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return new ColumnarFieldValues(columns, start + index);
+        }
+
+        @Override
+        public FieldValues remove(int index) {
+            FieldValues v = get(index);
+            if (index == 0) {
+                start++;
+            } else if (index != size - 1) {
+                throw new UnsupportedOperationException("remove: " + index);
+            }
+            size--;
+            return v;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static final class RowValues extends AbstractList<FieldValue> {
+        private final Columns columns;
+        private final int row;
+        private int size;
+
+        RowValues(Columns columns, int row, int size) {
+            this.columns = columns;
+            this.row = row;
+            this.size = size;
+        }
+
+        @Override
+        public FieldValue get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return columns.value(row, index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    final Columns columns;
+    final int row;
+
+    ColumnarFieldValues(Columns columns, int row) {
+        this(columns, row, columns.codec.fs.length);
+    }
+
+    /**
+     * @param size fields set so far, in schema order
+     */
+    ColumnarFieldValues(Columns columns, int row, int size) {
+        super(new RowValues(columns, row, size));
+        this.columns = columns;
+        this.row = row;
+    }
+
+    private int size() {
+        return ((RowValues) values).size;
+    }
+
+    private int index(FieldEnum f) {
+        int i = f.ordinal();
+        Field[] fs = columns.codec.fs;
+        return i < size() && fs[i] == f.field() ? i : -1;
+    }
+
+    private boolean replaced(int i) {
+        return columns.codec.ops[i] != FieldsCodec.OP_INT && columns.data[columns.at(row, i) + 1] < 0;
+    }
+
+    @Override
+    public Optional<FieldValue> get(FieldEnum f) {
+        int i = index(f);
+        return i < 0 ? Optional.empty() : Optional.of(columns.value(row, i));
+    }
+
+    @Override
+    public Optional<Integer> intValue(FieldEnum f) {
+        int i = index(f);
+        if (i >= 0 && columns.codec.ops[i] == FieldsCodec.OP_INT) {
+            return Optional.of(columns.data[columns.at(row, i)]);
+        }
+        return super.intValue(f);
+    }
+
+    @Override
+    public Optional<String> stringValue(FieldEnum f) {
+        int i = index(f);
+        if (i >= 0 && columns.codec.ops[i] == FieldsCodec.OP_STRING && !replaced(i)) {
+            int c = columns.at(row, i);
+            return Optional.of(columns.store.string(columns.data[c], columns.data[c + 1]));
+        }
+        return super.stringValue(f);
+    }
+
+    @Override
+    public Optional<List<FieldValues>> subfieldsValue(FieldEnum f) {
+        int i = index(f);
+        if (i >= 0 && columns.codec.ops[i] == FieldsCodec.OP_SUBFIELDS && !replaced(i)) {
+            int c = columns.at(row, i);
+            return Optional.of(new Rows(columns.children[i], columns.data[c], columns.data[c + 1]));
+        }
+        return super.subfieldsValue(f);
+    }
+
+    /**
+     * Set the next field of a row made by {@link FieldsCodec#newColumnar},
+     * checked like {@link FieldValues#add}.
+     */
+    @Override
+    public FieldValues add(FieldValue v) {
+        Field f = v.field();
+        Field[] fs = columns.codec.fs;
+        int i = size();
+        if (i > 0) {
+            fs[i - 1].guardAdd(f);
+        }
+        if (i >= fs.length || fs[i] != f) {
+            throw new IllegalArgumentException("add: not the next field: " + f);
+        }
+        set(i, v);
+        ((RowValues) values).size++;
+        return this;
+    }
+
+    /**
+     * Int values are written into the table; other values are held aside
+     * and marked in the row.
+     */
+    @Override
+    public void update(FieldValue fv) {
+        Field f = fv.field();
+        int i = f.ordinal();
+        Field[] fs = columns.codec.fs;
+        if (i >= size() || fs[i] != f) {
+            throw new IllegalArgumentException("update: field not found: " + f);
+        }
+        set(i, fv);
+    }
+
+    private void set(int i, FieldValue fv) {
+        int c = columns.at(row, i);
+        if (columns.codec.ops[i] == FieldsCodec.OP_INT) {
+            columns.data[c] = IntValue.intValue(fv);
+        } else if (columns.data[c + 1] < 0) { // set before: reuse its slot
+            columns.store.opaque.set(-1 - columns.data[c + 1], fv);
+        } else {
+            columns.store.opaque.add(fv);
+            columns.data[c + 1] = -columns.store.opaque.size();
+        }
+    }
+}
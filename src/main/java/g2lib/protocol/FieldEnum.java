@@ -12,15 +12,15 @@ public interface FieldEnum {
     }
 
     default Optional<Integer> intValue(FieldValues values) {
-        return get(values).flatMap(fv -> Optional.of(IntValue.intValue(fv)));
+        return values.intValue(this);
     }
 
     default Optional<String> stringValue(FieldValues values) {
-        return get(values).flatMap(fv -> Optional.of(StringValue.stringValue(fv)));
+        return values.stringValue(this);
     }
 
     default Optional<List<FieldValues>> subfieldsValue(FieldValues values) {
-        return get(values).flatMap(fv -> Optional.of(SubfieldsValue.subfieldsValue(fv)));
+        return values.subfieldsValue(this);
     }
 
     default FieldValue value(int v) {
@@ -1,7 +1,6 @@
 package g2lib.protocol;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,6 +11,10 @@ public class FieldValues {
         this.values = new ArrayList<>(count);
     }
 
+    protected FieldValues(List<FieldValue> values) {
+        this.values = values;
+    }
+
     public FieldValues add(FieldValue v) {
         if (!values.isEmpty()) {
             values.getLast().field().guardAdd(v.field());
@@ -38,6 +41,18 @@ public class FieldValues {
         return Optional.empty();
     }
 
+    public Optional<Integer> intValue(FieldEnum f) {
+        return get(f).map(IntValue::intValue);
+    }
+
+    public Optional<String> stringValue(FieldEnum f) {
+        return get(f).map(StringValue::stringValue);
+    }
+
+    public Optional<List<FieldValues>> subfieldsValue(FieldEnum f) {
+        return get(f).map(SubfieldsValue::subfieldsValue);
+    }
+
     public void update(FieldValue fv) {
         Field f = fv.field();
         int idx = f.ordinal();
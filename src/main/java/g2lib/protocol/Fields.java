@@ -8,6 +8,7 @@ import java.util.List;
 public class Fields {
     private final List<Field> fields;
     private final String name;
+    private volatile FieldsCodec codec;
 
     public Fields(Class<?> clazz, FieldEnum[] fieldEnums) {
         fields = new ArrayList<>();
@@ -24,6 +25,26 @@ public class Fields {
         return sb.toString();
     }
 
+    List<Field> fields() {
+        return fields;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Compiled codec for this schema, built on first use.
+     * {@link #read(BitBuffer)} remains the interpreted reference.
+     */
+    public FieldsCodec codec() {
+        FieldsCodec c = codec;
+        if (c == null) {
+            codec = c = FieldsCodec.compile(this);
+        }
+        return c;
+    }
+
     public FieldValues read(BitBuffer bb) {
         return read(bb, new ArrayList<>());
     }
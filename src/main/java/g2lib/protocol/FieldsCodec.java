@@ -0,0 +1,271 @@
+package g2lib.protocol;
+
+import g2lib.BitBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Straight-line reader/writer compiled from a {@link Fields} schema.
+ * <p>
+ * Each schema level becomes a flat table of ops. Int fields are also stored in
+ * a register file shared by the whole tree, and {@link SubfieldsField.FieldCount}
+ * references are resolved at compile time to a register index, so counts
+ * never search the context list. Fields with custom read behavior
+ * (subclassed fields, unknown count strategies) compile to {@link #OP_FIELD}
+ * and run through the interpreted path with a context list.
+ */
+public class FieldsCodec {
+
+    static final byte OP_INT = 0;
+    static final byte OP_STRING = 1;
+    static final byte OP_SUBFIELDS = 2;
+    static final byte OP_FIELD = 3;
+
+    private final Fields fields;
+    final Field[] fs;
+    final byte[] ops;
+    private final int[] sizes;
+    private final int[] countRegs;
+    private final int[] countConsts;
+    private final IntUnaryOperator[] countOps;
+    final FieldsCodec[] children;
+    private final int base;
+    // columnar row layout, see ColumnarFieldValues
+    final int[] cols;
+    int width;
+    private int registers;
+    private boolean context;
+
+    private record Scope(Fields fields, int base) { }
+
+    private FieldsCodec(Fields fields, int base) {
+        this.fields = fields;
+        this.base = base;
+        int n = fields.fields().size();
+        fs = fields.fields().toArray(new Field[0]);
+        ops = new byte[n];
+        sizes = new int[n];
+        countRegs = new int[n];
+        countConsts = new int[n];
+        countOps = new IntUnaryOperator[n];
+        children = new FieldsCodec[n];
+        cols = new int[n];
+        registers = base + n;
+    }
+
+    public static FieldsCodec compile(Fields fields) {
+        FieldsCodec c = compile(fields, 0, new ArrayList<>());
+        c.propagate(c);
+        return c;
+    }
+
+    private static FieldsCodec compile(Fields fields, int base, List<Scope> scopes) {
+        FieldsCodec c = new FieldsCodec(fields, base);
+        scopes.addFirst(new Scope(fields, base));
+        for (int i = 0; i < c.fs.length; i++) {
+            Field f = c.fs[i];
+            Class<?> fc = f.getClass();
+            if (fc == SizedField.class) {
+                c.ops[i] = OP_INT;
+                c.sizes[i] = ((SizedField) f).size;
+            } else if (fc == StringField.class) {
+                c.ops[i] = OP_STRING;
+            } else if (fc == SubfieldsField.class && c.compileCount(i, (SubfieldsField) f, scopes)) {
+                c.ops[i] = OP_SUBFIELDS;
+                c.children[i] = compile(((SubfieldsField) f).subfields, base + c.fs.length, scopes);
+            } else {
+                c.ops[i] = OP_FIELD;
+            }
+            c.cols[i] = c.width;
+            c.width += c.ops[i] == OP_INT ? 1 : 2;
+        }
+        scopes.removeFirst();
+        return c;
+    }
+
+    private boolean compileCount(int i, SubfieldsField f, List<Scope> scopes) {
+        SubfieldsField.SubfieldCount sc = f.subfieldCount();
+        if (sc instanceof SubfieldsField.ConstantSubfieldCount cc) {
+            countRegs[i] = -1;
+            countConsts[i] = cc.count;
+            return true;
+        }
+        if (sc instanceof SubfieldsField.FieldCount(FieldEnum e, IntUnaryOperator op)) {
+            for (Scope s : scopes) {
+                List<Field> sfs = s.fields.fields();
+                int ix = e.ordinal();
+                if (ix < sfs.size() && sfs.get(ix) == e.field()) {
+                    countRegs[i] = s.base + ix;
+                    countOps[i] = op;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void propagate(FieldsCodec root) {
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == OP_FIELD) {
+                root.context = true;
+            } else if (ops[i] == OP_SUBFIELDS) {
+                children[i].propagate(root);
+                root.registers = Math.max(root.registers, children[i].registers);
+            }
+        }
+    }
+
+    public Fields fields() {
+        return fields;
+    }
+
+    public FieldValues read(BitBuffer bb) {
+        return read(bb, new int[registers], context ? new ArrayList<>() : null);
+    }
+
+    private FieldValues read(BitBuffer bb, int[] regs, List<FieldValues> ctx) {
+        FieldValues fvs = fields.init();
+        List<FieldValue> vs = fvs.values;
+        if (ctx != null) { ctx.addFirst(fvs); }
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case OP_INT -> {
+                    int v = bb.get(sizes[i]);
+                    regs[base + i] = v;
+                    vs.add(new IntValue((SizedField) fs[i], v));
+                }
+                case OP_STRING -> vs.add(new StringValue((StringField) fs[i], ((StringField) fs[i]).readString(bb)));
+                case OP_SUBFIELDS -> {
+                    int count = countRegs[i] < 0 ? countConsts[i] : countOps[i].applyAsInt(regs[countRegs[i]]);
+                    List<FieldValues> sub = new ArrayList<>(count);
+                    FieldsCodec child = children[i];
+                    for (int j = 0; j < count; j++) {
+                        sub.add(child.read(bb, regs, ctx));
+                    }
+                    vs.add(new SubfieldsValue((SubfieldsField) fs[i], sub));
+                }
+                default -> {
+                    fs[i].read(bb, ctx);
+                    if (vs.getLast() instanceof IntValue iv) {
+                        regs[base + i] = iv.value();
+                    }
+                }
+            }
+        }
+        if (ctx != null) { ctx.removeFirst(); }
+        return fvs;
+    }
+
+    /**
+     * Read into columnar storage. Schemas containing fields with custom
+     * read behavior need the interpreted context and use {@link #read(BitBuffer)}.
+     */
+    public FieldValues readColumnar(BitBuffer bb) {
+        if (context) {
+            return read(bb);
+        }
+        ColumnarFieldValues.Columns root = columns(new ColumnarFieldValues.Store(), 1);
+        return new ColumnarFieldValues(root, readRow(bb, new int[registers], root));
+    }
+
+    /**
+     * An empty columnar row, filled in schema order with {@link FieldValues#add}.
+     */
+    public FieldValues newColumnar() {
+        ColumnarFieldValues.Columns root = columns(new ColumnarFieldValues.Store(), 1);
+        return new ColumnarFieldValues(root, root.addRow(), 0);
+    }
+
+    private ColumnarFieldValues.Columns columns(ColumnarFieldValues.Store store, int rowHint) {
+        ColumnarFieldValues.Columns c = new ColumnarFieldValues.Columns(this, store, rowHint);
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == OP_SUBFIELDS) {
+                c.children[i] = children[i].columns(store, countRegs[i] < 0 ? countConsts[i] * rowHint : 16);
+            }
+        }
+        return c;
+    }
+
+    private int readRow(BitBuffer bb, int[] regs, ColumnarFieldValues.Columns c) {
+        int row = c.addRow();
+        int at = row * width;
+        for (int i = 0; i < ops.length; i++) {
+            int col = at + cols[i];
+            switch (ops[i]) {
+                case OP_INT -> c.data[col] = regs[base + i] = bb.get(sizes[i]);
+                case OP_STRING -> {
+                    StringField sf = (StringField) fs[i];
+                    ColumnarFieldValues.Store st = c.store;
+                    st.ensure(sf.maxBytes(bb));
+                    int n = sf.readInto(bb, st.bytes, st.length);
+                    c.data[col] = st.length;
+                    c.data[col + 1] = n;
+                    st.length += n;
+                }
+                default -> {
+                    int count = countRegs[i] < 0 ? countConsts[i] : countOps[i].applyAsInt(regs[countRegs[i]]);
+                    ColumnarFieldValues.Columns child = c.children[i];
+                    int start = child.rows;
+                    for (int j = 0; j < count; j++) {
+                        children[i].readRow(bb, regs, child);
+                    }
+                    c.data[col] = start;
+                    c.data[col + 1] = count;
+                }
+            }
+        }
+        return row;
+    }
+
+    public void write(BitBuffer bb, FieldValues values) throws Exception {
+        if (values instanceof ColumnarFieldValues cv && cv.columns.codec == this) {
+            writeRow(bb, cv.columns, cv.row);
+            return;
+        }
+        List<FieldValue> vs = values.values;
+        for (int i = 0; i < vs.size(); i++) {
+            FieldValue v = vs.get(i);
+            if (i >= fs.length || v.field() != fs[i]) {
+                v.write(bb);
+                continue;
+            }
+            switch (ops[i]) {
+                case OP_INT -> bb.put(sizes[i], ((IntValue) v).value());
+                case OP_STRING -> ((StringField) fs[i]).write(bb, ((StringValue) v).value());
+                case OP_SUBFIELDS -> {
+                    FieldsCodec child = children[i];
+                    for (FieldValues sub : ((SubfieldsValue) v).value()) {
+                        child.write(bb, sub);
+                    }
+                }
+                default -> v.write(bb);
+            }
+        }
+    }
+
+    private void writeRow(BitBuffer bb, ColumnarFieldValues.Columns c, int row) throws Exception {
+        int at = row * width;
+        for (int i = 0; i < ops.length; i++) {
+            int col = at + cols[i];
+            if (ops[i] == OP_INT) {
+                bb.put(sizes[i], c.data[col]);
+            } else if (c.data[col + 1] < 0) {
+                c.store.opaque.get(-1 - c.data[col + 1]).write(bb);
+            } else if (ops[i] == OP_STRING) {
+                ((StringField) fs[i]).write(bb, c.store.string(c.data[col], c.data[col + 1]));
+            } else {
+                ColumnarFieldValues.Columns child = c.children[i];
+                for (int j = 0; j < c.data[col + 1]; j++) {
+                    children[i].writeRow(bb, child, c.data[col] + j);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FieldsCodec[" + fields.name() + "]";
+    }
+}
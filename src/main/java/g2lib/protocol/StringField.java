@@ -3,6 +3,7 @@ package g2lib.protocol;
 import g2lib.BitBuffer;
 import g2lib.Util;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -36,18 +37,40 @@ public class StringField extends AbstractField implements Field {
 
     @Override
     public void read(BitBuffer bb, List<FieldValues> values) {
-        StringBuilder sb = new StringBuilder();
+        values.getFirst().add(new StringValue(this, readString(bb)));
+    }
+
+    public String readString(BitBuffer bb) {
+        byte[] b = new byte[maxBytes(bb)];
+        return new String(b, 0, readInto(bb, b, 0), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Upper bound on bytes the next read from {@code bb} can produce.
+     */
+    public int maxBytes(BitBuffer bb) {
+        int rem = bb.getBitsRemaining() / 8;
+        return length > 0 ? Math.min(rem, length + 1) : rem;
+    }
+
+    /**
+     * Read string bytes into {@code dst} at {@code off}, which must have room
+     * for {@link #maxBytes(BitBuffer)} bytes.
+     * @return number of bytes stored
+     */
+    public int readInto(BitBuffer bb, byte[] dst, int off) {
+        int n = 0;
         int i = 0;
         while (bb.getBitsRemaining() >= 8) {
             if (length > 0 && i++ > length) { break; }
             int c = bb.get(8);
             if (c != 0) {
-                sb.append(Character.valueOf((char) c));
+                dst[off + n++] = (byte) c;
             } else {
                 if (lengthWithTerm || length <= 0) { break; }
             }
         }
-        values.getFirst().add(new StringValue(this, sb.toString()));
+        return n;
     }
 
     @Override
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.function.IntUnaryOperator;
 
 public class SubfieldsField extends AbstractField implements Field {
     protected final Fields subfields;
@@ -16,7 +17,7 @@ public class SubfieldsField extends AbstractField implements Field {
     }
 
     public static class ConstantSubfieldCount implements SubfieldCount {
-        private final int count;
+        final int count;
         public ConstantSubfieldCount(int count) {
             this.count = count;
         }
@@ -30,12 +31,19 @@ public class SubfieldsField extends AbstractField implements Field {
         return new ConstantSubfieldCount(count);
     }
 
-    public record FieldCount(FieldEnum f) implements SubfieldCount {
+    /**
+     * Count taken from a previously-read int field in this or an enclosing
+     * record, optionally adjusted by {@code op}.
+     */
+    public record FieldCount(FieldEnum f, IntUnaryOperator op) implements SubfieldCount {
+        public FieldCount(FieldEnum f) {
+            this(f, IntUnaryOperator.identity());
+        }
         @Override
         public int getCount(List<FieldValues> values) {
             for (FieldValues fv : values) {
                 Optional<FieldValue> v = fv.get(f);
-                if (v.isPresent()) { return IntValue.intValue(v.get()); }
+                if (v.isPresent()) { return op.applyAsInt(IntValue.intValue(v.get())); }
             }
             throw new NoSuchElementException(f.field().name());
         }
@@ -45,6 +53,10 @@ public class SubfieldsField extends AbstractField implements Field {
         return new FieldCount(e);
     }
 
+    public static SubfieldCount fieldCount(FieldEnum e, IntUnaryOperator op) {
+        return new FieldCount(e, op);
+    }
+
     public <T extends Enum<T>> SubfieldsField(Enum<T> e, Fields subfields, FieldEnum subfieldIxField) {
         this(e,subfields,fieldCount(subfieldIxField));
     }
@@ -59,6 +71,10 @@ public class SubfieldsField extends AbstractField implements Field {
         this.subfieldCount = subfieldCount;
     }
 
+    SubfieldCount subfieldCount() {
+        return subfieldCount;
+    }
+
     @Override
     public String toString() {
         return String.format("%s: %s",
@@ -0,0 +1,6 @@
+package g2lib.state;
+
+/**
+ * One stored patch or performance, as listed by {@code Q_LIST_NAMES}.
+ */
+public record BankEntry(int bank, int item, String name, int category) { }
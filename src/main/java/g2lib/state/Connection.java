@@ -0,0 +1,234 @@
+package g2lib.state;
+
+import g2lib.Util;
+import g2lib.usb.Histogram;
+import g2lib.usb.Hotplug;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import g2lib.usb.UsbTransport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Device lifecycle: when the G2 arrives, open it, build the {@link Usb},
+ * read thread and {@link Device} stack and run {@link Device#initialize};
+ * when it leaves, or a read finds it gone, tear the stack down and wait for
+ * it to come back. Transitions run one at a time on the connection thread.
+ * <p>
+ * Events come from {@link #arrived()} and {@link #left()}, driven by a
+ * {@link Hotplug} watcher in {@link #libusb}.
+ */
+public class Connection implements AutoCloseable {
+
+    public enum State { DISCONNECTED, CONNECTING, READY, CLOSED }
+
+    public record Stack(Usb usb, UsbReadThread readThread, Device device) { }
+
+    public static final long POLL_MILLIS = 50;
+    /** open attempts after an arrival, backing off from {@link #RETRY_MILLIS} */
+    public static final int MAX_ATTEMPTS = 6;
+    public static final long RETRY_MILLIS = 10;
+
+    private static final Logger log = Util.getLogger(Connection.class);
+
+    private final Supplier<UsbTransport> opener;
+    private final boolean async;
+    private final ScheduledExecutorService executor;
+    private final List<Consumer<Stack>> listeners = new CopyOnWriteArrayList<>();
+    private AutoCloseable watcher;
+    private volatile State state = State.DISCONNECTED;
+    private volatile Stack stack;
+    private long arrivedAt;
+    private int attempts;
+
+    public final AtomicLong connects = new AtomicLong();
+    public final AtomicLong reconnects = new AtomicLong();
+    public final AtomicLong disconnects = new AtomicLong();
+    public final AtomicLong failures = new AtomicLong();
+    /** microseconds from arrival to initialized */
+    public final Histogram timeToReady = new Histogram();
+
+    /**
+     * @param opener opens the device, throwing if it is not there
+     * @param async read thread mode, see {@link UsbReadThread#UsbReadThread(Usb, boolean)}
+     */
+    public Connection(Supplier<UsbTransport> opener, boolean async) {
+        this.opener = opener;
+        this.async = async;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r,"Connection");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Connection driven by libusb hotplug events, or a device list poll where
+     * those are not available.
+     */
+    public static Connection libusb(Supplier<UsbTransport> opener, boolean async) {
+        Connection c = new Connection(opener,async);
+        c.watcher = new Hotplug(c::arrived,c::left,POLL_MILLIS);
+        return c;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Current stack, or null if not ready.
+     */
+    public Stack stack() {
+        return state == State.READY ? stack : null;
+    }
+
+    /**
+     * Called on the connection thread each time the device is ready.
+     */
+    public void onReady(Consumer<Stack> listener) {
+        listeners.add(listener);
+    }
+
+    public void arrived() {
+        executor.execute(() -> {
+            if (state == State.DISCONNECTED) {
+                arrivedAt = System.nanoTime();
+                attempts = 0;
+                connect();
+            }
+        });
+    }
+
+    public void left() {
+        executor.execute(() -> teardown(stack));
+    }
+
+    private void connect() {
+        state = State.CONNECTING;
+        attempts++;
+        Stack s;
+        try {
+            Usb usb = new Usb(opener.get());
+            UsbReadThread readThread = new UsbReadThread(usb,async);
+            s = new Stack(usb,readThread,new Device(usb,readThread));
+            stack = s;
+            readThread.onDisconnect(() -> executor.execute(() -> teardown(s)));
+        } catch (RuntimeException e) {
+            retry("open failed: " + e);
+            return;
+        }
+        try {
+            s.device.initialize();
+        } catch (Exception e) {
+            close(s);
+            retry("initialize failed: " + e);
+            return;
+        }
+        if (connects.getAndIncrement() > 0) {
+            reconnects.incrementAndGet();
+        }
+        timeToReady.record((System.nanoTime() - arrivedAt) / 1000);
+        synchronized (this) {
+            state = State.READY;
+            notifyAll();
+        }
+        log.info(String.format("G2 ready after %dus, attempt %d",(System.nanoTime() - arrivedAt) / 1000,attempts));
+        for (Consumer<Stack> l : listeners) {
+            try {
+                l.accept(s);
+            } catch (RuntimeException e) {
+                log.warning("ready listener failed: " + e);
+            }
+        }
+    }
+
+    private void retry(String msg) {
+        failures.incrementAndGet();
+        stack = null;
+        state = State.DISCONNECTED;
+        if (attempts < MAX_ATTEMPTS) {
+            long delay = RETRY_MILLIS << (attempts - 1);
+            log.info(msg + ", retrying in " + delay + "ms");
+            executor.schedule(() -> {
+                if (state == State.DISCONNECTED && attempts > 0) { connect(); }
+            },delay,TimeUnit.MILLISECONDS);
+        } else {
+            log.warning(msg + ", waiting for the device to reappear");
+            attempts = 0;
+        }
+    }
+
+    /**
+     * Tear down {@code s} if it is still the current stack.
+     */
+    private void teardown(Stack s) {
+        if (s == null || s != stack) { return; }
+        stack = null;
+        close(s);
+        if (state == State.READY) {
+            disconnects.incrementAndGet();
+            log.info("G2 disconnected");
+        }
+        if (state != State.CLOSED) {
+            state = State.DISCONNECTED;
+        }
+    }
+
+    private static void close(Stack s) {
+        s.device.close();
+        s.readThread.go.set(false);
+        try {
+            if (s.readThread.thread.isAlive() && s.readThread.thread != Thread.currentThread()) {
+                s.readThread.thread.join();
+            }
+            s.usb.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.fine("shutdown after disconnect: " + e);
+        }
+    }
+
+    /**
+     * @return the ready stack, or null on timeout
+     */
+    public synchronized Stack awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (state != State.READY) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) { return null; }
+            wait(remaining);
+        }
+        return stack;
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (Exception e) {
+                log.warning("closing watcher: " + e);
+            }
+        }
+        executor.execute(() -> {
+            teardown(stack);
+            state = State.CLOSED;
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5,TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package g2lib.state;
+
+import g2lib.Util;
+import g2lib.usb.Histogram;
+import g2lib.usb.UsbMessage;
+import g2lib.usb.UsbReadThread;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Decodes responses off the read thread: extended messages of a claimed
+ * {@link Kind} are parsed on a worker pool as soon as they arrive, so the
+ * read thread goes straight back to the device while patches are being
+ * parsed. Results are published per slot (and for system messages) in
+ * arrival order, whatever order the workers finish in, and taken with
+ * {@link #take}. Results nobody takes are kept. Entry lists are not staged:
+ * each list request starts where the decoded response before it ended.
+ */
+public class DecodeStage implements AutoCloseable {
+
+    public interface Decoder<T> {
+        /**
+         * @param buf the whole message, from the {@code 01} command byte, position 0
+         */
+        T decode(ByteBuffer buf) throws Exception;
+    }
+
+    /**
+     * @param system system ({@code 01 0c}) or slot ({@code 01 08+slot}) message
+     * @param type message type, the fourth byte
+     */
+    public record Kind<T>(String name, boolean system, int type, Decoder<T> decoder) { }
+
+    public static final Kind<Patch> PATCH = new Kind<>("patch",false,0x21,Patch::readFromMessage);
+
+    /**
+     * @param slot 0-3, or -1 for system messages
+     * @param error the decode failure, value is then null
+     */
+    public record Result<T>(Kind<T> kind, int slot, int version, T value, Throwable error) { }
+
+    public static final int SYSTEM_LANE = 4;
+
+    private final Logger log = Util.getLogger(DecodeStage.class);
+
+    private final Map<Integer, Kind<?>> kinds = new ConcurrentHashMap<>();
+    private final Map<Integer, LinkedBlockingQueue<Result<?>>> results = new ConcurrentHashMap<>();
+    @SuppressWarnings("unchecked")
+    private final CompletableFuture<Void>[] lanes = (CompletableFuture<Void>[]) new CompletableFuture<?>[SYSTEM_LANE + 1];
+    private final ExecutorService pool;
+
+    public final AtomicLong submitted = new AtomicLong();
+    public final AtomicLong decoded = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    /** decode time per message, microseconds */
+    public final Histogram decodeTime = new Histogram();
+
+    public DecodeStage(int threads, Kind<?>... kinds) {
+        AtomicInteger n = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads,r -> {
+            Thread t = new Thread(r,"Decode-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        for (Kind<?> k : kinds) {
+            this.kinds.put(kindKey(k.system(),k.type()),k);
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Claim messages of the stage's kinds from {@code readThread}.
+     */
+    public DecodeStage attach(UsbReadThread readThread) {
+        readThread.setDecoder(this::offer);
+        return this;
+    }
+
+    private static int key(int lane, int type) {
+        return (lane << 8) | (type & 0xff);
+    }
+
+    private static int kindKey(boolean system, int type) {
+        return (system ? 0x100 : 0) | (type & 0xff);
+    }
+
+    private static int lane(UsbMessage m) {
+        int cmd = m.buffer().get(1) & 0xff;
+        return cmd == 0x0c ? SYSTEM_LANE : cmd >= 0x08 && cmd <= 0x0b ? cmd - 0x08 : -1;
+    }
+
+    /**
+     * Claim the message for decoding if it is of a stage kind. Called on the
+     * read thread, so lanes are extended one message at a time.
+     */
+    public boolean offer(UsbMessage m) {
+        if (!m.extended() || m.buffer().limit() < 6 || m.buffer().get(0) != 0x01) {
+            return false;
+        }
+        int lane = lane(m);
+        if (lane < 0) { return false; }
+        int type = m.buffer().get(3) & 0xff;
+        Kind<?> kind = kinds.get(kindKey(lane == SYSTEM_LANE,type));
+        if (kind == null) { return false; }
+        submitted.incrementAndGet();
+        CompletableFuture<Result<?>> r = CompletableFuture.supplyAsync(() -> decode(kind,lane,m),pool);
+        // publish after everything before it on the lane
+        lanes[lane] = lanes[lane].thenCombine(r,(v,result) -> {
+            results.computeIfAbsent(key(lane,type),k -> new LinkedBlockingQueue<>()).add(result);
+            return null;
+        });
+        return true;
+    }
+
+    private <T> Result<T> decode(Kind<T> kind, int lane, UsbMessage m) {
+        long start = System.nanoTime();
+        ByteBuffer buf = m.buffer().duplicate().rewind();
+        int version = Util.b2i(buf.get(2));
+        try {
+            T value = kind.decoder().decode(buf);
+            decoded.incrementAndGet();
+            return new Result<>(kind,lane == SYSTEM_LANE ? -1 : lane,version,value,null);
+        } catch (Throwable e) { // anything escaping would leave the lane waiting forever
+            errors.incrementAndGet();
+            log.warning(String.format("%s decode failed: %s",kind.name(),e));
+            return new Result<>(kind,lane == SYSTEM_LANE ? -1 : lane,version,null,e);
+        } finally {
+            m.release();
+            decodeTime.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Take the oldest result of {@code kind} for {@code slot} (ignored for system kinds).
+     * @return the result, or null on timeout
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Result<T> take(Kind<T> kind, int slot, long timeoutMillis) throws InterruptedException {
+        int lane = kind.system() ? SYSTEM_LANE : slot;
+        if (lane < 0 || lane > SYSTEM_LANE) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        return (Result<T>) results.computeIfAbsent(key(lane,kind.type()),k -> new LinkedBlockingQueue<>())
+                .poll(timeoutMillis,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like {@link #take}, but the value itself, throwing on timeout or decode failure.
+     */
+    public <T> T takeValue(Kind<T> kind, int slot, long timeoutMillis) throws InterruptedException {
+        Result<T> r = take(kind,slot,timeoutMillis);
+        if (r == null) {
+            throw new RuntimeException("No " + kind.name() + " for slot " + slot);
+        }
+        if (r.error() != null) {
+            throw new RuntimeException(kind.name() + " decode failed",r.error());
+        }
+        return r.value();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -5,72 +5,156 @@ import g2lib.Main;
 import g2lib.Protocol;
 import g2lib.Util;
 import g2lib.protocol.FieldValues;
+import g2lib.usb.CommandScheduler;
+import g2lib.usb.Pipeline;
 import g2lib.usb.Usb;
 import g2lib.usb.UsbMessage;
 import g2lib.usb.UsbReadThread;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-public class Device {
+import static g2lib.usb.CommandScheduler.Priority.INTERACTIVE;
 
-    private static final Logger log = Util.getLogger(Device.class);
+public class Device implements AutoCloseable {
 
-    private final Usb usb;
+    private static final Logger log = Util.getLogger(Device.class);
 
     private final UsbReadThread readThread;
+    private final CommandScheduler scheduler;
+    private final Pipeline pipeline;
 
     private Performance perf;
     private FieldValues synthSettings;
 
+    public record SlotInfo(int slot, int version, String name, String text) { }
+
     public Device(Usb usb, UsbReadThread readThread) {
-        this.usb = usb;
         this.readThread = readThread;
+        this.scheduler = new CommandScheduler(usb);
+        this.pipeline = new Pipeline(scheduler,CommandScheduler.Priority.INTERACTIVE,readThread);
+    }
+
+    public Pipeline pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Sends all of this device's commands; use it for any other traffic too.
+     */
+    public CommandScheduler scheduler() {
+        return scheduler;
+    }
+
+    private interface SystemCmd {
+        int send(String msg, int... cdata);
+    }
+
+    /**
+     * Upper bound on list requests: every response but the last holds at least one entry.
+     */
+    public static final int MAX_LIST_REQUESTS = EntryGrid.PATCH_BANKS * EntryGrid.BANK_SIZE;
+
+    /**
+     * Read the whole entry list.
+     * @throws RuntimeException if the device stops answering or the list does not reach its end
+     */
+    public static Map<Integer, Map<Integer, String>> readEntryList(Usb usb, UsbReadThread readThread, boolean patchOrPerf) throws InterruptedException {
+        return collect(usb::sendSystemCmd, readThread, patchOrPerf);
+    }
+
+    /**
+     * Read the entry list as a background job, one command at a time, so
+     * interactive commands on {@code scheduler} get in between.
+     */
+    public static Map<Integer, Map<Integer, String>> readEntryList(CommandScheduler scheduler, UsbReadThread readThread, boolean patchOrPerf) throws InterruptedException {
+        return collect(scheduler(scheduler), readThread, patchOrPerf);
     }
 
-    public static Map<Integer, Map<Integer, String>> readEntryList(Usb usb, UsbReadThread readThread, int entryCount, boolean patchOrPerf) throws InterruptedException {
+    /**
+     * Stream the entry list: {@code sink} gets the entries of each response
+     * as soon as it is decoded, on the calling thread.
+     * @return true if the list was read to its end, false if it stopped early
+     * (a response without entries that is not the last, or {@link #MAX_LIST_REQUESTS} reached)
+     */
+    public static boolean readEntryList(Usb usb, UsbReadThread readThread, boolean patchOrPerf, Consumer<BankEntry> sink) throws InterruptedException {
+        return readEntryList(usb::sendSystemCmd, readThread, patchOrPerf, sink);
+    }
+
+    public static boolean readEntryList(CommandScheduler scheduler, UsbReadThread readThread, boolean patchOrPerf, Consumer<BankEntry> sink) throws InterruptedException {
+        return readEntryList(scheduler(scheduler), readThread, patchOrPerf, sink);
+    }
+
+    private static SystemCmd scheduler(CommandScheduler scheduler) {
+        return (msg, cdata) -> scheduler.sendSystemCmd(CommandScheduler.Priority.BACKGROUND, msg, cdata).join();
+    }
+
+    private static Map<Integer, Map<Integer, String>> collect(SystemCmd usb, UsbReadThread readThread, boolean patchOrPerf) throws InterruptedException {
         Map<Integer, Map<Integer,String>> entries = new TreeMap<>();
+        entries.put(0,new TreeMap<>());
+        if (!readEntryList(usb, readThread, patchOrPerf,
+                e -> entries.computeIfAbsent(e.bank(), b -> new TreeMap<>()).put(e.item(), e.name()))) {
+            throw new RuntimeException("Entry list incomplete");
+        }
+        return entries;
+    }
+
+    /**
+     * Request the list from the start, each request from where the last response
+     * ended, until a response ends with the 04 terminator.
+     */
+    private static boolean readEntryList(SystemCmd usb, UsbReadThread readThread, boolean patchOrPerf, Consumer<BankEntry> sink) throws InterruptedException {
         int bank = 0;
         int item = 0;
-        entries.put(bank,new TreeMap<>());
-        for (int i = 0; i < entryCount; i++) {
-            usb.sendSystemCmd("patch list message: " + i
+        for (int i = 0; i < MAX_LIST_REQUESTS; i++) {
+            usb.send("patch list message: " + i
                     , 0x14 // Q_LIST_NAMES
                     , patchOrPerf ? 0 : 1 // pftPatch
                     , bank // bank
                     , item // item
             );
-            UsbMessage beMsg = readThread.expect("patch list message: " + i, m ->
-                            (!m.extended()) || m.head(0x01,0x0c,0x00,0x13));
-            if (!beMsg.extended()) { log.info("Entry list empty: " + i); continue; }
+            // only the OK ends the list: other embedded messages (bank changes, stray OKs) are not replies
+            UsbMessage beMsg = readThread.expect("patch list message", m -> m.extended()
+                    ? m.head(0x01,0x0c,0x00,0x13) : m.head(0x62,0x01,0x0c,0x00,0x7f));
+            if (beMsg == null) { throw new RuntimeException("No response to patch list message: " + i); }
+            if (!beMsg.extended()) { // OK: nothing from here on
+                log.info("Entry list empty: " + i);
+                beMsg.release();
+                return true;
+            }
             ByteBuffer buf = beMsg.buffer();
             buf.position(4);
             BitBuffer bb = new BitBuffer(buf.slice());
-            FieldValues fvs = Protocol.BankEntries.FIELDS.read(bb);
+            FieldValues fvs = Protocol.BankEntries.FIELDS.codec().read(bb);
+            beMsg.release();
             log.info(fvs.toString());
-            Map<Integer, String> m = entries.get(bank);
             List<FieldValues> es = Protocol.BankEntries.Entries.subfieldsValue(fvs).orElse(new ArrayList<>());
             for (FieldValues e : es) {
                 //log.info(e.toString());
                 int bc = Protocol.BankEntry.BankChange.intValue(e).orElse(0);
                 if (bc != 0) {
                     bank = (bc & 0xff00) >> 8;
-                    item = bc & 0xff;
-                    entries.put(bank, m = new TreeMap<>());
                     item = 0;
                 }
                 String n = Protocol.BankEntry.Name.stringValue(e).orElse("_error");
-                m.put(item++, n);
+                sink.accept(new BankEntry(bank, item++, n, Protocol.BankEntry.Category.intValue(e).orElse(0)));
             }
 
             Optional<Integer> term = Protocol.BankEntries.Terminator.intValue(fvs);
             if (term.isPresent() && term.get()==0x04) {
-                break;
+                return true;
+            }
+            if (es.isEmpty()) { // the next request would ask for the same place again
+                log.warning("Entry list response without entries, stopping: " + i);
+                return false;
             }
         }
-        //dumpEntries(patchOrPerf, entries);
-        return entries;
+        log.warning("Entry list not terminated after " + MAX_LIST_REQUESTS + " requests");
+        return false;
         /*
         01 0c 00 13 74 01 16 01 00 03 0a 00 49 6e 70 75   . . . . t . . . . . . . I n p u
 74 49 6e 74 65 72 70 72 65 74 65 72 00 64 72 75   t I n t e r p r e t e r . d r u
@@ -97,38 +181,152 @@ public class Device {
         readThread.start();
 
         // init message
-        usb.sendBulk("Init", Util.asBytes(0x80)); // CMD_INIT
-        readThread.expect("Init response", msg -> msg.head(0x80));
+        scheduler.sendBulk(INTERACTIVE, "Init", Util.asBytes(0x80)).join(); // CMD_INIT
+        required("Init response", readThread.expect("Init response", msg -> msg.head(0x80))).release();
 
 
         // perf version
-        usb.sendSystemCmd("perf version"
+        scheduler.sendSystemCmd(INTERACTIVE, "perf version"
                 ,0x35 // Q_VERSION_CNT
                 ,0x04 // perf version??
-        );
-        UsbMessage perfInitMsg = readThread.expect("perf version",
-                msg -> msg.head(0x82, 0x01, 0x0c, 0x40, 0x36, 0x04));
+        ).join();
+        UsbMessage perfInitMsg = required("perf version", readThread.expect("perf version",
+                msg -> msg.head(0x82, 0x01, 0x0c, 0x40, 0x36, 0x04)));
         perf = new Performance(perfInitMsg.buffer().get());
+        perfInitMsg.release();
 
-        usb.sendSystemCmd("Stop Comm"
+        scheduler.sendSystemCmd(INTERACTIVE, "Stop Comm"
                 ,0x7d // S_START_STOP_COM
                 ,0x01 // stop
-        );
-        readThread.expect("Stop Comm",m -> m.head(0x62,0x01));
+        ).join();
+        required("Stop Comm", readThread.expect("Stop Comm",m -> m.head(0x62,0x01))).release();
 
         //synth settings
-        usb.sendSystemCmd("Synth settings"
+        scheduler.sendSystemCmd(INTERACTIVE, "Synth settings"
                 ,0x02 // Q_SYNTH_SETTINGS
-        );
+        ).join();
         //extended: 01 0c 00 03 -- synth settings [03]
-        setSynthSettings(readThread.expect("Synth settings", m -> m.head(0x01, 0x0c, 0x00, 0x03)));
+        setSynthSettings(required("Synth settings", readThread.expect("Synth settings", m -> m.head(0x01, 0x0c, 0x00, 0x03))));
 
 
     }
 
 
+    /**
+     * Read version, patch name and text pad of all four slots, pipelined:
+     * all version queries, then all name and text queries, back to back.
+     */
+    public List<SlotInfo> readSlots() {
+        List<CompletableFuture<UsbMessage>> versions = queryVersions();
+        List<CompletableFuture<SlotInfo>> infos = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int slot = i;
+            UsbMessage vm = versions.get(slot).join();
+            int version = Util.b2i(vm.buffer().get(6));
+            vm.release();
+            CompletableFuture<UsbMessage> name = pipeline.sendSlotCmd(slot, version, "slot " + slot + " name"
+                    , m -> m.head(0x01, 0x08 + slot, version, 0x27)
+                    , 0x28 // Q_PATCH_NAME
+            );
+            CompletableFuture<UsbMessage> text = pipeline.sendSlotCmd(slot, version, "slot " + slot + " text"
+                    , m -> m.head(0x01, 0x08 + slot, version, 0x6f)
+                    , 0x6e // Q_PATCH_TEXT
+            );
+            infos.add(name.thenCombine(text, (n, t) -> {
+                //extended: 01 09 00 27 <name> -- patch name
+                //extended: 01 09 00 6f <len:2> <text> -- textpad
+                SlotInfo si = new SlotInfo(slot, version,
+                        readString(n.buffer(), 4, n.buffer().limit() - 2),
+                        readString(t.buffer(), 6, Math.min(6 + Util.getShort(t.buffer().position(4)), t.buffer().limit() - 2)));
+                n.release();
+                t.release();
+                return si;
+            }));
+        }
+        return infos.stream().map(CompletableFuture::join).toList();
+    }
+
+    /**
+     * Read the patches of {@code slots}: all requests back to back, each
+     * response parsed on {@code stage} as it arrives, which must be attached
+     * to this device's read thread and decode {@link DecodeStage#PATCH}.
+     */
+    public List<Patch> readPatches(DecodeStage stage, List<SlotInfo> slots) throws InterruptedException {
+        for (SlotInfo si : slots) {
+            scheduler.sendSlotCmd(INTERACTIVE, si.slot(), si.version(), "slot " + si.slot() + " patch"
+                    , 0x3c // Q_PATCH
+            );
+        }
+        List<Patch> patches = new ArrayList<>();
+        for (SlotInfo si : slots) {
+            patches.add(stage.takeValue(DecodeStage.PATCH, si.slot(), UsbReadThread.EXPECT_TIMEOUT));
+        }
+        return patches;
+    }
+
+    private List<CompletableFuture<UsbMessage>> queryVersions() {
+        List<CompletableFuture<UsbMessage>> versions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int slot = i;
+            versions.add(pipeline.sendSystemCmd("slot " + slot + " version"
+                    , m -> m.head(0x82, 0x01, 0x0c, 0x40, 0x36, slot)
+                    , 0x35 // Q_VERSION_CNT
+                    , slot));
+        }
+        return versions;
+    }
+
+    /**
+     * Device name from the synth settings, or null before {@link #initialize()}.
+     */
+    public String deviceName() {
+        return synthSettings == null ? null : Protocol.SynthSettings.DeviceName.stringValue(synthSettings).orElse(null);
+    }
+
+    /**
+     * Identity of the device, for {@link EntryCache}.
+     */
+    public EntryCache.Stamp stamp() {
+        return new EntryCache.Stamp(deviceName());
+    }
+
+    /**
+     * Current version of slots 0-3, as changed by loads.
+     */
+    public List<Integer> readVersions() {
+        List<Integer> slots = new ArrayList<>();
+        for (CompletableFuture<UsbMessage> f : queryVersions()) {
+            UsbMessage vm = f.join();
+            slots.add(Util.b2i(vm.buffer().get(6)));
+            vm.release();
+        }
+        return slots;
+    }
+
+    private static String readString(ByteBuffer buf, int start, int end) {
+        int e = start;
+        while (e < end && buf.get(e) != 0) { e++; }
+        byte[] bs = new byte[e - start];
+        buf.get(start, bs);
+        return new String(bs, StandardCharsets.ISO_8859_1);
+    }
+
     private void setSynthSettings(UsbMessage msg) {
         BitBuffer bb = new BitBuffer(msg.buffer().slice());
-        synthSettings = Protocol.SynthSettings.FIELDS.read(bb);
+        synthSettings = Protocol.SynthSettings.FIELDS.codec().read(bb);
+        msg.release();
+    }
+
+    /**
+     * Stop the scheduler once queued commands are sent.
+     */
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+
+    private static UsbMessage required(String msg, UsbMessage m) {
+        if (m == null) { throw new RuntimeException("No response to " + msg); }
+        return m;
     }
 }
@@ -0,0 +1,197 @@
+package g2lib.state;
+
+import g2lib.Util;
+import g2lib.usb.LibUsbTransport;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import g2lib.usb.UsbTransport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Several G2s in one process: each unit has its own {@link Usb}, read thread
+ * and {@link Device}, and its own worker thread, so operations run on all
+ * units at once take about as long as on the slowest one.
+ */
+public class DeviceManager implements AutoCloseable {
+
+    private static final Logger log = Util.getLogger(DeviceManager.class);
+
+    public static class Unit {
+        public final String name;
+        public final Usb usb;
+        public final UsbReadThread readThread;
+        public final Device device;
+        private final ExecutorService worker;
+
+        public final AtomicLong tasks = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+        public final AtomicLong busyNanos = new AtomicLong();
+
+        Unit(String name, UsbTransport transport) {
+            this.name = name;
+            this.usb = new Usb(transport);
+            this.readThread = new UsbReadThread(usb);
+            this.device = new Device(usb,readThread);
+            this.worker = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r,"DeviceManager " + name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        public Metrics metrics() {
+            return new Metrics(name,tasks.get(),failures.get(),busyNanos.get() / 1000,
+                    readThread.recd.get(),readThread.q.size(),usb.pool().outstanding.get(),
+                    device.pipeline().sent.get(),device.pipeline().timedOut.get());
+        }
+    }
+
+    /**
+     * @param busyMicros time spent running {@link #all} tasks
+     * @param received messages received by the read thread
+     * @param queued received messages not yet taken
+     */
+    public record Metrics(String name, long tasks, long failures, long busyMicros, int received,
+                          int queued, int buffersOutstanding, int pipelined, int timedOut) {
+
+        public Metrics plus(Metrics m) {
+            return new Metrics("total",tasks + m.tasks,failures + m.failures,busyMicros + m.busyMicros,
+                    received + m.received,queued + m.queued,buffersOutstanding + m.buffersOutstanding,
+                    pipelined + m.pipelined,timedOut + m.timedOut);
+        }
+    }
+
+    public interface UnitTask<T> {
+        T run(Unit unit) throws Exception;
+    }
+
+    private final List<Unit> units = new ArrayList<>();
+
+    /**
+     * Units named by their transports' {@code toString()}, made unique by index.
+     */
+    public DeviceManager(List<? extends UsbTransport> transports) {
+        for (int i = 0; i < transports.size(); i++) {
+            UsbTransport t = transports.get(i);
+            units.add(new Unit(i + ": " + t,t));
+        }
+        log.info(String.format("Managing %d units",units.size()));
+    }
+
+    /**
+     * Open every connected G2.
+     */
+    public static DeviceManager open() {
+        List<LibUsbTransport> ts = LibUsbTransport.open(Integer.MAX_VALUE);
+        if (ts.isEmpty()) {
+            throw new RuntimeException("No G2 device found");
+        }
+        return new DeviceManager(ts);
+    }
+
+    public List<Unit> units() {
+        return units;
+    }
+
+    /**
+     * Run {@code task} on every unit at once, each on its unit's worker thread.
+     * @return results by unit name, in unit order
+     * @throws RuntimeException after all tasks finished, if any failed; others are suppressed.
+     */
+    public <T> Map<String,T> all(String name, UnitTask<T> task) {
+        List<CompletableFuture<T>> fs = new ArrayList<>();
+        for (Unit u : units) {
+            fs.add(CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                u.tasks.incrementAndGet();
+                try {
+                    return task.run(u);
+                } catch (Exception e) {
+                    u.failures.incrementAndGet();
+                    throw new CompletionException(e);
+                } finally {
+                    u.busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            },u.worker));
+        }
+        Map<String,T> results = new LinkedHashMap<>();
+        RuntimeException failure = null;
+        for (int i = 0; i < units.size(); i++) {
+            try {
+                results.put(units.get(i).name,fs.get(i).join());
+            } catch (CompletionException e) {
+                RuntimeException r = new RuntimeException(name + " failed on " + units.get(i).name,e.getCause());
+                if (failure == null) {
+                    failure = r;
+                } else {
+                    failure.addSuppressed(r);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    public void initialize() {
+        all("initialize",u -> {
+            u.device.initialize();
+            return true;
+        });
+    }
+
+    public Map<String,Map<Integer,Map<Integer,String>>> readEntryLists(boolean patchOrPerf) {
+        return all("entry list",u -> Device.readEntryList(u.device.scheduler(),u.readThread,patchOrPerf));
+    }
+
+    public Map<String,List<Device.SlotInfo>> readSlots() {
+        return all("slots",u -> u.device.readSlots());
+    }
+
+    /**
+     * Send the same system command to every unit.
+     * @return bytes sent by unit
+     */
+    public Map<String,Integer> sendSystemCmd(String msg, int... cdata) {
+        return all(msg,u -> u.usb.sendSystemCmd(msg,cdata));
+    }
+
+    public List<Metrics> metrics() {
+        return units.stream().map(Unit::metrics).toList();
+    }
+
+    public Metrics totals() {
+        return metrics().stream().reduce(new Metrics("total",0,0,0,0,0,0,0,0),Metrics::plus);
+    }
+
+    /**
+     * Stop the read threads and workers and release every unit.
+     */
+    @Override
+    public void close() {
+        for (Unit u : units) {
+            u.readThread.go.set(false);
+        }
+        for (Unit u : units) {
+            try {
+                if (u.readThread.thread.isAlive()) { u.readThread.thread.join(); }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            u.worker.shutdown();
+            u.device.close();
+            u.usb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package g2lib.state;
+
+import g2lib.Util;
+import g2lib.usb.CommandScheduler;
+import g2lib.usb.MessageBus;
+import g2lib.usb.UsbReadThread;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Patch and performance entry lists saved per device, so a start can show
+ * the browser without waiting for the banks to be scanned. The G2 keeps no
+ * counter for its banks (the {@code Q_VERSION_CNT} counters follow slot
+ * loads, not stores), so saved lists are served at once and checked by a
+ * background read, which replaces them if the banks changed. While connected,
+ * {@link #watch} drops them as soon as the device announces a store or clear.
+ */
+public class EntryCache {
+
+    /**
+     * @param device {@code SynthSettings.DeviceName}
+     */
+    public record Stamp(String device) { }
+
+    public record Lists(Stamp stamp, EntryGrid patches, EntryGrid perfs) { }
+
+    public interface Fetch {
+        Lists fetch(Stamp stamp) throws Exception;
+    }
+
+    /**
+     * @param cached lists from disk, possibly stale, or null
+     * @param current lists as read from the device
+     */
+    public record Warm(Lists cached, CompletableFuture<Lists> current) {
+        /**
+         * Cached lists if any, else wait for the device.
+         */
+        public Lists now() {
+            return cached != null ? cached : current.join();
+        }
+    }
+
+    /** bank change messages, numbered as the store and clear commands: {@code 01 0c 00 type bank item} */
+    public static final int S_STORE = 0x18;
+    public static final int S_CLEAR = 0x19;
+
+    private static final int MAGIC = 0x47324543;
+    private static final int VERSION = 2;
+
+    private final Logger log = Util.getLogger(EntryCache.class);
+    private final Path dir;
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong stale = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+    public final AtomicLong fetches = new AtomicLong();
+    public final AtomicLong invalidations = new AtomicLong();
+
+    /** bumped by {@link #invalidate} */
+    private long generation;
+
+    public EntryCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path path(String device) {
+        return dir.resolve(device.replaceAll("[^A-Za-z0-9._-]","_") + ".entries");
+    }
+
+    /**
+     * Lists for the device of {@code stamp}: whatever is on disk straight
+     * away, and the current lists, read with {@code fetch} on {@code executor}
+     * and saved if the disk copy is missing or differs, unless the lists were
+     * invalidated while being read.
+     */
+    public Warm open(Stamp stamp, Fetch fetch, Executor executor) {
+        Lists cached = load(stamp.device());
+        (cached == null ? misses : hits).incrementAndGet();
+        return new Warm(cached,CompletableFuture.supplyAsync(() -> {
+            try {
+                long gen = generation();
+                Lists lists = fetch.fetch(stamp);
+                fetches.incrementAndGet();
+                if (cached == null || !same(cached,lists)) {
+                    if (cached != null) { stale.incrementAndGet(); }
+                    store(lists,gen);
+                }
+                return lists;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        },executor));
+    }
+
+    private static boolean same(Lists a, Lists b) {
+        return a.patches().entries().equals(b.patches().entries()) && a.perfs().entries().equals(b.perfs().entries());
+    }
+
+    /**
+     * Invalidate the lists of {@code device} whenever it announces a bank change on {@code bus}.
+     */
+    public List<MessageBus.Subscription> watch(MessageBus bus, String device) {
+        List<MessageBus.Subscription> ss = new ArrayList<>();
+        for (int type : new int[] {S_STORE,S_CLEAR}) {
+            ss.add(bus.subscribeSystem(type,(m,data) -> {
+                invalidate(device);
+                invalidations.incrementAndGet();
+                log.info(String.format("Bank change on %s at %d:%d, entry lists invalidated",
+                        device,Util.b2i(data.get(4)),Util.b2i(data.get(5))));
+            }));
+        }
+        return ss;
+    }
+
+    /**
+     * Read both lists from the device as background commands, each to its
+     * end; an incomplete list fails the fetch rather than being saved.
+     */
+    public static Fetch fetch(CommandScheduler scheduler, UsbReadThread readThread) {
+        return stamp -> {
+            EntryGrid patches = EntryGrid.patches();
+            EntryGrid perfs = EntryGrid.perfs();
+            if (!Device.readEntryList(scheduler,readThread,true,patches)
+                    || !Device.readEntryList(scheduler,readThread,false,perfs)) {
+                throw new RuntimeException("Entry list incomplete for " + stamp.device());
+            }
+            return new Lists(stamp,patches,perfs);
+        };
+    }
+
+    public synchronized void invalidate(String device) {
+        generation++;
+        try {
+            Files.deleteIfExists(path(device));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Store only if nothing was invalidated since {@code gen}: the lists may predate the change.
+     */
+    private synchronized void store(Lists lists, long gen) {
+        if (gen != generation) {
+            log.info("Entry lists invalidated while reading, not saved: " + lists.stamp().device());
+            return;
+        }
+        store(lists);
+    }
+
+    /**
+     * @return saved lists, or null if there are none or they can't be read
+     */
+    public Lists load(String device) {
+        Path p = path(device);
+        if (!Files.exists(p)) { return null; }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(p))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warning("Not an entry cache file, ignoring: " + p);
+                return null;
+            }
+            String name = in.readUTF();
+            EntryGrid patches = readGrid(in);
+            EntryGrid perfs = readGrid(in);
+            return new Lists(new Stamp(name),patches,perfs);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warning("Unreadable entry cache " + p + ": " + e);
+            return null;
+        }
+    }
+
+    private static EntryGrid readGrid(DataInputStream in) throws IOException {
+        EntryGrid g = new EntryGrid(in.readUnsignedByte());
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            g.accept(new BankEntry(in.readUnsignedByte(),in.readUnsignedByte(),in.readUTF(),in.readUnsignedByte()));
+        }
+        return g;
+    }
+
+    /**
+     * Write through a temporary file, so readers never see a partial file.
+     */
+    public void store(Lists lists) {
+        Stamp s = lists.stamp();
+        Path p = path(s.device());
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir,p.getFileName().toString(),".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(s.device());
+                writeGrid(out,lists.patches());
+                writeGrid(out,lists.perfs());
+            }
+            Files.move(tmp,p,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write entry cache " + p,e);
+        }
+        log.info(String.format("Saved %d patch and %d perf entries for %s",
+                lists.patches().size(),lists.perfs().size(),s.device()));
+    }
+
+    private static void writeGrid(DataOutputStream out, EntryGrid g) throws IOException {
+        List<BankEntry> es = g.entries();
+        out.writeByte(g.banks());
+        out.writeInt(es.size());
+        for (BankEntry e : es) {
+            out.writeByte(e.bank());
+            out.writeByte(e.item());
+            out.writeUTF(e.name());
+            out.writeByte(e.category());
+        }
+    }
+}
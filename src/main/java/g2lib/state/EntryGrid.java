@@ -0,0 +1,130 @@
+package g2lib.state;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Bank entry names for all locations, as flat arrays over a shared name pool:
+ * for the 32 x 128 patch grid that is two small arrays instead of thousands
+ * of boxed map entries, and repeated names ("Init", "No name") are stored once.
+ * Accepts entries as they are read, so it can be filled by
+ * {@link Device#readEntryList(g2lib.usb.Usb, g2lib.usb.UsbReadThread, boolean, Consumer)}
+ * while readers look at it.
+ */
+public class EntryGrid implements Consumer<BankEntry> {
+
+    public static final int BANK_SIZE = 128;
+    public static final int PATCH_BANKS = 32;
+    public static final int PERF_BANKS = 8;
+
+    private final int banks;
+    private final int[] names;
+    private final byte[] categories;
+    private final List<String> pool = new ArrayList<>();
+    private final Map<String,Integer> poolIndex = new HashMap<>();
+    private int size;
+
+    public EntryGrid(int banks) {
+        this.banks = banks;
+        names = new int[banks * BANK_SIZE];
+        categories = new byte[banks * BANK_SIZE];
+        Arrays.fill(names,-1);
+    }
+
+    public static EntryGrid patches() {
+        return new EntryGrid(PATCH_BANKS);
+    }
+
+    public static EntryGrid perfs() {
+        return new EntryGrid(PERF_BANKS);
+    }
+
+    private int index(int bank, int item) {
+        if (bank < 0 || bank >= banks || item < 0 || item >= BANK_SIZE) {
+            throw new IllegalArgumentException(String.format("Invalid location: %d:%d",bank,item));
+        }
+        return bank * BANK_SIZE + item;
+    }
+
+    @Override
+    public synchronized void accept(BankEntry e) {
+        int i = index(e.bank(),e.item());
+        if (names[i] == -1) { size++; }
+        names[i] = poolIndex.computeIfAbsent(e.name(),n -> {
+            pool.add(n);
+            return pool.size() - 1;
+        });
+        categories[i] = (byte) e.category();
+    }
+
+    public synchronized void clear(int bank, int item) {
+        int i = index(bank,item);
+        if (names[i] != -1) { size--; }
+        names[i] = -1;
+        categories[i] = 0;
+    }
+
+    /**
+     * @return the entry, or null if the location is empty
+     */
+    public synchronized BankEntry get(int bank, int item) {
+        int i = index(bank,item);
+        return names[i] == -1 ? null : new BankEntry(bank,item,pool.get(names[i]),Byte.toUnsignedInt(categories[i]));
+    }
+
+    public synchronized String name(int bank, int item) {
+        int i = index(bank,item);
+        return names[i] == -1 ? null : pool.get(names[i]);
+    }
+
+    public int banks() {
+        return banks;
+    }
+
+    /**
+     * Occupied locations.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Distinct names.
+     */
+    public synchronized int poolSize() {
+        return pool.size();
+    }
+
+    public synchronized List<BankEntry> bank(int bank) {
+        List<BankEntry> es = new ArrayList<>();
+        for (int item = 0; item < BANK_SIZE; item++) {
+            BankEntry e = get(bank,item);
+            if (e != null) { es.add(e); }
+        }
+        return es;
+    }
+
+    public synchronized List<BankEntry> entries() {
+        List<BankEntry> es = new ArrayList<>(size);
+        for (int b = 0; b < banks; b++) {
+            es.addAll(bank(b));
+        }
+        return es;
+    }
+
+    /**
+     * Names by bank and item, as returned by {@link Device#readEntryList(g2lib.usb.Usb, g2lib.usb.UsbReadThread, boolean)}.
+     */
+    public synchronized Map<Integer,Map<Integer,String>> toMap() {
+        Map<Integer,Map<Integer,String>> m = new TreeMap<>();
+        for (BankEntry e : entries()) {
+            m.computeIfAbsent(e.bank(),b -> new TreeMap<>()).put(e.item(),e.name());
+        }
+        return m;
+    }
+}
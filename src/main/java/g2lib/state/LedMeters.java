@@ -0,0 +1,210 @@
+package g2lib.state;
+
+import g2lib.BitBuffer;
+import g2lib.usb.UsbMessage;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decoder for the LED ({@code 01 0s 00 39}) and volume meter ({@code 01 0s 00 3a})
+ * streams of each slot, s = 8 + slot. LED frames are a reserved byte followed by
+ * 2 bits per LED; meter frames are 16 bits per meter, both in the order set by
+ * {@link #setLayout}. Frames decode into preallocated arrays indexed by slot and
+ * module index without allocating; each meter also keeps a ring of its last
+ * {@link #history} values.
+ * <p>
+ * {@link #decode} must be called from a single thread (the USB read thread).
+ * Readers on other threads use a per-slot seqlock and never block the decoder.
+ */
+public final class LedMeters {
+
+    public static final int LED_DATA = 0x39;
+    public static final int VOLUME_DATA = 0x3a;
+    public static final int SLOTS = 4;
+    public static final int MAX_MODULES = 256;
+    public static final int MAX_PER_MODULE = 8;
+
+    private record Layout(int[] ledTargets, int[] meterTargets, int[] meterIndex, int[] history) { }
+
+    private final int history;
+    private final byte[][] leds = new byte[SLOTS][MAX_MODULES * MAX_PER_MODULE];
+    private final int[][] meters = new int[SLOTS][MAX_MODULES * MAX_PER_MODULE];
+    private final long[] frames = new long[SLOTS];
+    private final AtomicLongArray seq = new AtomicLongArray(SLOTS);
+    private final AtomicReferenceArray<Layout> layouts = new AtomicReferenceArray<>(SLOTS);
+    // decode thread only; grown for larger frames, never shrunk
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private BitBuffer bits = new BitBuffer(scratch);
+
+    public LedMeters() {
+        this(64);
+    }
+
+    /**
+     * @param history meter values kept per meter, rounded up to a power of two.
+     */
+    public LedMeters(int history) {
+        this.history = Math.max(1,Integer.highestOneBit(history - 1) << 1);
+        for (int s = 0; s < SLOTS; s++) {
+            setLayout(s,new int[0],new int[0]);
+        }
+    }
+
+    public int history() {
+        return history;
+    }
+
+    /**
+     * Set the stream order for a slot from its patch: one entry per LED (meter),
+     * giving its module index; modules with several LEDs (meters) appear once per LED,
+     * consecutively.
+     */
+    public void setLayout(int slot, int[] ledModules, int[] meterModules) {
+        int[] meterIndex = new int[MAX_MODULES * MAX_PER_MODULE];
+        Arrays.fill(meterIndex,-1);
+        int[] meterTargets = targets(meterModules);
+        for (int i = 0; i < meterTargets.length; i++) {
+            meterIndex[meterTargets[i]] = i;
+        }
+        layouts.set(slot,new Layout(targets(ledModules),meterTargets,meterIndex,new int[meterTargets.length * history]));
+    }
+
+    private static int[] targets(int[] modules) {
+        int[] ts = new int[modules.length];
+        for (int i = 0; i < modules.length; i++) {
+            int m = modules[i];
+            if (m < 0 || m >= MAX_MODULES) {
+                throw new IllegalArgumentException("Invalid module index: " + m);
+            }
+            int k = 0;
+            while (i - k > 0 && modules[i - k - 1] == m) { k++; }
+            if (k >= MAX_PER_MODULE) {
+                throw new IllegalArgumentException("Too many entries for module: " + m);
+            }
+            ts[i] = m * MAX_PER_MODULE + k;
+        }
+        return ts;
+    }
+
+    /**
+     * Decode an LED or meter frame and release the message.
+     * @return false, without touching the message, if it is not one.
+     */
+    public boolean decode(UsbMessage m) {
+        ByteBuffer b = m.buffer();
+        if (b == null) { return false; }
+        int start = m.dataStart();
+        int end = m.dataEnd();
+        if (end - start < 4 || end > b.limit() || b.get(start) != 0x01) { return false; }
+        int slot = b.get(start + 1) - 0x08;
+        int type = b.get(start + 3);
+        if (slot < 0 || slot >= SLOTS || (type != LED_DATA && type != VOLUME_DATA)) { return false; }
+        int len = end - start - 4;
+        if (len > scratch.capacity()) {
+            scratch = ByteBuffer.allocate(Integer.highestOneBit(len - 1) << 1);
+            bits = new BitBuffer(scratch);
+        }
+        scratch.limit(scratch.capacity());
+        scratch.put(0,b,start + 4,len);
+        bits.reset(len);
+        Layout l = layouts.get(slot);
+
+        seq.incrementAndGet(slot);
+        VarHandle.storeStoreFence();
+        if (type == LED_DATA) {
+            decodeLeds(l,leds[slot]);
+        } else {
+            decodeMeters(l,meters[slot],frames[slot]);
+            frames[slot]++;
+        }
+        seq.incrementAndGet(slot);
+        m.release();
+        return true;
+    }
+
+    private void decodeLeds(Layout l, byte[] dst) {
+        if (bits.getBitsRemaining() < 8) { return; }
+        bits.get(8); // reserved
+        int[] ts = l.ledTargets;
+        for (int i = 0; i < ts.length && bits.getBitsRemaining() >= 2; i++) {
+            dst[ts[i]] = (byte) bits.get(2);
+        }
+    }
+
+    private void decodeMeters(Layout l, int[] dst, long frame) {
+        int[] ts = l.meterTargets;
+        int h = (int) (frame & (history - 1));
+        for (int i = 0; i < ts.length && bits.getBitsRemaining() >= 16; i++) {
+            int v = bits.get(16);
+            dst[ts[i]] = v;
+            l.history[i * history + h] = v;
+        }
+    }
+
+    public int led(int slot, int module, int k) {
+        return leds[slot][module * MAX_PER_MODULE + k];
+    }
+
+    public int meter(int slot, int module, int k) {
+        return meters[slot][module * MAX_PER_MODULE + k];
+    }
+
+    /**
+     * Meter frames decoded for a slot.
+     */
+    public long frames(int slot) {
+        return frames[slot];
+    }
+
+    /**
+     * Consistent copy of a slot's current meter values in layout order.
+     * @return number of values copied
+     */
+    public int sampleMeters(int slot, int[] dst) {
+        while (true) {
+            long s = seq.get(slot);
+            Layout l = layouts.get(slot);
+            int n = Math.min(dst.length,l.meterTargets.length);
+            if ((s & 1) == 0) {
+                int[] ms = meters[slot];
+                for (int i = 0; i < n; i++) {
+                    dst[i] = ms[l.meterTargets[i]];
+                }
+                VarHandle.loadLoadFence();
+                if (seq.get(slot) == s) {
+                    return n;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Consistent copy of one meter's recent values, oldest first.
+     * @return number of values copied, or -1 if the meter is not in the layout
+     */
+    public int meterHistory(int slot, int module, int k, int[] dst) {
+        while (true) {
+            long s = seq.get(slot);
+            Layout l = layouts.get(slot);
+            int i = l.meterIndex[module * MAX_PER_MODULE + k];
+            if (i < 0) { return -1; }
+            if ((s & 1) == 0) {
+                long f = frames[slot];
+                int n = (int) Math.min(Math.min(f,history),dst.length);
+                for (int j = 0; j < n; j++) {
+                    dst[j] = l.history[i * history + (int) ((f - n + j) & (history - 1))];
+                }
+                VarHandle.loadLoadFence();
+                if (seq.get(slot) == s) {
+                    return n;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package g2lib.state;
+
+import g2lib.CRC16;
+import g2lib.Util;
+import g2lib.usb.Pipeline;
+import g2lib.usb.UsbMessage;
+import g2lib.usb.UsbReadThread;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a directory of {@code .pch2} files in step with the patch banks.
+ * The manifest records name, category and file CRC per location; a sync
+ * downloads only locations whose list entry differs from the manifest or
+ * whose file is missing or does not match its CRC, and deletes files for
+ * locations that are now empty. Nothing is deleted unless the list was read
+ * to its end: a location missing from a partial list may still be taken.
+ * <p>
+ * Downloads go four at a time: retrieve into slots 0-3, then patch, current
+ * note and text pad requests for all four, pipelined. That replaces the
+ * patches loaded in the slots, unsaved edits included, so downloads are only
+ * made if the mirror was created with {@code replaceSlots}. Each file is moved into place before its manifest
+ * line is appended, so an interrupted sync resumes where it stopped.
+ * A patch changed in place under the same name and category is not noticed.
+ */
+public class Mirror {
+
+    public static final String MANIFEST = "mirror.txt";
+
+    /**
+     * A manifest line: {@code bank item category crc name}, or {@code bank item -} for a deleted location.
+     */
+    public record Item(int bank, int item, String name, int category, int crc) {
+        String line() {
+            return name == null ? String.format("%d %d -",bank,item)
+                    : String.format("%d %d %d %04x %s",bank,item,category,crc,name);
+        }
+    }
+
+    private final Logger log = Util.getLogger(Mirror.class);
+
+    private final UsbReadThread readThread;
+    private final Device device;
+    private final Path dir;
+    private final boolean replaceSlots;
+
+    public final AtomicLong downloaded = new AtomicLong();
+    public final AtomicLong unchanged = new AtomicLong();
+    public final AtomicLong deleted = new AtomicLong();
+
+    /**
+     * @param replaceSlots confirms that slots 0-3 may be overwritten by downloads
+     */
+    public Mirror(UsbReadThread readThread, Device device, Path dir, boolean replaceSlots) {
+        this.readThread = readThread;
+        this.device = device;
+        this.dir = dir;
+        this.replaceSlots = replaceSlots;
+    }
+
+    private static int key(int bank, int item) {
+        return bank * EntryGrid.BANK_SIZE + item;
+    }
+
+    /**
+     * File for an entry: one directory per bank, locations numbered from 1 as on the G2.
+     */
+    public Path file(int bank, int item, String name) {
+        return dir.resolve(String.format("%02d",bank + 1))
+                .resolve(String.format("%03d %s.pch2",item + 1,name.replaceAll("[^A-Za-z0-9 ._-]","_")));
+    }
+
+    /**
+     * @return the last line for each location, deleted ones left out
+     */
+    public Map<Integer,Item> manifest() {
+        Map<Integer,Item> items = new TreeMap<>();
+        Path p = dir.resolve(MANIFEST);
+        if (!Files.exists(p)) { return items; }
+        try {
+            for (String l : Files.readAllLines(p,StandardCharsets.UTF_8)) {
+                String[] fs = l.split(" ",5);
+                if (fs.length == 3 && fs[2].equals("-")) {
+                    items.remove(key(Integer.parseInt(fs[0]),Integer.parseInt(fs[1])));
+                } else if (fs.length == 5) {
+                    Item i = new Item(Integer.parseInt(fs[0]),Integer.parseInt(fs[1]),fs[4],
+                            Integer.parseInt(fs[2]),Integer.parseInt(fs[3],16));
+                    items.put(key(i.bank(),i.item()),i);
+                } else {
+                    log.warning("Bad manifest line, ignoring: " + l);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Corrupt manifest " + p,e);
+        }
+        return items;
+    }
+
+    private boolean current(BankEntry e, Item i) {
+        if (i == null || !i.name().equals(e.name()) || i.category() != e.category()) { return false; }
+        Path f = file(e.bank(),e.item(),e.name());
+        try {
+            return Files.exists(f) && CRC16.crc16(Files.readAllBytes(f)) == i.crc();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the patch entry list, in the background of the device's scheduler, and sync to it.
+     * @return locations downloaded
+     * @throws IllegalStateException if there is something to download and slots may not be replaced
+     */
+    public int sync() throws Exception {
+        EntryGrid grid = EntryGrid.patches();
+        boolean complete = Device.readEntryList(device.scheduler(),readThread,true,grid);
+        return sync(grid,complete);
+    }
+
+    /**
+     * Sync to the patch list read by a cache refresh, once it is done: a
+     * second list read running at the same time would take its responses.
+     * @return locations downloaded
+     */
+    public int sync(EntryCache.Warm warm) throws Exception {
+        return sync(warm.current().join().patches());
+    }
+
+    /**
+     * @param grid all of the device's patch entries, e.g. from {@link EntryCache}
+     * @return locations downloaded
+     */
+    public int sync(EntryGrid grid) throws Exception {
+        return sync(grid,true);
+    }
+
+    /**
+     * @param grid the device's patch entries
+     * @param complete whether {@code grid} holds the whole list; if not, no files are deleted
+     * @return locations downloaded
+     */
+    public int sync(EntryGrid grid, boolean complete) throws Exception {
+        Files.createDirectories(dir);
+        try (Stream<Path> tmps = Files.walk(dir)) {
+            for (Path t : tmps.filter(p -> p.toString().endsWith(".tmp")).toList()) {
+                Files.delete(t);
+            }
+        }
+        Map<Integer,Item> manifest = manifest();
+        List<BankEntry> todo = new ArrayList<>();
+        for (BankEntry e : grid.entries()) {
+            if (current(e,manifest.get(key(e.bank(),e.item())))) {
+                unchanged.incrementAndGet();
+            } else {
+                todo.add(e);
+            }
+        }
+        if (!todo.isEmpty()) {
+            if (!replaceSlots) {
+                throw new IllegalStateException(String.format(
+                        "Mirror %s: %d locations to download, which replaces the patches in slots 0-3; not confirmed",
+                        dir,todo.size()));
+            }
+            log.warning(String.format("Mirror %s: replacing the patches in slots 0-3 to download %d locations",
+                    dir,todo.size()));
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(MANIFEST),StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,StandardOpenOption.APPEND)) {
+            if (complete) {
+                for (Item i : manifest.values()) {
+                    if (grid.get(i.bank(),i.item()) == null) {
+                        Files.deleteIfExists(file(i.bank(),i.item(),i.name()));
+                        append(out,new Item(i.bank(),i.item(),null,0,0));
+                        deleted.incrementAndGet();
+                    }
+                }
+            } else {
+                log.warning(String.format("Mirror %s: entry list incomplete, not deleting",dir));
+            }
+            for (int b = 0; b < todo.size(); b += 4) {
+                download(todo.subList(b,Math.min(b + 4,todo.size())),manifest,out);
+            }
+        }
+        compact();
+        log.info(String.format("Mirror %s: %d downloaded, %d unchanged, %d deleted",
+                dir,todo.size(),unchanged.get(),deleted.get()));
+        return todo.size();
+    }
+
+    private void download(List<BankEntry> batch, Map<Integer,Item> manifest, BufferedWriter out) throws Exception {
+        Pipeline pipeline = device.pipeline();
+        List<CompletableFuture<UsbMessage>> retrieved = new ArrayList<>();
+        for (int slot = 0; slot < batch.size(); slot++) {
+            BankEntry e = batch.get(slot);
+            retrieved.add(pipeline.sendSystemCmd("retrieve " + e.bank() + ":" + e.item()
+                    , m -> m.head(0x62, 0x01, 0x0c, 0x00, 0x7f)
+                    , 0x17 // S_RETRIEVE
+                    , slot, e.bank(), e.item()));
+        }
+        retrieved.forEach(f -> f.join().release());
+        List<Integer> versions = device.readVersions();
+        List<CompletableFuture<Patch>> patches = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            int slot = i;
+            int version = versions.get(slot);
+            CompletableFuture<UsbMessage> patch = pipeline.sendSlotCmd(slot, version, "slot " + slot + " patch"
+                    , m -> m.head(0x01, 0x08 + slot, version, 0x21)
+                    , 0x3c // Q_PATCH
+            );
+            CompletableFuture<UsbMessage> note = pipeline.sendSlotCmd(slot, version, "slot " + slot + " note"
+                    , m -> m.head(0x01, 0x08 + slot, version, 0x69)
+                    , 0x68 // Q_CURRENT_NOTE
+            );
+            CompletableFuture<UsbMessage> text = pipeline.sendSlotCmd(slot, version, "slot " + slot + " text"
+                    , m -> m.head(0x01, 0x08 + slot, version, 0x6f)
+                    , 0x6e // Q_PATCH_TEXT
+            );
+            patches.add(CompletableFuture.allOf(patch, note, text).thenApply(v -> {
+                UsbMessage pm = patch.join(), nm = note.join(), tm = text.join();
+                try {
+                    Patch p = Patch.readFromMessage(pm.buffer().rewind());
+                    p.readSection(nm.buffer().position(3), Patch.Sections.SCurrentNote);
+                    p.readSection(tm.buffer().position(3), Patch.Sections.STextPad);
+                    return p;
+                } catch (Exception ex) {
+                    throw new RuntimeException("Unable to read patch from slot " + slot, ex);
+                } finally {
+                    pm.release();
+                    nm.release();
+                    tm.release();
+                }
+            }));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            BankEntry e = batch.get(i);
+            Patch p = patches.get(i).join();
+            p.version = 0; // file format version, not the slot's
+            ByteBuffer buf = p.writeFile();
+            byte[] bs = new byte[buf.limit()];
+            buf.get(0,bs);
+            Path f = file(e.bank(),e.item(),e.name());
+            Files.createDirectories(f.getParent());
+            Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+            Files.write(tmp,bs);
+            Files.move(tmp,f,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            Item old = manifest.get(key(e.bank(),e.item()));
+            if (old != null && !old.name().equals(e.name())) {
+                Files.deleteIfExists(file(old.bank(),old.item(),old.name()));
+            }
+            append(out,new Item(e.bank(),e.item(),e.name(),e.category(),CRC16.crc16(bs)));
+            downloaded.incrementAndGet();
+        }
+    }
+
+    private static void append(BufferedWriter out, Item i) throws IOException {
+        out.write(i.line());
+        out.newLine();
+        out.flush();
+    }
+
+    /**
+     * Rewrite the manifest with one line per location.
+     */
+    private void compact() throws IOException {
+        Path p = dir.resolve(MANIFEST);
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        Files.write(tmp,manifest().values().stream().map(Item::line).toList(),StandardCharsets.UTF_8);
+        Files.move(tmp,p,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+}
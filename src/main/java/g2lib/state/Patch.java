@@ -3,11 +3,11 @@ package g2lib.state;
 import g2lib.BitBuffer;
 import g2lib.CRC16;
 import g2lib.Util;
-import g2lib.protocol.FieldValue;
 import g2lib.protocol.FieldValues;
 import g2lib.protocol.Fields;
 
 import java.nio.ByteBuffer;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -77,6 +77,10 @@ public class Patch {
             this.location = null;
         }
 
+        public Fields fields() {
+            return fields;
+        }
+
         @Override
         public String toString() {
             return String.format("%s[%x%s]",
@@ -108,6 +112,7 @@ public class Patch {
     };
 
     public final LinkedHashMap<Sections,Section> sections = new LinkedHashMap<>();
+    private final EnumMap<Sections,ByteBuffer> raw = new EnumMap<>(Sections.class);
     public String text;
     public String name;
     public int slot = -1;
@@ -162,7 +167,18 @@ public class Patch {
     }
 
     public static Patch readFromFile(String filePath) throws Exception {
-        ByteBuffer fileBuffer = Util.readFile(filePath);
+        return readFromFile(filePath,false);
+    }
+
+    /**
+     * @param lazy if true, only record section extents; sections are decoded
+     *             on first {@link #getSection} and written back verbatim until then.
+     */
+    public static Patch readFromFile(String filePath, boolean lazy) throws Exception {
+        return readFromFile(Util.readFile(filePath),filePath,lazy);
+    }
+
+    public static Patch readFromFile(ByteBuffer fileBuffer, String filePath, boolean lazy) throws Exception {
         withSliceAhead(fileBuffer,HEADER.limit(),buf -> {
             if (!HEADER.rewind().equals(buf.rewind())) {
                 throw new RuntimeException("Unexpected file header: " + Util.dumpBufferString(buf));
@@ -178,7 +194,11 @@ public class Patch {
         patch.version = fileBuffer.get();
 
         for (Sections ss : FILE_SECTIONS) {
-            patch.readSection(fileBuffer,ss);
+            if (lazy) {
+                patch.skipSection(fileBuffer,ss);
+            } else {
+                patch.readSection(fileBuffer,ss);
+            }
         }
 
         int fcrc = Util.getShort(fileBuffer);
@@ -191,30 +211,36 @@ public class Patch {
 
 
     public static BitBuffer sliceSection(int type, ByteBuffer buf) {
+        return new BitBuffer(sliceSectionBuffer(type,buf));
+    }
+
+    public static ByteBuffer sliceSectionBuffer(int type, ByteBuffer buf) {
         int t = buf.get();
         if (t != type) {
             throw new IllegalArgumentException(String.format("Section incorrect %x %x",type,t));
         }
-        return BitBuffer.sliceAhead(buf,Util.getShort(buf));
+        return Util.sliceAhead(buf,Util.getShort(buf));
     }
 
     public void writeSection(ByteBuffer buf, Sections s) throws  Exception {
-        Section ss = getSection(s);
-        if (ss == null) {
+        if (!sections.containsKey(s) && !raw.containsKey(s)) {
             throw new IllegalArgumentException("No section in patch: " + s);
         }
+        buf.put((byte) s.type);
+        ByteBuffer r = raw.get(s);
+        if (r != null && !sections.containsKey(s)) {
+            Util.putShort(buf,r.limit());
+            buf.put(r.duplicate().rewind());
+            return;
+        }
         BitBuffer bb = new BitBuffer(1024);
         if (s.location != null) {
             bb.put(2,s.location);
         }
-        FieldValues fvs = ss.values;
-        for (FieldValue fv : fvs.values) {
-            fv.write(bb);
-        }
+        s.fields.codec().write(bb,sections.get(s).values);
         ByteBuffer bbuf = bb.toBuffer();
 //        log.info(String.format("Wrote: %s, len=%x, crc=%x: %s\n",s,bb.limit(),CRC16.crc16(bbuf),Util.dumpBufferString(bbuf)));
 
-        buf.put((byte) s.type);
         Util.putShort(buf,bbuf.limit());
         bbuf.rewind();
         while(bbuf.hasRemaining()) {
@@ -264,7 +290,18 @@ public class Patch {
     }
 
     public void readSection(ByteBuffer buf, Sections s) throws Exception {
-        BitBuffer bb = sliceSection(s.type,buf);
+        decodeSection(sliceSection(s.type,buf),s);
+    }
+
+    /**
+     * Record the extent of the next section without decoding it.
+     */
+    public void skipSection(ByteBuffer buf, Sections s) {
+        raw.put(s,sliceSectionBuffer(s.type,buf));
+        sections.remove(s);
+    }
+
+    private Section decodeSection(BitBuffer bb, Sections s) {
         //log.info(s + ": length " + bb.limit());
         if (s.location != null) {
             Integer loc = bb.get(2);
@@ -272,11 +309,13 @@ public class Patch {
                 throw new IllegalArgumentException(String.format("Bad location: %x, %s",loc,s));
             }
         }
-        FieldValues fvs = s.fields.read(bb);
+        FieldValues fvs = s.fields.codec().readColumnar(bb);
 //        log.info(String.format("Read: %s, len=%x, crc=%x: %s\n",s,bb.limit(),CRC16.crc16(bb.toBuffer()),
 //                Util.dumpBufferString(bb.toBuffer())));
 
-        sections.put(s,new Section(s,fvs));
+        Section section = new Section(s,fvs);
+        sections.put(s,section);
+        return section;
     }
 
     public void readSectionMessage(ByteBuffer buf, Sections s) throws Exception {
@@ -284,8 +323,30 @@ public class Patch {
         readSection(buf,s);
     }
 
+    /**
+     * Get a section, decoding it now if it was skipped at read time.
+     */
     public Section getSection(Sections key) {
-        return sections.get(key);
+        Section s = sections.get(key);
+        if (s == null) {
+            ByteBuffer r = raw.get(key);
+            if (r != null) {
+                s = decodeSection(new BitBuffer(r.duplicate().rewind()),key);
+            }
+        }
+        return s;
+    }
+
+    public boolean isDecoded(Sections key) {
+        return sections.containsKey(key);
+    }
+
+    /**
+     * Undecoded section body as read, including location bits; null if absent or not recorded.
+     */
+    public ByteBuffer rawSection(Sections key) {
+        ByteBuffer r = raw.get(key);
+        return r == null ? null : r.asReadOnlyBuffer().rewind();
     }
 
 
@@ -8,4 +8,8 @@ public class Performance {
     public Performance(byte version) {
         this.version = Util.b2i(version);
     }
+
+    public int version() {
+        return version;
+    }
 }
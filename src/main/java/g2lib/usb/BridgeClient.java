@@ -0,0 +1,210 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static g2lib.usb.BridgeServer.*;
+
+/**
+ * A G2 served by a {@link BridgeServer}, as a local transport: sends wait for
+ * the server's result; interrupt and bulk reads take the responses to this
+ * client's requests and the device's unsolicited messages, in the order the
+ * server read them.
+ * Losing the server looks like losing the device ({@code ERROR_NO_DEVICE}).
+ */
+public final class BridgeClient implements UsbTransport {
+
+    /** queued when the connection ends, to wake reads waiting without a timeout */
+    private static final byte[] CLOSED = new byte[0];
+
+    private final Logger log = Util.getLogger(BridgeClient.class);
+
+    private final SocketChannel channel;
+    private final LinkedBlockingQueue<byte[]> interrupts = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<byte[]> bulks = new LinkedBlockingQueue<>();
+    private final ArrayDeque<CompletableFuture<ByteBuffer>> acks = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<ByteBuffer>> pongs = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /** send to result, microseconds */
+    public final Histogram roundTrip = new Histogram();
+    /** bridge only, without the device: {@link #ping()} times in microseconds */
+    public final Histogram pings = new Histogram();
+    public final AtomicLong framesIn = new AtomicLong();
+
+    public BridgeClient(InetSocketAddress server) {
+        try {
+            channel = SocketChannel.open(server);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY,true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to connect to bridge " + server,e);
+        }
+        thread = new Thread(this::run,"BridgeClient");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        ByteBuffer in = ByteBuffer.allocate(MAX_FRAME + 4);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int len = in.getInt(in.position());
+                    if (len < 1 || len > MAX_FRAME) {
+                        throw new IOException("bad frame length " + len);
+                    }
+                    if (in.remaining() < 4 + len) { break; }
+                    in.position(in.position() + 4);
+                    byte type = in.get();
+                    byte[] payload = new byte[len - 1];
+                    in.get(payload);
+                    framesIn.incrementAndGet();
+                    switch (type) {
+                        case INTERRUPT -> interrupts.add(payload);
+                        case BULK -> bulks.add(payload);
+                        case ACK -> complete(acks,payload);
+                        case PONG -> complete(pongs,payload);
+                        default -> log.warning("Unknown frame type from bridge: " + type);
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException e) {
+            if (!closed) { log.warning("bridge connection failed: " + e); }
+        } finally {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            synchronized (this) {
+                acks.forEach(f -> f.completeExceptionally(new IOException("bridge closed")));
+                pongs.forEach(f -> f.completeExceptionally(new IOException("bridge closed")));
+            }
+            interrupts.add(CLOSED);
+            bulks.add(CLOSED);
+        }
+    }
+
+    private synchronized void complete(ArrayDeque<CompletableFuture<ByteBuffer>> q, byte[] payload) {
+        CompletableFuture<ByteBuffer> f = q.poll();
+        if (f != null) { f.complete(ByteBuffer.wrap(payload)); }
+    }
+
+    /**
+     * Queue the reply future and write the frame, in the same order for all threads.
+     */
+    private synchronized CompletableFuture<ByteBuffer> request(ArrayDeque<CompletableFuture<ByteBuffer>> q,
+                                                               ByteBuffer frame) throws IOException {
+        CompletableFuture<ByteBuffer> f = new CompletableFuture<>();
+        if (closed) { throw new IOException("bridge closed"); }
+        q.add(f);
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        return f;
+    }
+
+    /**
+     * @param timeout milliseconds; 0 waits forever, as in libusb
+     */
+    @Override
+    public int sendBulk(ByteBuffer data, int timeout) {
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<ByteBuffer> f = request(acks,frame(SEND,data,data.capacity()));
+            ByteBuffer r = timeout > 0 ? f.get(timeout,TimeUnit.MILLISECONDS) : f.get();
+            roundTrip.record((System.nanoTime() - start) / 1000);
+            return r.getInt(0);
+        } catch (TimeoutException e) {
+            roundTrip.timeouts.incrementAndGet();
+            return -7; // ERROR_TIMEOUT
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -10; // ERROR_INTERRUPTED
+        } catch (IOException | ExecutionException e) {
+            return -4; // ERROR_NO_DEVICE
+        }
+    }
+
+    /**
+     * Time a frame's trip to the server and back.
+     * @return microseconds, or -1 on failure
+     */
+    public long ping() {
+        long start = System.nanoTime();
+        try {
+            request(pongs,frame(PING,new byte[8])).get(5,TimeUnit.SECONDS);
+            long micros = (System.nanoTime() - start) / 1000;
+            pings.record(micros);
+            return micros;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param timeout milliseconds; 0 waits forever, as in libusb
+     */
+    private int read(LinkedBlockingQueue<byte[]> q, ByteBuffer buffer, int timeout) {
+        try {
+            byte[] bs = closed ? q.poll() : timeout > 0 ? q.poll(timeout,TimeUnit.MILLISECONDS) : q.take();
+            if (bs == CLOSED) {
+                q.add(CLOSED); // for the next reader
+                return -4; // ERROR_NO_DEVICE
+            }
+            if (bs == null) {
+                return closed ? -4 : -7; // ERROR_NO_DEVICE, ERROR_TIMEOUT
+            }
+            int n = Math.min(bs.length,buffer.capacity());
+            buffer.put(0,bs,0,n);
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -10; // ERROR_INTERRUPTED
+        }
+    }
+
+    @Override
+    public int readInterrupt(ByteBuffer buffer, int timeout) {
+        return read(interrupts,buffer,timeout);
+    }
+
+    @Override
+    public int readBulk(ByteBuffer buffer, int timeout) {
+        return read(bulks,buffer,timeout);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+            thread.join();
+        } catch (IOException e) {
+            log.warning("closing bridge client: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Serves a local G2 to {@link BridgeClient}s over TCP. Frames are a 4 byte
+ * length (of type and payload), a type byte and the payload:
+ * <ul>
+ *     <li>{@link #SEND}: client to server, a bulk OUT buffer, answered by {@link #ACK} with the result;</li>
+ *     <li>{@link #INTERRUPT} and {@link #BULK}: messages read from the device. A response goes to the
+ *     client with the oldest outstanding {@link #SEND} for the same command ({@code 0c} system,
+ *     {@code 08}-{@code 0b} slot, {@code 80} init); anything else, or a response nobody is waiting
+ *     for, goes to every client;</li>
+ *     <li>{@link #PING}: answered by {@link #PONG} with the same payload.</li>
+ * </ul>
+ * The socket side runs on one non-blocking selector thread; frames queued for
+ * a client go out in one gathering write. Sends to the device run in order on
+ * their own thread so a slow transfer does not hold up the selector.
+ */
+public final class BridgeServer implements AutoCloseable {
+
+    public static final byte SEND = 1;
+    public static final byte ACK = 2;
+    public static final byte INTERRUPT = 3;
+    public static final byte BULK = 4;
+    public static final byte PING = 5;
+    public static final byte PONG = 6;
+    public static final int MAX_FRAME = 1 << 16;
+    /** an outstanding send with no response by then no longer claims one */
+    public static final long RESPONSE_TIMEOUT_MILLIS = 10_000;
+
+    private final Logger log = Util.getLogger(BridgeServer.class);
+
+    private class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_FRAME + 4);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Client(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector,SelectionKey.OP_READ,this);
+        }
+
+        void queue(ByteBuffer frame) {
+            synchronized (out) {
+                out.add(frame.duplicate());
+            }
+            flushes.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Write queued frames, as many as the socket takes in one call.
+         * @return false if the client is gone
+         */
+        boolean flush() {
+            ByteBuffer[] bs;
+            synchronized (out) {
+                if (out.isEmpty()) { return true; }
+                bs = out.toArray(new ByteBuffer[0]);
+            }
+            try {
+                channel.write(bs);
+            } catch (IOException e) {
+                return false;
+            }
+            writes.incrementAndGet();
+            synchronized (out) {
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A request sent for {@code client}, waiting for its response.
+     * @param cmd command byte of the response
+     */
+    private record Outstanding(Client client, int cmd, long sentAt) { }
+
+    private final Usb usb;
+    private final ConcurrentLinkedQueue<Outstanding> outstanding = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Client> flushes = new ConcurrentLinkedQueue<>();
+    private final ExecutorService sender;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public final AtomicLong accepted = new AtomicLong();
+    public final AtomicLong framesIn = new AtomicLong();
+    public final AtomicLong framesOut = new AtomicLong();
+    public final AtomicLong writes = new AtomicLong();
+    public final AtomicLong sends = new AtomicLong();
+    public final AtomicLong routed = new AtomicLong();
+    public final AtomicLong broadcasts = new AtomicLong();
+
+    /**
+     * Serve {@code usb}, taking over the message stream of {@code readThread}
+     * (see {@link UsbReadThread#onMessage}); start the read thread separately.
+     */
+    public BridgeServer(Usb usb, UsbReadThread readThread, InetSocketAddress bind) {
+        this.usb = usb;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(bind);
+            server.configureBlocking(false);
+            server.register(selector,SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to start bridge on " + bind,e);
+        }
+        sender = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r,"BridgeSend");
+            t.setDaemon(true);
+            return t;
+        });
+        thread = new Thread(this::run,"BridgeServer");
+        thread.setDaemon(true);
+        log.info("Bridge listening on " + server.socket().getLocalPort());
+        readThread.onMessage(this::received);
+        thread.start();
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public int clients() {
+        return clients.size();
+    }
+
+    static ByteBuffer frame(byte type, ByteBuffer payload, int length) {
+        ByteBuffer f = ByteBuffer.allocate(5 + length);
+        f.putInt(1 + length).put(type).put(f.position(),payload,0,length);
+        return f.rewind();
+    }
+
+    static ByteBuffer frame(byte type, byte[] payload) {
+        return frame(type,ByteBuffer.wrap(payload),payload.length);
+    }
+
+    /**
+     * Command byte of a response from the device: {@code 0c}, {@code 08}-{@code 0b} or {@code 80}.
+     */
+    private static int responseCmd(UsbMessage m) {
+        ByteBuffer b = m.buffer();
+        if (m.extended()) {
+            int c = b.get(0) & 0xff;
+            return c == 0x80 ? c : c == 0x01 && b.limit() > 1 ? b.get(1) & 0xff : -1;
+        }
+        return b.limit() > 2 && b.get(1) == 0x01 ? b.get(2) & 0xff : -1;
+    }
+
+    /**
+     * Command byte of the response a bulk OUT buffer (size, data, CRC) asks for, or -1 if none.
+     */
+    private static int requestCmd(byte[] data) {
+        if (data.length < 4) { return -1; }
+        int c = data[2] & 0xff;
+        if (c == 0x80) { return c; } // CMD_INIT
+        int cmd = data[3] & 0xff;
+        return c == 0x01 && (cmd & 0x20) != 0 ? cmd & ~0x20 : -1; // CMD_REQ
+    }
+
+    /**
+     * The client whose oldest outstanding send {@code m} answers, or null.
+     */
+    private Client claim(UsbMessage m) {
+        int cmd = responseCmd(m);
+        long expired = System.nanoTime() - RESPONSE_TIMEOUT_MILLIS * 1_000_000;
+        for (Outstanding o : outstanding) {
+            if (o.sentAt - expired < 0) {
+                outstanding.remove(o);
+            } else if (o.cmd == cmd && outstanding.remove(o)) {
+                return o.client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send a received message to the client waiting for it, or fan it out to every client:
+     * embedded messages as their interrupt buffer, extended ones as the announcing interrupt and the bulk data.
+     */
+    private void received(UsbMessage m) {
+        try {
+            ByteBuffer b = m.buffer();
+            Client owner = claim(m);
+            List<Client> to = owner == null ? clients : clients.contains(owner) ? List.of(owner) : List.of();
+            (owner == null ? broadcasts : routed).incrementAndGet();
+            if (m.extended()) {
+                ByteBuffer i = frame(INTERRUPT,Util.asBytes(0x01,b.limit() >> 8,b.limit() & 0xff));
+                ByteBuffer d = frame(BULK,b,b.limit());
+                for (Client c : to) {
+                    c.queue(i);
+                    c.queue(d);
+                }
+                framesOut.addAndGet(2L * to.size());
+            } else {
+                ByteBuffer i = frame(INTERRUPT,b,b.limit());
+                for (Client c : to) {
+                    c.queue(i);
+                }
+                framesOut.addAndGet(to.size());
+            }
+        } finally {
+            m.release();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Client f;
+                while ((f = flushes.poll()) != null) {
+                    if (!f.flush()) { drop(f); }
+                }
+                for (SelectionKey k : selector.selectedKeys()) {
+                    if (!k.isValid()) { continue; }
+                    if (k.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client c = (Client) k.attachment();
+                        if ((k.isReadable() && !read(c)) || (k.isValid() && k.isWritable() && !c.flush())) {
+                            drop(c);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (running) { log.severe("bridge failed: " + e); }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) { return; }
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY,true);
+        clients.add(new Client(ch));
+        accepted.incrementAndGet();
+        log.info("Bridge client connected: " + ch.getRemoteAddress());
+    }
+
+    private void drop(Client c) {
+        if (clients.remove(c)) {
+            log.info("Bridge client disconnected");
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    /**
+     * Read and handle complete frames.
+     * @return false if the client is gone or sent a bad frame
+     */
+    private boolean read(Client c) {
+        try {
+            if (c.channel.read(c.in) < 0) { return false; }
+        } catch (IOException e) {
+            return false;
+        }
+        c.in.flip();
+        while (c.in.remaining() >= 4) {
+            int len = c.in.getInt(c.in.position());
+            if (len < 1 || len > MAX_FRAME) {
+                log.warning("Bad frame length from bridge client: " + len);
+                return false;
+            }
+            if (c.in.remaining() < 4 + len) { break; }
+            c.in.position(c.in.position() + 4);
+            byte type = c.in.get();
+            byte[] payload = new byte[len - 1];
+            c.in.get(payload);
+            framesIn.incrementAndGet();
+            switch (type) {
+                case SEND -> sender.execute(() -> send(c,payload));
+                case PING -> c.queue(frame(PONG,payload));
+                default -> log.warning("Unknown frame type from bridge client: " + type);
+            }
+        }
+        c.in.compact();
+        return true;
+    }
+
+    private void send(Client c, byte[] data) {
+        int cmd = requestCmd(data);
+        // before sending, so the response can't arrive first
+        Outstanding o = cmd < 0 ? null : new Outstanding(c,cmd,System.nanoTime());
+        if (o != null) { outstanding.add(o); }
+        int r;
+        try (BufferPool.Lease lease = usb.pool().acquire(data.length)) {
+            r = usb.transport().sendBulk(lease.buffer().put(0,data),10000);
+        }
+        if (r <= 0 && o != null) { outstanding.remove(o); }
+        sends.incrementAndGet();
+        c.queue(frame(ACK,ByteBuffer.allocate(4).putInt(0,r),4));
+    }
+
+    /**
+     * Disconnect all clients and stop serving; the Usb stays open.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        clients.forEach(this::drop);
+        sender.shutdown();
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warning("closing bridge: " + e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package g2lib.usb;
+
+import org.usb4java.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of direct buffers for USB transfers, in power-of-two size
+ * classes from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Larger requests are
+ * allocated unpooled.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 16;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+    /**
+     * A leased buffer. {@link #buffer()} is exactly the requested size, as usb4java
+     * transfers the whole capacity of a direct buffer.
+     */
+    public class Lease implements AutoCloseable {
+        private final ByteBuffer base;
+        private final ByteBuffer buffer;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(ByteBuffer base, int size) {
+            this.base = base;
+            this.buffer = base.clear().slice(0,size);
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Return the buffer to the pool. Later calls are ignored.
+         */
+        public void release() {
+            if (released.compareAndSet(false,true)) {
+                outstanding.decrementAndGet();
+                int c = sizeClass(base.capacity());
+                if (c < classes.length && base.capacity() == MIN_SIZE << c && retained[c].get() < maxPerClass) {
+                    retained[c].incrementAndGet();
+                    classes[c].offer(base);
+                }
+            }
+        }
+
+        public boolean released() {
+            return released.get();
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    private final int maxPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+    private final AtomicInteger[] retained;
+
+    public final AtomicInteger hits = new AtomicInteger();
+    public final AtomicInteger misses = new AtomicInteger();
+    public final AtomicInteger outstanding = new AtomicInteger();
+
+    public BufferPool() {
+        this(32);
+    }
+
+    /**
+     * @param maxPerClass free buffers kept per size class; extras are left to GC.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        int n = sizeClass(MAX_SIZE) + 1;
+        classes = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[n];
+        retained = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            retained[i] = new AtomicInteger();
+        }
+    }
+
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE) { return 0; }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    public Lease acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + size);
+        }
+        outstanding.incrementAndGet();
+        int c = sizeClass(size);
+        if (c >= classes.length) {
+            misses.incrementAndGet();
+            return new Lease(BufferUtils.allocateByteBuffer(size),size);
+        }
+        ByteBuffer b = classes[c].poll();
+        if (b != null) {
+            retained[c].decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            b = BufferUtils.allocateByteBuffer(MIN_SIZE << c);
+        }
+        return new Lease(b,size);
+    }
+
+    /**
+     * Free buffers currently held across all size classes.
+     */
+    public int retained() {
+        int n = 0;
+        for (AtomicInteger r : retained) { n += r.get(); }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[hits=%d, misses=%d, outstanding=%d, retained=%d]",
+                hits.get(),misses.get(),outstanding.get(),retained());
+    }
+}
@@ -0,0 +1,222 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Owns the OUT endpoint: commands from any thread are queued by priority class
+ * and sent one at a time from the scheduler thread.
+ * <p>
+ * Classes share the pipe by weighted round robin ({@link Priority#weight}), so
+ * background work still progresses under interactive load, and each class has a
+ * limit on commands in flight (sent, response pending). Long jobs such as bank
+ * dumps submit one command at a time and are preempted between commands.
+ */
+public final class CommandScheduler implements AutoCloseable {
+
+    public enum Priority {
+        INTERACTIVE(8,4),
+        AUTOMATION(4,4),
+        BACKGROUND(1,1);
+
+        public final int weight;
+        public final int maxInFlight;
+
+        Priority(int weight, int maxInFlight) {
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    public static class ClassStats {
+        public final AtomicLong submitted = new AtomicLong();
+        public final AtomicLong sent = new AtomicLong();
+        public final AtomicLong failed = new AtomicLong();
+        public final Histogram queueDelay = new Histogram();
+        volatile int depth;
+        volatile int inFlight;
+
+        public int depth() { return depth; }
+        public int inFlight() { return inFlight; }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d inFlight=%d submitted=%d sent=%d failed=%d delay: %s",
+                    depth,inFlight,submitted.get(),sent.get(),failed.get(),queueDelay);
+        }
+    }
+
+    private record Command<T>(String name, Supplier<CompletableFuture<T>> op,
+                              CompletableFuture<T> result, long enqueued) { }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final Logger log = Util.getLogger(CommandScheduler.class);
+
+    private final Usb usb;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Command<?>>[] queues = (ArrayDeque<Command<?>>[]) new ArrayDeque<?>[PRIORITIES.length];
+    private final int[] credits = new int[PRIORITIES.length];
+    private final ClassStats[] stats = new ClassStats[PRIORITIES.length];
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public CommandScheduler(Usb usb) {
+        this.usb = usb;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues[i] = new ArrayDeque<>();
+            stats[i] = new ClassStats();
+        }
+        thread = new Thread(this::run,"CommandScheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Usb usb() {
+        return usb;
+    }
+
+    public ClassStats stats(Priority p) {
+        return stats[p.ordinal()];
+    }
+
+    /**
+     * Queue {@code op}, which runs on the scheduler thread, sends its command and
+     * returns a future for its outcome (e.g. from {@link Pipeline#send}); the
+     * command counts as in flight until that completes.
+     */
+    public <T> CompletableFuture<T> submit(Priority p, String name, Supplier<CompletableFuture<T>> op) {
+        Command<T> c = new Command<>(name,op,new CompletableFuture<>(),System.nanoTime());
+        ClassStats s = stats[p.ordinal()];
+        s.submitted.incrementAndGet();
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("scheduler closed");
+            }
+            queues[p.ordinal()].add(c);
+            s.depth = queues[p.ordinal()].size();
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        return c.result;
+    }
+
+    /**
+     * Fire-and-forget bulk send; completes with the bytes transferred.
+     */
+    public CompletableFuture<Integer> sendBulk(Priority p, String msg, byte[] data) {
+        return submit(p,msg,() -> CompletableFuture.completedFuture(usb.sendBulk(msg,data)));
+    }
+
+    public CompletableFuture<Integer> sendSystemCmd(Priority p, String msg, int... cdata) {
+        return submit(p,msg,() -> CompletableFuture.completedFuture(usb.sendSystemCmd(msg,cdata)));
+    }
+
+    public CompletableFuture<Integer> sendSlotCmd(Priority p, int slot, int version, String msg, int... cdata) {
+        return submit(p,msg,() -> CompletableFuture.completedFuture(usb.sendSlotCmd(slot,version,msg,cdata)));
+    }
+
+    /**
+     * Pick the next class: highest priority with credit, work queued and room in
+     * flight; credits refill once no eligible class has any left.
+     */
+    private int next() {
+        for (int pass = 0; pass < 2; pass++) {
+            boolean eligible = false;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                if (queues[i].isEmpty() || stats[i].inFlight >= PRIORITIES[i].maxInFlight) { continue; }
+                eligible = true;
+                if (credits[i] > 0) {
+                    credits[i]--;
+                    return i;
+                }
+            }
+            if (!eligible) { return -1; }
+            for (int i = 0; i < PRIORITIES.length; i++) { credits[i] = PRIORITIES[i].weight; }
+        }
+        return -1;
+    }
+
+    private void run() {
+        while (true) {
+            Command<?> c;
+            int i;
+            lock.lock();
+            try {
+                while ((i = next()) < 0) {
+                    if (!running && empty()) { return; }
+                    ready.await();
+                }
+                c = queues[i].poll();
+                stats[i].depth = queues[i].size();
+                stats[i].inFlight++;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            dispatch(i,c);
+        }
+    }
+
+    private boolean empty() {
+        for (ArrayDeque<Command<?>> q : queues) {
+            if (!q.isEmpty()) { return false; }
+        }
+        return true;
+    }
+
+    private <T> void dispatch(int i, Command<T> c) {
+        ClassStats s = stats[i];
+        s.queueDelay.record((System.nanoTime() - c.enqueued) / 1000);
+        CompletableFuture<T> f;
+        try {
+            f = c.op.get();
+            if (f == null) { throw new IllegalStateException("no future"); }
+            s.sent.incrementAndGet();
+        } catch (RuntimeException e) {
+            log.warning("command failed: " + c.name + ": " + e);
+            f = CompletableFuture.failedFuture(e);
+        }
+        f.whenComplete((r,e) -> {
+            lock.lock();
+            try {
+                s.inFlight--;
+                ready.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (e != null) {
+                s.failed.incrementAndGet();
+                c.result.completeExceptionally(e);
+            } else {
+                c.result.complete(r);
+            }
+        });
+    }
+
+    /**
+     * Stop accepting commands; queued ones are still sent.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
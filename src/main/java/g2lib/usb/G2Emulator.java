@@ -0,0 +1,433 @@
+package g2lib.usb;
+
+import g2lib.CRC16;
+import g2lib.Util;
+import g2lib.state.Patch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Device side of the protocol, in process, for testing the stack without a G2.
+ * Answers init, version, start/stop, synth and performance settings, patch,
+ * patch name, text pad, current note, list names, retrieve, store and clear
+ * requests with embedded or extended responses framed as the device does.
+ * A store or clear is followed by a bank change message of the same type,
+ * bank and item.
+ * <p>
+ * The {@code .pch2} files of a directory, in name order, fill the patch banks
+ * 128 at a time; slot n starts with the n-th patch. Responses become readable
+ * {@link #setLatency latency} plus uniform jitter after their request, in order.
+ */
+public final class G2Emulator implements UsbTransport {
+
+    public static final int CMD_INIT = 0x80;
+    public static final int Q_SYNTH_SETTINGS = 0x02;
+    public static final int Q_PERF_SETTINGS = 0x10;
+    public static final int Q_LIST_NAMES = 0x14;
+    public static final int S_RETRIEVE = 0x17;
+    public static final int S_STORE = 0x18;
+    public static final int S_CLEAR = 0x19;
+    public static final int Q_PATCH_NAME = 0x28;
+    public static final int Q_VERSION_CNT = 0x35;
+    public static final int Q_PATCH = 0x3c;
+    public static final int Q_CURRENT_NOTE = 0x68;
+    public static final int Q_PATCH_TEXT = 0x6e;
+    public static final int S_START_STOP_COM = 0x7d;
+    public static final int BANK_SIZE = 128;
+    /** entry bytes per list names response */
+    public static final int MAX_LIST_BYTES = 192;
+
+    // captured from a G2 (see data/msg_*.msg), CRC omitted
+    private static final byte[] INIT = hex("800a0300001a008c00124d6f64756c617247325200034c52000001962861000501" +
+            "0a010000000000000000000000000000000000000000000000000000000000");
+    private static final byte[] SYNTH_SETTINGS = hex("010c00034d6f64756c6172473252008000000000000102030010800202" +
+            "000000000000400000000000000000000000000000000000");
+    private static final byte[] PERF_SETTINGS = hex("010c0029656666206e6577360011005800040078000000004e6f206e616d65" +
+            "000101000000007f00000073696d706c652073796e7468203030310101000000007f0100004e6f206e616d6500010000" +
+            "0000007f0200004e6f206e616d65000100000000007f030000");
+
+    public record Entry(int bank, int item, String name, Path path) { }
+
+    private record Frame(byte[] interrupt, byte[] bulk, long due) { }
+
+    private final Logger log = Util.getLogger(G2Emulator.class);
+
+    private final List<Entry> patches = new ArrayList<>();
+    private final Patch[] slots = new Patch[4];
+    private final Entry[] sources = new Entry[4];
+    private final String[] names = new String[4];
+    private final int[] versions = new int[4];
+    private final ArrayDeque<Frame> interrupts = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> bulks = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final SplittableRandom random = new SplittableRandom(0x62);
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private long lastDue;
+
+    public final AtomicLong requests = new AtomicLong();
+    public final AtomicLong responses = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+
+    public G2Emulator(Path dir) {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(".pch2")).sorted().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list patches: " + dir,e);
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No .pch2 files in " + dir);
+        }
+        for (int i = 0; i < files.size(); i++) {
+            String n = files.get(i).getFileName().toString();
+            patches.add(new Entry(i / BANK_SIZE,i % BANK_SIZE,n.substring(0,n.length() - 5),files.get(i)));
+        }
+        for (int s = 0; s < slots.length; s++) {
+            load(s,patches.get(s % patches.size()));
+        }
+        log.info(String.format("Emulating G2 with %d patches from %s",patches.size(),dir));
+    }
+
+    private static byte[] hex(String s) {
+        return HexFormat.of().parseHex(s);
+    }
+
+    public List<Entry> patches() {
+        return patches;
+    }
+
+    /**
+     * Load a patch into a slot, bumping the slot's patch version.
+     */
+    public synchronized void load(int slot, Entry e) {
+        Patch p;
+        try {
+            p = Patch.readFromFile(e.path.toString(),true);
+        } catch (Exception ex) {
+            throw new RuntimeException("Unable to load patch: " + e.path,ex);
+        }
+        p.slot = 0x08 + slot;
+        p.version = slots[slot] == null ? 0 : (versions[slot] + 1) & 0xff;
+        versions[slot] = p.version;
+        slots[slot] = p;
+        sources[slot] = e;
+        names[slot] = e.name;
+    }
+
+    private synchronized void retrieve(int slot, int bank, int item) {
+        Entry e = patches.stream().filter(p -> p.bank == bank && p.item == item).findFirst().orElse(null);
+        if (slot > 3 || e == null) {
+            throw new IllegalArgumentException(String.format("nothing to retrieve at %d:%d",bank,item));
+        }
+        load(slot,e);
+    }
+
+    /**
+     * Store the patch of {@code slot} at a location, which must be taken or
+     * follow the last one of its bank: list names has no way to skip items.
+     */
+    private synchronized void store(int slot, int bank, int item) {
+        if (slot > 3) { throw new IllegalArgumentException("Invalid slot: " + slot); }
+        Entry e = new Entry(bank,item,names[slot],sources[slot].path());
+        int i = 0;
+        while (i < patches.size() && (patches.get(i).bank < bank ||
+                (patches.get(i).bank == bank && patches.get(i).item < item))) {
+            i++;
+        }
+        if (i < patches.size() && patches.get(i).bank == bank && patches.get(i).item == item) {
+            patches.set(i,e);
+        } else {
+            patches.add(i,e);
+        }
+    }
+
+    private synchronized void clear(int bank, int item) {
+        if (!patches.removeIf(e -> e.bank == bank && e.item == item)) {
+            throw new IllegalArgumentException(String.format("nothing to clear at %d:%d",bank,item));
+        }
+    }
+
+    public synchronized int version(int slot) {
+        return versions[slot];
+    }
+
+    /**
+     * Delay each response by {@code latencyMicros} plus up to {@code jitterMicros}.
+     */
+    public void setLatency(long latencyMicros, long jitterMicros) {
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+    }
+
+    @Override
+    public int sendBulk(ByteBuffer data, int timeout) {
+        requests.incrementAndGet();
+        int size = data.capacity();
+        if (size < 5 || Util.addb(data.get(0),data.get(1)) != size
+                || CRC16.crc16(data,2,size - 4) != Util.addb(data.get(size - 2),data.get(size - 1))) {
+            errors.incrementAndGet();
+            log.warning("emulator: bad request: " + Util.dumpBufferString(data.duplicate().rewind()));
+            return size;
+        }
+        byte[] req = new byte[size - 4];
+        data.get(2,req);
+        try {
+            respond(req);
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            log.warning("emulator: request failed: " + e);
+        }
+        return size;
+    }
+
+    private void respond(byte[] req) {
+        if (Util.b2i(req[0]) == CMD_INIT) {
+            extended(INIT);
+            return;
+        }
+        if (req[0] != 0x01 || req.length < 4) {
+            throw new IllegalArgumentException("unknown request");
+        }
+        int cmd = Util.b2i(req[1]);
+        int type = Util.b2i(req[3]);
+        if (cmd == 0x20 + 0x0c) {
+            switch (type) {
+                case Q_VERSION_CNT -> {
+                    int slot = Util.b2i(req[4]);
+                    embedded(0x01,0x0c,0x40,0x36,slot,slot < 4 ? version(slot) : 0);
+                }
+                case S_START_STOP_COM -> embedded(0x01,0x0c,0x00,0x7f);
+                case Q_SYNTH_SETTINGS -> extended(SYNTH_SETTINGS);
+                case Q_PERF_SETTINGS -> extended(PERF_SETTINGS);
+                case Q_LIST_NAMES -> listNames(Util.b2i(req[4]),Util.b2i(req[5]),Util.b2i(req[6]));
+                case S_RETRIEVE -> {
+                    retrieve(Util.b2i(req[4]),Util.b2i(req[5]),Util.b2i(req[6]));
+                    embedded(0x01,0x0c,0x00,0x7f);
+                }
+                case S_STORE, S_CLEAR -> {
+                    int bank = Util.b2i(req[5]);
+                    int item = Util.b2i(req[6]);
+                    if (type == S_STORE) {
+                        store(Util.b2i(req[4]),bank,item);
+                    } else {
+                        clear(bank,item);
+                    }
+                    embedded(0x01,0x0c,0x00,0x7f);
+                    embedded(0x01,0x0c,0x00,type,bank,item); // bank change
+                }
+                default -> throw new IllegalArgumentException(String.format("unsupported system request %x",type));
+            }
+        } else if (cmd >= 0x28 && cmd < 0x2c) {
+            slotRequest(cmd - 0x28,type);
+        } else {
+            throw new IllegalArgumentException(String.format("unsupported command %x",cmd));
+        }
+    }
+
+    private synchronized void slotRequest(int slot, int type) {
+        Patch p = slots[slot];
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        b.put(Util.asBytes(0x01,p.slot,p.version));
+        try {
+            switch (type) {
+                case Q_PATCH -> {
+                    ByteBuffer m = p.writeMessage().rewind();
+                    byte[] bs = new byte[m.limit() - 2];
+                    m.get(bs);
+                    extended(bs);
+                    return;
+                }
+                case Q_PATCH_NAME -> {
+                    byte[] n = names[slot].getBytes(StandardCharsets.ISO_8859_1);
+                    b.put((byte) 0x27).put(n,0,Math.min(16,n.length));
+                    if (n.length < 16) { b.put((byte) 0); }
+                }
+                case Q_PATCH_TEXT -> p.writeSection(b,Patch.Sections.STextPad);
+                case Q_CURRENT_NOTE -> p.writeSection(b,Patch.Sections.SCurrentNote);
+                default -> throw new IllegalArgumentException(String.format("unsupported slot request %x",type));
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        byte[] bs = new byte[b.position()];
+        b.get(0,bs);
+        extended(bs);
+    }
+
+    /**
+     * Names from ({@code bank}, {@code item}) on, up to {@link #MAX_LIST_BYTES};
+     * terminated by 05 if more follow, 04 at the end. Performances are not
+     * emulated: their list is always empty.
+     */
+    private synchronized void listNames(int listType, int bank, int item) {
+        int i = 0;
+        while (i < patches.size() && (patches.get(i).bank < bank ||
+                (patches.get(i).bank == bank && patches.get(i).item < item))) {
+            i++;
+        }
+        if (listType != 0 || i == patches.size()) {
+            embedded(0x01,0x0c,0x00,0x7f);
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(Util.asBytes(0x01,0x0c,0x00,0x13,0x74,0x01,0x16,0x01,listType,0x03,bank,item));
+        int cur = bank;
+        int start = out.size();
+        for (; i < patches.size() && out.size() - start < MAX_LIST_BYTES; i++) {
+            Entry e = patches.get(i);
+            if (e.bank != cur) {
+                out.writeBytes(Util.asBytes(0x03,e.bank,e.item));
+                cur = e.bank;
+            }
+            byte[] n = e.name.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(n,0,Math.min(16,n.length));
+            if (n.length < 16) { out.write(0); }
+            out.write(0); // category
+        }
+        out.write(i == patches.size() ? 0x04 : 0x05);
+        extended(out.toByteArray());
+    }
+
+    private static byte[] withCrc(byte[] data) {
+        byte[] bs = new byte[data.length + 2];
+        System.arraycopy(data,0,bs,0,data.length);
+        int crc = CRC16.crc16(data,0,data.length);
+        bs[data.length] = (byte) (crc >> 8);
+        bs[data.length + 1] = (byte) crc;
+        return bs;
+    }
+
+    /**
+     * Response in the interrupt message itself: length nibble, type 2, data, CRC.
+     */
+    private void embedded(int... data) {
+        byte[] m = withCrc(Util.asBytes(data));
+        byte[] i = new byte[16];
+        i[0] = (byte) (((data.length + 2) << 4) | 0x02);
+        System.arraycopy(m,0,i,1,m.length);
+        queue(i,null);
+    }
+
+    /**
+     * Response announced by an interrupt message, type 1 and size, and sent on bulk IN.
+     */
+    private void extended(byte[] data) {
+        byte[] bulk = withCrc(data);
+        byte[] i = new byte[16];
+        i[0] = 0x01;
+        i[1] = (byte) (bulk.length >> 8);
+        i[2] = (byte) bulk.length;
+        queue(i,bulk);
+    }
+
+    private void queue(byte[] interrupt, byte[] bulk) {
+        lock.lock();
+        try {
+            long d = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos) : 0);
+            // the device answers in order
+            lastDue = Math.max(lastDue,System.nanoTime() + d);
+            interrupts.add(new Frame(interrupt,bulk,lastDue));
+            responses.incrementAndGet();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout milliseconds; 0 waits forever, as in libusb
+     */
+    @Override
+    public int readInterrupt(ByteBuffer buffer, int timeout) {
+        long deadline = deadline(timeout);
+        lock.lock();
+        try {
+            while (true) {
+                Frame f = interrupts.peek();
+                long now = System.nanoTime();
+                if (f != null && now >= f.due) {
+                    interrupts.poll();
+                    if (f.bulk != null) {
+                        bulks.add(f.bulk);
+                        changed.signalAll();
+                    }
+                    return copy(f.interrupt,buffer);
+                }
+                if (now >= deadline) { return -7; } // ERROR_TIMEOUT
+                long wake = Math.min(deadline,f == null ? deadline : f.due);
+                if (wake == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wake - now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -10; // ERROR_INTERRUPTED
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout milliseconds; 0 waits forever, as in libusb
+     */
+    @Override
+    public int readBulk(ByteBuffer buffer, int timeout) {
+        long deadline = deadline(timeout);
+        lock.lock();
+        try {
+            while (bulks.isEmpty()) {
+                if (deadline == Long.MAX_VALUE) {
+                    changed.await();
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) { return -7; } // ERROR_TIMEOUT
+                changed.awaitNanos(remaining);
+            }
+            return copy(bulks.poll(),buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -10; // ERROR_INTERRUPTED
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+    }
+
+    private static int copy(byte[] data, ByteBuffer buffer) {
+        int n = Math.min(data.length,buffer.capacity());
+        buffer.put(0,data,0,n);
+        return n;
+    }
+
+    @Override
+    public void close() {
+        // nothing held open
+    }
+}
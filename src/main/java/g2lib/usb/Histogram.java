@@ -0,0 +1,41 @@
+package g2lib.usb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in microseconds, in power-of-two buckets.
+ */
+public class Histogram {
+    public final AtomicLongArray buckets = new AtomicLongArray(40);
+    public final AtomicLong count = new AtomicLong();
+    public final AtomicLong timeouts = new AtomicLong();
+    public final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        count.incrementAndGet();
+        buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(Math.max(micros,0)),buckets.length() - 1));
+        max.accumulateAndGet(micros,Math::max);
+    }
+
+    /**
+     * Upper bound in microseconds of the bucket holding quantile {@code q}.
+     */
+    public long quantile(double q) {
+        long target = (long) Math.ceil(q * count.get());
+        long n = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            n += buckets.get(i);
+            if (n >= target && n > 0) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d timeouts=%d p50<=%dus p99<=%dus max=%dus",
+                count.get(),timeouts.get(),quantile(0.5),quantile(0.99),max.get());
+    }
+}
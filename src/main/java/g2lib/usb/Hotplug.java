@@ -0,0 +1,89 @@
+package g2lib.usb;
+
+import g2lib.Util;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.HotplugCallbackHandle;
+import org.usb4java.LibUsb;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Reports a G2 arriving or leaving, from libusb hotplug callbacks where the
+ * platform has them, else by polling the device list every {@code pollMillis}.
+ * Events are delivered on the watcher thread and should be handed off quickly.
+ * Tracks a single device, like {@link Usb#initialize()}.
+ */
+public final class Hotplug implements AutoCloseable {
+
+    private final Logger log = Util.getLogger(Hotplug.class);
+
+    private final Context context = new Context();
+    private final HotplugCallbackHandle handle = new HotplugCallbackHandle();
+    private final boolean callbacks;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public Hotplug(Runnable arrived, Runnable left, long pollMillis) {
+        Usb.retcode(LibUsb.init(context),"Unable to initialize libusb");
+        callbacks = LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG);
+        if (callbacks) {
+            // enumerate reports devices already connected
+            Usb.retcode(LibUsb.hotplugRegisterCallback(context,
+                    LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
+                    LibUsb.HOTPLUG_ENUMERATE, Usb.VENDOR_ID, Usb.PRODUCT_ID, LibUsb.HOTPLUG_MATCH_ANY,
+                    (ctx, device, event, data) -> {
+                        (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? arrived : left).run();
+                        return 0;
+                    }, null, handle), "Unable to register hotplug callback");
+            thread = new Thread(this::handleEvents,"Hotplug");
+        } else {
+            thread = new Thread(() -> poll(arrived,left,pollMillis),"Hotplug");
+        }
+        log.info(callbacks ? "Watching for G2 with hotplug callbacks" : "Watching for G2 by polling every " + pollMillis + "ms");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean usingCallbacks() {
+        return callbacks;
+    }
+
+    private void handleEvents() {
+        while (running) {
+            LibUsb.handleEventsTimeout(context,100_000);
+        }
+    }
+
+    private void poll(Runnable arrived, Runnable left, long pollMillis) {
+        boolean present = false;
+        while (running) {
+            List<Device> ds = Usb.getG2Devices(context);
+            ds.forEach(LibUsb::unrefDevice);
+            if (ds.isEmpty() == present) {
+                present = !present;
+                (present ? arrived : left).run();
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (callbacks) {
+            LibUsb.hotplugDeregisterCallback(context,handle);
+        }
+        LibUsb.exit(context);
+    }
+}
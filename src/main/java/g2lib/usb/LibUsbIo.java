@@ -0,0 +1,48 @@
+package g2lib.usb;
+
+import org.usb4java.*;
+
+import java.nio.ByteBuffer;
+
+public class LibUsbIo implements UsbIo {
+
+    private final Context context;
+    private final DeviceHandle handle;
+
+    public LibUsbIo(Context context, DeviceHandle handle) {
+        this.context = context;
+        this.handle = handle;
+    }
+
+    @Override
+    public Submission transfer(byte endpoint, byte type, ByteBuffer buffer, long timeout, Completion completion) {
+        final Transfer t = LibUsb.allocTransfer();
+        TransferCallback cb = tr -> completion.done(tr.status(), tr.actualLength());
+        if (type == LibUsb.TRANSFER_TYPE_INTERRUPT) {
+            LibUsb.fillInterruptTransfer(t, handle, endpoint, buffer, cb, null, timeout);
+        } else {
+            LibUsb.fillBulkTransfer(t, handle, endpoint, buffer, cb, null, timeout);
+        }
+        return new Submission() {
+            @Override
+            public int submit() {
+                return LibUsb.submitTransfer(t);
+            }
+
+            @Override
+            public int cancel() {
+                return LibUsb.cancelTransfer(t);
+            }
+
+            @Override
+            public void free() {
+                LibUsb.freeTransfer(t);
+            }
+        };
+    }
+
+    @Override
+    public int handleEvents(long timeoutMicros) {
+        return LibUsb.handleEventsTimeout(context, timeoutMicros);
+    }
+}
@@ -0,0 +1,135 @@
+package g2lib.usb;
+
+import g2lib.Util;
+import org.usb4java.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+public class LibUsbTransport implements UsbTransport {
+
+    private static final Logger log = Util.getLogger(LibUsbTransport.class);
+
+    private final Context context;
+    private final Device device;
+    private final DeviceHandle handle;
+    private final ThreadLocal<IntBuffer> transferred = ThreadLocal.withInitial(BufferUtils::allocateIntBuffer);
+
+    public LibUsbTransport(Context context, Device device, DeviceHandle handle) {
+        this.context = context;
+        this.device = device;
+        this.handle = handle;
+    }
+
+    /**
+     * Open and claim the first connected G2.
+     */
+    public static LibUsbTransport open() {
+        List<LibUsbTransport> ts = open(1);
+        if (ts.isEmpty()) {
+            throw new RuntimeException("No G2 device found");
+        }
+        return ts.getFirst();
+    }
+
+    /**
+     * Open and claim up to {@code max} connected G2s, each in its own libusb context.
+     * A unit that can't be opened or claimed, e.g. because another process has
+     * it, is logged and skipped.
+     */
+    public static List<LibUsbTransport> open(int max) {
+        List<LibUsbTransport> ts = new ArrayList<>();
+        try {
+            for (int i = 0; ts.size() < max; i++) {
+                // Create the libusb context
+                final Context context = new Context();
+
+                // Initialize the libusb context
+                Usb.retcode(LibUsb.init(context),"Unable to initialize libusb");
+
+                List<Device> ds = Usb.getG2Devices(context);
+                for (int j = 0; j < ds.size(); j++) {
+                    if (j != i) { LibUsb.unrefDevice(ds.get(j)); }
+                }
+                if (i >= ds.size()) {
+                    LibUsb.exit(context);
+                    break;
+                }
+                Device device = ds.get(i);
+
+                DeviceHandle handle = new DeviceHandle();
+                boolean opened = false;
+                try {
+                    Usb.retcode(LibUsb.open(device, handle), "Unable to acquire handle");
+                    opened = true;
+
+                    Usb.retcode(LibUsb.claimInterface(handle, Usb.IFACE), "Unable to claim interface");
+                } catch (RuntimeException e) {
+                    log.warning(String.format("Skipping G2 %03d/%03d: %s",
+                            LibUsb.getBusNumber(device),LibUsb.getDeviceAddress(device),e.getMessage()));
+                    if (opened) { LibUsb.close(handle); }
+                    LibUsb.unrefDevice(device);
+                    LibUsb.exit(context);
+                    continue;
+                }
+
+                ts.add(new LibUsbTransport(context,device,handle));
+            }
+        } catch (RuntimeException e) {
+            ts.forEach(LibUsbTransport::close);
+            throw e;
+        }
+        return ts;
+    }
+
+    private int result(int r) {
+        return r < 0 ? r : transferred.get().get(0);
+    }
+
+    private IntBuffer transferred() {
+        IntBuffer t = transferred.get();
+        t.put(0,0);
+        return t;
+    }
+
+    @Override
+    public int sendBulk(ByteBuffer data, int timeout) {
+        return result(LibUsb.bulkTransfer(handle, BULK_OUT, data, transferred(), timeout));
+    }
+
+    @Override
+    public int readInterrupt(ByteBuffer buffer, int timeout) {
+        return result(LibUsb.interruptTransfer(handle, INTERRUPT_IN, buffer, transferred(), timeout));
+    }
+
+    @Override
+    public int readBulk(ByteBuffer buffer, int timeout) {
+        return result(LibUsb.bulkTransfer(handle, BULK_IN, buffer, transferred(), timeout));
+    }
+
+    @Override
+    public UsbIo asyncIo() {
+        return new LibUsbIo(context,handle);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("G2 %03d/%03d",LibUsb.getBusNumber(device),LibUsb.getDeviceAddress(device));
+    }
+
+    @Override
+    public void close() {
+
+        Usb.retcode(LibUsb.releaseInterface(handle, Usb.IFACE), "Unable to release interface");
+
+        LibUsb.close(handle);
+
+        LibUsb.unrefDevice(device);
+
+        // Deinitialize the libusb context
+        LibUsb.exit(context);
+    }
+}
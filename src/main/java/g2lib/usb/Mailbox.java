@@ -0,0 +1,239 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import static g2lib.usb.UsbReadThread.MsgP;
+
+/**
+ * Selective receive over the read thread's {@link RingBuffer}: waiters take the
+ * oldest message matching their filter before a deadline, and messages nobody
+ * wants stay in a backlog for later waiters. Backlog and waiters are indexed by
+ * first header byte. One waiter at a time pumps the ring and hands messages to
+ * the others.
+ */
+public class Mailbox {
+
+    private final Logger log = Util.getLogger(Mailbox.class);
+
+    private record Entry(long seq, UsbMessage msg) { }
+
+    private static final class Waiter {
+        final int key;
+        final MsgP filter;
+        final Condition cond;
+        UsbMessage claimed;
+
+        Waiter(int key, MsgP filter, Condition cond) {
+            this.key = key;
+            this.filter = filter;
+            this.cond = cond;
+        }
+    }
+
+    private static final int ANY = 256;
+
+    private final RingBuffer<UsbMessage> ring;
+    private final int maxBacklog;
+    private final ReentrantLock lock = new ReentrantLock();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry>[] backlog = (ArrayDeque<Entry>[]) new ArrayDeque<?>[256];
+    @SuppressWarnings("unchecked")
+    private final List<Waiter>[] waiters = (List<Waiter>[]) new List<?>[ANY + 1];
+    private int size;
+    private long seq;
+    private boolean pumping;
+    private final Map<String,Histogram> stats = new ConcurrentHashMap<>();
+
+    public final AtomicLong discarded = new AtomicLong();
+
+    public Mailbox(RingBuffer<UsbMessage> ring) {
+        this(ring,256);
+    }
+
+    /**
+     * @param maxBacklog unclaimed messages kept; the oldest are released beyond this.
+     */
+    public Mailbox(RingBuffer<UsbMessage> ring, int maxBacklog) {
+        this.ring = ring;
+        this.maxBacklog = maxBacklog;
+        for (int i = 0; i < backlog.length; i++) { backlog[i] = new ArrayDeque<>(); }
+        for (int i = 0; i < waiters.length; i++) { waiters[i] = new ArrayList<>(); }
+    }
+
+    /**
+     * Wait for a message starting with {@code head}; see {@link UsbMessage#head}.
+     */
+    public UsbMessage expect(String name, long timeoutMillis, int... head) throws InterruptedException {
+        if (head.length == 0) {
+            throw new IllegalArgumentException("expect: empty header");
+        }
+        return expect(name,head[0] & 0xff,m -> m.head(head),timeoutMillis);
+    }
+
+    /**
+     * Wait for a message matching {@code filter}, which is tested against the whole backlog.
+     */
+    public UsbMessage expect(String name, MsgP filter, long timeoutMillis) throws InterruptedException {
+        return expect(name,ANY,filter,timeoutMillis);
+    }
+
+    /**
+     * @return the oldest matching message, or null on timeout
+     * @throws IllegalStateException if the ring failed
+     */
+    private UsbMessage expect(String name, int key, MsgP filter, long timeoutMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Histogram h = stats.computeIfAbsent(name,n -> new Histogram());
+        Waiter w = new Waiter(key,filter,lock.newCondition());
+        lock.lock();
+        try {
+            drain();
+            UsbMessage m = take(w);
+            if (m == null) {
+                waiters[key].add(w);
+                try {
+                    m = await(w,deadline);
+                } finally {
+                    waiters[key].remove(w);
+                }
+            }
+            if (m == null) {
+                h.timeouts.incrementAndGet();
+                log.warning("expect: " + name + ": timed out after " + timeoutMillis + "ms");
+                return null;
+            }
+            h.record((System.nanoTime() - start) / 1000);
+            log.fine("expect: received " + name + ": " + m.dump());
+            return m;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private UsbMessage await(Waiter w, long deadline) throws InterruptedException {
+        while (w.claimed == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (!pumping) {
+                pumping = true;
+                UsbMessage m;
+                lock.unlock();
+                try {
+                    m = ring.poll(remaining,TimeUnit.NANOSECONDS);
+                } finally {
+                    lock.lock();
+                    pumping = false;
+                    // let another waiter take over pumping
+                    for (List<Waiter> ws : waiters) {
+                        for (Waiter o : ws) {
+                            if (o != w) { o.cond.signal(); }
+                        }
+                    }
+                }
+                if (m != null) {
+                    deliver(m);
+                }
+                drain();
+            } else {
+                w.cond.awaitNanos(remaining);
+            }
+        }
+        return w.claimed;
+    }
+
+    private void drain() {
+        UsbMessage m;
+        while ((m = ring.poll()) != null) {
+            deliver(m);
+        }
+    }
+
+    private void deliver(UsbMessage m) {
+        int key = m.buffer() != null && m.buffer().limit() > 0 ? m.buffer().get(0) & 0xff : 0;
+        for (List<Waiter> ws : List.of(waiters[key],waiters[ANY])) {
+            for (Waiter w : ws) {
+                if (w.claimed == null && w.filter.test(m)) {
+                    w.claimed = m;
+                    w.cond.signal();
+                    return;
+                }
+            }
+        }
+        backlog[key].add(new Entry(seq++,m));
+        if (++size > maxBacklog) {
+            discardOldest();
+        }
+    }
+
+    private UsbMessage take(Waiter w) {
+        if (w.key != ANY) {
+            for (Iterator<Entry> it = backlog[w.key].iterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if (w.filter.test(e.msg)) {
+                    it.remove();
+                    size--;
+                    return e.msg;
+                }
+            }
+            return null;
+        }
+        Entry best = null;
+        ArrayDeque<Entry> bestQ = null;
+        for (ArrayDeque<Entry> q : backlog) {
+            for (Entry e : q) {
+                if (best != null && e.seq > best.seq) { break; }
+                if (w.filter.test(e.msg)) {
+                    best = e;
+                    bestQ = q;
+                    break;
+                }
+            }
+        }
+        if (best == null) { return null; }
+        bestQ.remove(best);
+        size--;
+        return best.msg;
+    }
+
+    private void discardOldest() {
+        ArrayDeque<Entry> oldest = null;
+        for (ArrayDeque<Entry> q : backlog) {
+            if (!q.isEmpty() && (oldest == null || q.peek().seq < oldest.peek().seq)) {
+                oldest = q;
+            }
+        }
+        Entry e = oldest.poll();
+        size--;
+        discarded.incrementAndGet();
+        log.warning("mailbox: discarding unclaimed message: " + e.msg.dump());
+        e.msg.release();
+    }
+
+    public int backlog() {
+        lock.lock();
+        try {
+            drain();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait-time histograms by expectation name.
+     */
+    public Map<String,Histogram> stats() {
+        return Collections.unmodifiableMap(stats);
+    }
+}
@@ -0,0 +1,169 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches messages the device sends on its own (parameter changes, LEDs,
+ * meters) to subscribers by command and type byte, e.g. {@code 01 09 00 xx}
+ * is slot 1, type {@code xx}. Subscribed messages are claimed by the bus and
+ * never reach {@link UsbReadThread#expect}.
+ * <p>
+ * Handlers run on the bus executor, by default a single thread, so each
+ * subscription sees its messages in arrival order. The message buffer is
+ * released once all handlers for it have run.
+ */
+public class MessageBus {
+
+    public static final int SYSTEM = 0x0c;
+    public static final int ANY_SLOT = -1;
+
+    private final Logger log = Util.getLogger(MessageBus.class);
+
+    public interface Handler {
+        /**
+         * @param data read-only view of the message payload from the {@code 01}
+         *             command byte up to (not including) the CRC; valid only during the call.
+         */
+        void handle(UsbMessage msg, ByteBuffer data);
+    }
+
+    public class Subscription implements AutoCloseable {
+        private final int[] keys;
+        private final Handler handler;
+
+        private Subscription(int[] keys, Handler handler) {
+            this.keys = keys;
+            this.handler = handler;
+        }
+
+        @Override
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    private final ExecutorService executor;
+    private volatile Subscription[][] table = new Subscription[16 * 256][];
+    private volatile Predicate<UsbMessage> fastPath = m -> false;
+
+    public final AtomicInteger dispatched = new AtomicInteger();
+    public final AtomicInteger errors = new AtomicInteger();
+
+    public MessageBus() {
+        this(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r,"MessageBus");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    public MessageBus(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Claim subscribed messages from {@code readThread}.
+     */
+    public MessageBus attach(UsbReadThread readThread) {
+        readThread.setBus(this::dispatch);
+        return this;
+    }
+
+    /**
+     * Offer every message to {@code fastPath} on the read thread before table
+     * dispatch; it claims a message by returning true and must release it.
+     * For high-rate streams that cannot afford a task per message.
+     */
+    public void setFastPath(Predicate<UsbMessage> fastPath) {
+        this.fastPath = fastPath;
+    }
+
+    private static int key(int cmd, int type) {
+        return ((cmd & 0x0f) << 8) | (type & 0xff);
+    }
+
+    /**
+     * @param slot 0-3, or {@link #ANY_SLOT}
+     */
+    public Subscription subscribeSlot(int slot, int type, Handler handler) {
+        if (slot == ANY_SLOT) {
+            return subscribe(new int[] {key(0x08,type),key(0x09,type),key(0x0a,type),key(0x0b,type)},handler);
+        }
+        if (slot < 0 || slot > 3) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        return subscribe(new int[] {key(0x08 + slot,type)},handler);
+    }
+
+    public Subscription subscribeSystem(int type, Handler handler) {
+        return subscribe(new int[] {key(SYSTEM,type)},handler);
+    }
+
+    private synchronized Subscription subscribe(int[] keys, Handler handler) {
+        Subscription s = new Subscription(keys,handler);
+        Subscription[][] t = table.clone();
+        for (int k : keys) {
+            Subscription[] ss = t[k] == null ? new Subscription[0] : t[k];
+            ss = Arrays.copyOf(ss,ss.length + 1);
+            ss[ss.length - 1] = s;
+            t[k] = ss;
+        }
+        table = t;
+        return s;
+    }
+
+    private synchronized void unsubscribe(Subscription s) {
+        Subscription[][] t = table.clone();
+        for (int k : s.keys) {
+            if (t[k] == null) { continue; }
+            Subscription[] ss = Arrays.stream(t[k]).filter(x -> x != s).toArray(Subscription[]::new);
+            t[k] = ss.length == 0 ? null : ss;
+        }
+        table = t;
+    }
+
+    /**
+     * @return true if the message has subscribers and was handed to the executor.
+     */
+    public boolean dispatch(UsbMessage m) {
+        ByteBuffer b = m.buffer();
+        if (b == null) { return false; }
+        if (fastPath.test(m)) { return true; }
+        int start = m.dataStart();
+        int end = m.dataEnd();
+        if (end - start < 4 || end > b.limit() || b.get(start) != 0x01) { return false; }
+        int cmd = b.get(start + 1);
+        if ((cmd & 0xf0) != 0) { return false; }
+        Subscription[] ss = table[key(cmd,b.get(start + 3))];
+        if (ss == null) { return false; }
+        dispatched.incrementAndGet();
+        ByteBuffer data = b.slice(start,end - start).asReadOnlyBuffer();
+        executor.execute(() -> {
+            try {
+                for (Subscription s : ss) {
+                    try {
+                        s.handler.handle(m,data.rewind());
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                        log.warning("bus handler failed: " + e);
+                    }
+                }
+            } finally {
+                m.release();
+            }
+        });
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
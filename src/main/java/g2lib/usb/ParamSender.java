@@ -0,0 +1,165 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Parameter change sender. Writes are coalesced per (slot, location, module,
+ * param), last write wins, and flushed at most {@code maxRate} times a second,
+ * each flush sending all dirty params of a slot as {@link #S_SET_PARAM}
+ * sub-commands in as few slot commands as {@link #MAX_BATCH} allows.
+ * Slot commands go through a {@link CommandScheduler} in the given class.
+ */
+public class ParamSender implements AutoCloseable {
+
+    public static final int S_SET_PARAM = 0x40;
+    /** params per slot command */
+    public static final int MAX_BATCH = 64;
+
+    private final Logger log = Util.getLogger(ParamSender.class);
+
+    private final CommandScheduler commands;
+    private final CommandScheduler.Priority priority;
+    private final IntUnaryOperator versions;
+    private final long intervalNanos;
+    private final ScheduledExecutorService scheduler;
+
+    // key -> value << 8 | variation, in first-write order
+    private LinkedHashMap<Integer,Integer> dirty = new LinkedHashMap<>();
+    private boolean scheduled;
+    // flushes send in order, so an older batch never lands after a newer one
+    private final Object flushLock = new Object();
+    private long lastFlush;
+
+    public final AtomicLong submitted = new AtomicLong();
+    public final AtomicLong coalesced = new AtomicLong();
+    public final AtomicLong transmitted = new AtomicLong();
+    public final AtomicLong transfers = new AtomicLong();
+    public final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param versions current patch version by slot, for the slot command header
+     * @param maxRate flushes per second; 0 to flush only on {@link #flush()}
+     */
+    public ParamSender(CommandScheduler commands, CommandScheduler.Priority priority, IntUnaryOperator versions, double maxRate) {
+        this.commands = commands;
+        this.priority = priority;
+        this.versions = versions;
+        this.intervalNanos = maxRate > 0 ? (long) (1e9 / maxRate) : 0;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r,"ParamSender");
+            t.setDaemon(true);
+            return t;
+        });
+        lastFlush = System.nanoTime() - intervalNanos;
+    }
+
+    static int key(int slot, int location, int module, int param) {
+        return (slot << 24) | (location << 16) | (module << 8) | param;
+    }
+
+    public void set(int slot, int location, int module, int param, int value, int variation) {
+        if (slot < 0 || slot > 3 || location < 0 || location > 2) {
+            throw new IllegalArgumentException(String.format("Invalid param address: slot %d location %d",slot,location));
+        }
+        int k = key(slot,location,module & 0xff,param & 0xff);
+        submitted.incrementAndGet();
+        synchronized (this) {
+            if (dirty.put(k,((value & 0xff) << 8) | (variation & 0xff)) != null) {
+                coalesced.incrementAndGet();
+            }
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (intervalNanos > 0 && !scheduled && !scheduler.isShutdown()) {
+            scheduled = true;
+            long delay = Math.max(0,lastFlush + intervalNanos - System.nanoTime());
+            scheduler.schedule(this::flush,delay,TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public synchronized int pending() {
+        return dirty.size();
+    }
+
+    /**
+     * Send all dirty params now.
+     * @return number of params transmitted
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            LinkedHashMap<Integer,Integer> batch;
+            synchronized (this) {
+                batch = dirty;
+                dirty = new LinkedHashMap<>();
+                scheduled = false;
+                lastFlush = System.nanoTime();
+            }
+            return send(batch);
+        }
+    }
+
+    private int send(LinkedHashMap<Integer,Integer> batch) {
+        int sent = 0;
+        for (int slot = 0; slot < 4; slot++) {
+            List<Map.Entry<Integer,Integer>> es = new ArrayList<>();
+            for (Map.Entry<Integer,Integer> e : batch.entrySet()) {
+                if (e.getKey() >>> 24 == slot) { es.add(e); }
+            }
+            for (int i = 0; i < es.size(); i += MAX_BATCH) {
+                sent += send(slot,es.subList(i,Math.min(es.size(),i + MAX_BATCH)));
+            }
+        }
+        return sent;
+    }
+
+    private int send(int slot, List<Map.Entry<Integer,Integer>> es) {
+        int[] cdata = new int[es.size() * 6];
+        int i = 0;
+        for (Map.Entry<Integer,Integer> e : es) {
+            int k = e.getKey();
+            int v = e.getValue();
+            cdata[i++] = S_SET_PARAM;
+            cdata[i++] = (k >> 16) & 0xff; // location
+            cdata[i++] = (k >> 8) & 0xff;  // module index
+            cdata[i++] = k & 0xff;         // param index
+            cdata[i++] = v >> 8;           // value
+            cdata[i++] = v & 0xff;         // variation
+        }
+        transfers.incrementAndGet();
+        int r = commands.sendSlotCmd(priority,slot,versions.applyAsInt(slot),"set params: " + es.size(),cdata)
+                .exceptionally(e -> 0).join();
+        if (r <= 0) {
+            failures.incrementAndGet();
+            log.warning(String.format("set params failed, slot %d: %d params requeued",slot,es.size()));
+            synchronized (this) {
+                // keep any newer value written since
+                for (Map.Entry<Integer,Integer> e : es) {
+                    dirty.putIfAbsent(e.getKey(),e.getValue());
+                }
+                schedule();
+            }
+            return 0;
+        }
+        transmitted.addAndGet(es.size());
+        return es.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,109 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+import static g2lib.usb.UsbReadThread.MsgP;
+
+/**
+ * Pipelined requests: each command registers a response matcher before it is
+ * sent and returns a future, so independent commands can be issued back to back.
+ * Responses are routed to the oldest outstanding request whose matcher accepts
+ * them; anything unclaimed goes on to {@link UsbReadThread#expect}.
+ * Commands are sent through a {@link CommandScheduler} and count against its
+ * in-flight limit until their response arrives. Futures complete on the read thread.
+ */
+public final class Pipeline {
+
+    private final Logger log = Util.getLogger(Pipeline.class);
+
+    private record Request(String msg, MsgP matcher, CompletableFuture<UsbMessage> future) { }
+
+    private final Usb usb;
+    private final CommandScheduler scheduler;
+    private final CommandScheduler.Priority priority;
+    private final long timeoutMillis;
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+
+    public final AtomicInteger sent = new AtomicInteger();
+    public final AtomicInteger routed = new AtomicInteger();
+    public final AtomicInteger timedOut = new AtomicInteger();
+
+    public Pipeline(CommandScheduler scheduler, CommandScheduler.Priority priority, UsbReadThread readThread) {
+        this(scheduler,priority,readThread,5000);
+    }
+
+    /**
+     * @param timeoutMillis per-request response timeout from when it is sent; futures fail with {@link TimeoutException}.
+     */
+    public Pipeline(CommandScheduler scheduler, CommandScheduler.Priority priority, UsbReadThread readThread, long timeoutMillis) {
+        this.usb = scheduler.usb();
+        this.scheduler = scheduler;
+        this.priority = priority;
+        this.timeoutMillis = timeoutMillis;
+        readThread.setRouter(this::route);
+    }
+
+    public CompletableFuture<UsbMessage> sendSystemCmd(String msg, MsgP response, int... cdata) {
+        return send(msg,response,() -> usb.sendSystemCmd(msg,cdata));
+    }
+
+    public CompletableFuture<UsbMessage> sendSlotCmd(int slot, int version, String msg, MsgP response, int... cdata) {
+        return send(msg,response,() -> usb.sendSlotCmd(slot,version,msg,cdata));
+    }
+
+    /**
+     * Queue on the scheduler: register {@code response}, then run {@code sender};
+     * a result of 0 or less fails the future.
+     */
+    public CompletableFuture<UsbMessage> send(String msg, MsgP response, IntSupplier sender) {
+        return scheduler.submit(priority,msg,() -> register(msg,response,sender));
+    }
+
+    private CompletableFuture<UsbMessage> register(String msg, MsgP response, IntSupplier sender) {
+        Request r = new Request(msg,response,new CompletableFuture<>());
+        pending.add(r);
+        r.future.orTimeout(timeoutMillis,TimeUnit.MILLISECONDS).whenComplete((m,e) -> {
+            if (pending.remove(r) && e instanceof TimeoutException) {
+                timedOut.incrementAndGet();
+                log.warning("pipeline: no response: " + msg);
+            }
+        });
+        sent.incrementAndGet();
+        int n = sender.getAsInt();
+        if (n <= 0) { // Usb.send* report a failed transfer as 0
+            r.future.completeExceptionally(new RuntimeException("send failed: " + msg
+                    + (n < 0 ? ": " + Usb.ERRORS.get(n) : "")));
+        }
+        return r.future;
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Offer a received message to outstanding requests.
+     * @return true if a request claimed it.
+     */
+    public boolean route(UsbMessage m) {
+        for (Iterator<Request> it = pending.iterator(); it.hasNext(); ) {
+            Request r = it.next();
+            if (r.matcher.test(m) && pending.remove(r)) {
+                routed.incrementAndGet();
+                log.fine("pipeline: received " + r.msg + ": " + m.dump());
+                r.future.complete(m);
+                return true;
+            }
+        }
+        return false;
+    }
+}
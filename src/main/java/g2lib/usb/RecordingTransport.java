@@ -0,0 +1,161 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Records every transfer of a session to an append-only, memory-mapped log
+ * for {@link ReplayTransport}. The log is a header ({@link #MAGIC}, {@link #VERSION},
+ * start time in epoch millis) followed by one entry per transfer: nanos since
+ * start, endpoint (direction in bit 7), result, data length and data.
+ * Interrupt reads that time out are idle polling and not recorded.
+ */
+public class RecordingTransport implements UsbTransport {
+
+    public static final int MAGIC = 0x4732554c; // "G2UL"
+    public static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int CHUNK = 1 << 20;
+
+    public record Entry(long nanos, byte endpoint, int result, byte[] data) {
+        public boolean in() {
+            return (endpoint & 0x80) != 0;
+        }
+    }
+
+    private final Logger log = Util.getLogger(RecordingTransport.class);
+
+    private final UsbTransport delegate;
+    private final FileChannel channel;
+    private final long start = System.nanoTime();
+    private MappedByteBuffer map;
+    private long base;
+    private boolean closed;
+
+    public final AtomicLong entries = new AtomicLong();
+    public final AtomicLong bytes = new AtomicLong();
+
+    public RecordingTransport(UsbTransport delegate, Path log) {
+        this.delegate = delegate;
+        try {
+            channel = FileChannel.open(log,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,StandardOpenOption.WRITE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE,0,CHUNK);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open session log: " + log,e);
+        }
+        map.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        this.log.info("Recording session to " + log);
+    }
+
+    private synchronized void append(byte endpoint, int result, ByteBuffer data, int length) {
+        if (closed) { return; }
+        long now = System.nanoTime() - start;
+        int size = 8 + 1 + 4 + 4 + length;
+        if (map.remaining() < size) {
+            base += map.position();
+            try {
+                map = channel.map(FileChannel.MapMode.READ_WRITE,base,Math.max(CHUNK,size));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to extend session log",e);
+            }
+        }
+        map.putLong(now).put(endpoint).putInt(result).putInt(length);
+        map.put(map.position(),data,0,length);
+        map.position(map.position() + length);
+        entries.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    @Override
+    public int sendBulk(ByteBuffer data, int timeout) {
+        int r = delegate.sendBulk(data,timeout);
+        append(BULK_OUT,r,data,data.capacity());
+        return r;
+    }
+
+    @Override
+    public int readInterrupt(ByteBuffer buffer, int timeout) {
+        int r = delegate.readInterrupt(buffer,timeout);
+        if (r != -7) {
+            append(INTERRUPT_IN,r,buffer,Math.max(r,0));
+        }
+        return r;
+    }
+
+    @Override
+    public int readBulk(ByteBuffer buffer, int timeout) {
+        int r = delegate.readBulk(buffer,timeout);
+        append(BULK_IN,r,buffer,Math.max(r,0));
+        return r;
+    }
+
+    /**
+     * Async transfers are not recorded; sessions to replay must use polling reads.
+     */
+    @Override
+    public UsbIo asyncIo() {
+        throw new UnsupportedOperationException("async transfers cannot be recorded");
+    }
+
+    /**
+     * Truncate the log to its entries and close it, then the delegate.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                try {
+                    map.force();
+                    channel.truncate(base + map.position());
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to close session log",e);
+                }
+                log.info(String.format("Recorded %d transfers, %d bytes",entries.get(),bytes.get()));
+            }
+        }
+        delegate.close();
+    }
+
+    public static List<Entry> read(Path log) {
+        ByteBuffer b;
+        try (FileChannel c = FileChannel.open(log,StandardOpenOption.READ)) {
+            b = c.map(FileChannel.MapMode.READ_ONLY,0,Files.size(log));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read session log: " + log,e);
+        }
+        if (b.remaining() < HEADER || b.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a session log: " + log);
+        }
+        int v = b.getInt();
+        if (v != VERSION) {
+            throw new IllegalArgumentException("Unsupported session log version: " + v);
+        }
+        b.getLong();
+        List<Entry> es = new ArrayList<>();
+        while (b.remaining() >= 17) {
+            long nanos = b.getLong();
+            byte endpoint = b.get();
+            if (endpoint == 0) { break; } // unwritten tail of a log that was not closed
+            int result = b.getInt();
+            byte[] data = new byte[b.getInt()];
+            b.get(data);
+            es.add(new Entry(nanos,endpoint,result,data));
+        }
+        return es;
+    }
+}
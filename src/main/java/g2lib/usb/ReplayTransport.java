@@ -0,0 +1,159 @@
+package g2lib.usb;
+
+import g2lib.Util;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Plays back a {@link RecordingTransport} log in place of the device. Sends are
+ * checked against the recorded ones, in order; each recorded read is answered
+ * once the sends that preceded it have been replayed, after the same delay
+ * since the last of them as in the recording, divided by {@code speed}.
+ */
+public class ReplayTransport implements UsbTransport {
+
+    private record Read(int sends, long delayNanos, RecordingTransport.Entry entry) { }
+
+    private final Logger log = Util.getLogger(ReplayTransport.class);
+
+    private final double speed;
+    private final List<RecordingTransport.Entry> sends = new ArrayList<>();
+    private final ArrayDeque<Read> interrupts = new ArrayDeque<>();
+    private final ArrayDeque<Read> bulks = new ArrayDeque<>();
+    private final long[] sentAt;
+    private int sent;
+    private final long start = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public final AtomicLong mismatches = new AtomicLong();
+    public final AtomicLong replayed = new AtomicLong();
+
+    /**
+     * @param speed 1 for recorded timing, higher to accelerate, 0 for no delays
+     */
+    public ReplayTransport(Path log, double speed) {
+        this(RecordingTransport.read(log),speed);
+    }
+
+    public ReplayTransport(List<RecordingTransport.Entry> entries, double speed) {
+        this.speed = speed;
+        long last = 0;
+        for (RecordingTransport.Entry e : entries) {
+            if (!e.in()) {
+                sends.add(e);
+                last = e.nanos();
+            } else {
+                Read r = new Read(sends.size(),e.nanos() - last,e);
+                (e.endpoint() == INTERRUPT_IN ? interrupts : bulks).add(r);
+            }
+        }
+        sentAt = new long[sends.size()];
+    }
+
+    @Override
+    public int sendBulk(ByteBuffer data, int timeout) {
+        lock.lock();
+        try {
+            if (sent >= sends.size()) {
+                mismatches.incrementAndGet();
+                log.warning("replay: send past end of session");
+                return -4; // ERROR_NO_DEVICE
+            }
+            RecordingTransport.Entry e = sends.get(sent);
+            byte[] bs = new byte[data.capacity()];
+            data.get(0,bs);
+            if (!Arrays.equals(bs,e.data())) {
+                mismatches.incrementAndGet();
+                log.warning(String.format("replay: send %d differs from recording",sent));
+            }
+            sentAt[sent++] = System.nanoTime();
+            replayed.incrementAndGet();
+            changed.signalAll();
+            return e.result();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int readInterrupt(ByteBuffer buffer, int timeout) {
+        return read(interrupts,buffer,timeout);
+    }
+
+    @Override
+    public int readBulk(ByteBuffer buffer, int timeout) {
+        return read(bulks,buffer,timeout);
+    }
+
+    private long due(Read r) {
+        long t = r.sends == 0 ? start : sentAt[r.sends - 1];
+        return speed > 0 ? t + (long) (r.delayNanos / speed) : t;
+    }
+
+    /**
+     * @param timeout milliseconds; 0 waits forever, as in libusb
+     */
+    private int read(ArrayDeque<Read> q, ByteBuffer buffer, int timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            while (true) {
+                Read r = q.peek();
+                long now = System.nanoTime();
+                long wake = deadline;
+                if (r != null && sent >= r.sends) {
+                    long due = due(r);
+                    if (now >= due) {
+                        q.poll();
+                        byte[] data = r.entry.data();
+                        buffer.put(0,data,0,Math.min(data.length,buffer.capacity()));
+                        replayed.incrementAndGet();
+                        return r.entry.result();
+                    }
+                    wake = Math.min(wake,due);
+                }
+                if (now >= deadline) {
+                    return -7; // ERROR_TIMEOUT
+                }
+                if (wake == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wake - now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -10; // ERROR_INTERRUPTED
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Recorded transfers not yet replayed.
+     */
+    public int remaining() {
+        lock.lock();
+        try {
+            return sends.size() - sent + interrupts.size() + bulks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing held open
+    }
+}
@@ -0,0 +1,225 @@
+package g2lib.usb;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring for one producer thread and any number of consumers.
+ * The producer applies an {@link Overflow} policy when full; consumers wait
+ * per {@link Wait}, or a callback drains the ring on the producer thread.
+ */
+public class RingBuffer<T> {
+
+    public enum Overflow {
+        /** producer waits for space */
+        BLOCK,
+        /** oldest element is discarded */
+        DROP_OLDEST,
+        /** ring fails; offer throws and consumers see {@link IllegalStateException} */
+        FAIL
+    }
+
+    public enum Wait {
+        /** busy-wait with {@link Thread#onSpinWait} */
+        SPIN,
+        /** spin briefly, then park until the producer signals */
+        PARK
+    }
+
+    private static final int SPINS = 100;
+
+    private final AtomicReferenceArray<T> items;
+    private final int mask;
+    private final Overflow overflow;
+    private final Wait wait;
+    private final Consumer<T> onDrop;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+    private volatile Thread producer;
+    private volatile Consumer<T> callback;
+    private volatile boolean failed;
+
+    public final AtomicLong drops = new AtomicLong();
+    public final AtomicLong peak = new AtomicLong();
+
+    public RingBuffer(int capacity, Overflow overflow, Wait wait) {
+        this(capacity,overflow,wait,t -> { });
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param onDrop called on the producer thread with each element discarded by {@link Overflow#DROP_OLDEST}
+     */
+    public RingBuffer(int capacity, Overflow overflow, Wait wait, Consumer<T> onDrop) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int c = Integer.highestOneBit(capacity - 1) << 1;
+        c = Math.max(c,1);
+        items = new AtomicReferenceArray<>(c);
+        mask = c - 1;
+        this.overflow = overflow;
+        this.wait = wait;
+        this.onDrop = onDrop;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int size() {
+        return (int) Math.max(0,tail.get() - head.get());
+    }
+
+    public boolean failed() {
+        return failed;
+    }
+
+    /**
+     * Deliver elements to {@code callback} on the producer thread as they are
+     * offered (and any already queued on the next offer) instead of queuing them.
+     * Pass null to go back to queuing.
+     */
+    public void setCallback(Consumer<T> callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Producer only.
+     * @throws IllegalStateException if full under {@link Overflow#FAIL}
+     * @throws InterruptedException if interrupted while blocked under {@link Overflow#BLOCK}
+     */
+    public void offer(T v) throws InterruptedException {
+        if (failed) {
+            throw new IllegalStateException("ring failed");
+        }
+        long t = tail.get();
+        long h;
+        int spins = 0;
+        while (t - (h = head.get()) > mask) {
+            switch (overflow) {
+                case DROP_OLDEST -> {
+                    T old = items.get((int) h & mask);
+                    if (head.compareAndSet(h, h + 1)) {
+                        drops.incrementAndGet();
+                        onDrop.accept(old);
+                    }
+                }
+                case FAIL -> {
+                    failed = true;
+                    signal();
+                    throw new IllegalStateException("ring full: " + capacity());
+                }
+                case BLOCK -> {
+                    if (Thread.interrupted()) { throw new InterruptedException(); }
+                    if (spins++ < SPINS) {
+                        Thread.onSpinWait();
+                    } else {
+                        producer = Thread.currentThread();
+                        if (t - head.get() > mask) {
+                            LockSupport.parkNanos(this,TimeUnit.MILLISECONDS.toNanos(1));
+                        }
+                        producer = null;
+                    }
+                }
+            }
+        }
+        items.set((int) t & mask, v);
+        tail.set(t + 1);
+        long depth = t + 1 - head.get();
+        if (depth > peak.get()) {
+            peak.set(depth);
+        }
+        Consumer<T> cb = callback;
+        if (cb != null) {
+            T e;
+            while ((e = poll()) != null) {
+                cb.accept(e);
+            }
+        } else {
+            signal();
+        }
+    }
+
+    /**
+     * @return next element or null if empty.
+     * @throws IllegalStateException if the ring failed
+     */
+    public T poll() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                if (failed) {
+                    throw new IllegalStateException("ring failed");
+                }
+                return null;
+            }
+            T v = items.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                Thread p = producer;
+                if (p != null) {
+                    LockSupport.unpark(p);
+                }
+                return v;
+            }
+        }
+    }
+
+    public T take() throws InterruptedException {
+        return poll(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return next element, or null on timeout.
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T v = poll();
+        if (v != null) {
+            return v;
+        }
+        long nanos = unit.toNanos(timeout);
+        long end = System.nanoTime() + nanos;
+        int spins = 0;
+        Thread me = Thread.currentThread();
+        while ((v = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = nanos == Long.MAX_VALUE ? Long.MAX_VALUE : end - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (wait == Wait.SPIN || spins++ < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                waiters.add(me);
+                if (head.get() >= tail.get() && !failed) {
+                    LockSupport.parkNanos(this,remaining);
+                }
+                waiters.remove(me);
+            }
+        }
+        return v;
+    }
+
+    private void signal() {
+        if (!waiters.isEmpty()) {
+            for (Thread w : waiters) {
+                LockSupport.unpark(w);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RingBuffer[size=%d, capacity=%d, peak=%d, drops=%d%s]",
+                size(),capacity(),peak.get(),drops.get(),failed ? ", failed" : "");
+    }
+}
@@ -5,7 +5,8 @@ import g2lib.Util;
 import org.usb4java.*;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
@@ -16,16 +17,17 @@ public class Usb {
     public static final int IFACE = 0;
     public static final Map<Integer, String> ERRORS = errorMap();
 
-    private final Context context;
-    private final Device device;
-    private final DeviceHandle handle;
+    private final UsbTransport transport;
+    private final BufferPool pool = new BufferPool();
 
     private final Logger log = Util.getLogger(getClass());
 
     public Usb(Context context, Device device, DeviceHandle handle) {
-        this.context = context;
-        this.device = device;
-        this.handle = handle;
+        this(new LibUsbTransport(context,device,handle));
+    }
+
+    public Usb(UsbTransport transport) {
+        this.transport = transport;
     }
     
 
@@ -55,65 +57,74 @@ public class Usb {
     }
 
     /**
-     * only supports 1 connected device
+     * First connected G2, or null.
      */
     static Device getG2Device(Context context) {
+        List<Device> ds = getG2Devices(context);
+        for (int i = 1; i < ds.size(); i++) { LibUsb.unrefDevice(ds.get(i)); }
+        return ds.isEmpty() ? null : ds.getFirst();
+    }
+
+    /**
+     * All connected G2s, in enumeration order; the caller unrefs them.
+     */
+    static List<Device> getG2Devices(Context context) {
         // Read the USB device list
         final DeviceList list = new DeviceList();
 
         retcode(LibUsb.getDeviceList(context, list), "Unable to get device list");
 
-        // Iterate over all devices and dump them
+        List<Device> ds = new ArrayList<>();
+        // Iterate over all devices and keep the G2s
         for (Device device : list) {
             final DeviceDescriptor descriptor = new DeviceDescriptor();
             retcode(LibUsb.getDeviceDescriptor(device, descriptor), "Unable to read device descriptor");
             if (descriptor.idVendor() == VENDOR_ID && descriptor.idProduct() == PRODUCT_ID) {
                 //dumpDevice(device);
-                return device;
-            } else {
-                LibUsb.unrefDevice(device);
+                ds.add(LibUsb.refDevice(device));
             }
         }
-        return null;
+        LibUsb.freeDeviceList(list, true);
+        return ds;
     }
 
     public static Usb initialize() {
-        // Create the libusb context
-        final Context context = new Context();
-
-        // Initialize the libusb context
-        Usb.retcode(LibUsb.init(context),"Unable to initialize libusb");
-
-        Device device = Usb.getG2Device(context);
-        if (device == null) {
-            throw new RuntimeException("No G2 device found");
-        }
+        return new Usb(LibUsbTransport.open());
+    }
 
-        DeviceHandle handle = new DeviceHandle();
-        Usb.retcode(LibUsb.open(device, handle), "Unable to acquire handle");
+    /**
+     * Transfer layer for {@link UsbAsync} on this device handle.
+     */
+    public UsbIo asyncIo() {
+        return transport.asyncIo();
+    }
 
-        Usb.retcode(LibUsb.claimInterface(handle, Usb.IFACE), "Unable to claim interface");
+    /**
+     * Direct buffers for transfers; received messages hold leases from this pool.
+     */
+    public BufferPool pool() {
+        return pool;
+    }
 
-        return new Usb(context,device,handle);
+    public UsbTransport transport() {
+        return transport;
     }
 
     public void shutdown() {
-
-        Usb.retcode(LibUsb.releaseInterface(handle, Usb.IFACE), "Unable to release interface");
-
-        LibUsb.close(handle);
-
-        LibUsb.unrefDevice(device);
-
-        // Deinitialize the libusb context
-        LibUsb.exit(context);
+        transport.close();
     }
 
     public int sendBulk(String msg, byte[] data) {
 
 
         int size = data.length + 4;
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(size);
+        try (BufferPool.Lease lease = pool.acquire(size)) {
+            return sendBulk(msg,data,lease.buffer());
+        }
+    }
+
+    private int sendBulk(String msg, byte[] data, ByteBuffer buffer) {
+        int size = buffer.capacity();
         buffer.put((byte) (size / 256));
         buffer.put((byte) (size % 256));
         buffer.put(data);
@@ -123,13 +134,12 @@ public class Usb {
         buffer.put((byte) (crc / 256));
         buffer.put((byte) (crc % 256));
         log.info(String.format("--------------- Send Bulk: %s ----------------", msg) + Util.dumpBufferString(buffer));
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int r = LibUsb.bulkTransfer(handle, (byte) 0x03, buffer, transferred, 10000);
-        if (r >= 0) {
-            //transferred.rewind();
-            log.info("Sent: " + transferred.get(0));
+        int r = transport.sendBulk(buffer, 10000);
+        if (r < 0) {
+            return 0;
         }
-        return transferred.get();
+        log.info("Sent: " + r);
+        return r;
     }
 
     @SuppressWarnings("unused")
@@ -143,33 +153,17 @@ public class Usb {
         return r;
     }
     public UsbMessage readInterrupt(int timeout) {
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(16);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int r = LibUsb.interruptTransfer(handle, (byte) 0x81, buffer, transferred, timeout);
+        BufferPool.Lease lease = pool.acquire(16);
+        int r = transport.readInterrupt(lease.buffer(), timeout);
         if (r < 0) {
+            lease.release();
             if (r != -7) { //timeout
                 log.info(String.format("--------------- Read Interrupt failure: %s ----------------",
                         ERRORS.get(r)));
             }
             return new UsbMessage(r,false,-1,null);
         } else {
-            int type = buffer.get(0) & 0xf;
-            boolean extended = type == 1;
-            boolean embedded = type == 2;
-            int crc = 0;
-            if (embedded) {
-                int dil = (buffer.get(0) & 0xf0) >> 4;
-                crc = CRC16.crc16(buffer, 1, dil - 2);
-                log.info(String.format("--------------- Read Interrupt embedded, crc: %x %x", crc, buffer.position(dil - 1).getShort()) +
-                        Util.dumpBufferString(buffer));
-
-            }
-            int size = buffer.position(1).getShort();
-            if (extended) {
-                log.info(String.format("--------------- Read Interrupt extended, size: %x", size) +
-                        Util.dumpBufferString(buffer));
-            }
-            return new UsbMessage(size,extended,crc,buffer);
+            return UsbMessage.fromInterrupt(lease);
         }
     }
 
@@ -185,23 +179,18 @@ public class Usb {
     }
 
     public UsbMessage readBulk(int size) {
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(size);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int r = LibUsb.bulkTransfer(handle, (byte) 0x82, buffer, transferred, 5000);
+        BufferPool.Lease lease = pool.acquire(size);
+        int r = transport.readBulk(lease.buffer(), 5000);
         if (r < 0) {
+            lease.release();
             log.info("--------------- Read Bulk failure: " + ERRORS.get(r) + " ---------------");
             return new UsbMessage(r,true,-1,null);
         } else {
-            int tfrd = transferred.get();
-            if (tfrd > 0) {
+            if (r > 0) {
                 // buffer.rewind();
-                int len = buffer.limit();
-                //dumpBytes(recd);
-                int ecrc = CRC16.crc16(buffer, 0, len - 2);
-                log.info(String.format("--------------- Read Bulk size: %x crc: %x %x", tfrd, ecrc, buffer.position(len - 2).getShort()) +
-                    Util.dumpBufferString(buffer));
-                return new UsbMessage(size,true,ecrc,buffer);
+                return UsbMessage.fromBulk(lease,size);
             } else {
+                lease.release();
                 return new UsbMessage(0,true,-1,null);
             }
         }
@@ -0,0 +1,177 @@
+package g2lib.usb;
+
+import g2lib.Util;
+import org.usb4java.BufferUtils;
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous IN transfer engine.
+ * <p>
+ * Keeps several interrupt (0x81) and bulk (0x82) IN transfers submitted at once,
+ * resubmitting each as it completes, so the bulk read of an extended message is
+ * already queued when its interrupt arrives. Extended interrupts and bulk
+ * completions are paired in arrival order. Completions, and so the message sink,
+ * run on the thread calling {@link #handleEvents}.
+ */
+public class UsbAsync {
+
+    public static final int INTERRUPT_SIZE = 16;
+    public static final int BULK_SIZE = 8192;
+
+    private final Logger log = Util.getLogger(UsbAsync.class);
+
+    private final UsbIo io;
+    private final BufferPool pool;
+    private final int interruptDepth;
+    private final int bulkDepth;
+    private final Consumer<UsbMessage> sink;
+
+    private final List<Slot> slots = new ArrayList<>();
+    private final ArrayDeque<UsbMessage> pending = new ArrayDeque<>();
+    private final ArrayDeque<BufferPool.Lease> bulkData = new ArrayDeque<>();
+    private volatile boolean running;
+
+    public final AtomicInteger inFlight = new AtomicInteger();
+    public final AtomicInteger completed = new AtomicInteger();
+    public final AtomicInteger errors = new AtomicInteger();
+
+    private class Slot implements UsbIo.Completion {
+        final boolean bulk;
+        final ByteBuffer buffer;
+        UsbIo.Submission submission;
+
+        Slot(boolean bulk) {
+            this.bulk = bulk;
+            this.buffer = BufferUtils.allocateByteBuffer(bulk ? BULK_SIZE : INTERRUPT_SIZE);
+        }
+
+        void submit() {
+            buffer.clear();
+            int r = submission.submit();
+            if (r < 0) {
+                errors.incrementAndGet();
+                log.warning(String.format("submit failed: %s: %s", bulk ? "bulk" : "interrupt", Usb.ERRORS.get(r)));
+            } else {
+                inFlight.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void done(int status, int actualLength) {
+            inFlight.decrementAndGet();
+            switch (status) {
+                case LibUsb.TRANSFER_COMPLETED -> {
+                    completed.incrementAndGet();
+                    if (actualLength > 0) {
+                        received(this, actualLength);
+                    }
+                }
+                case LibUsb.TRANSFER_TIMED_OUT -> { }
+                case LibUsb.TRANSFER_CANCELLED -> { return; }
+                case LibUsb.TRANSFER_NO_DEVICE -> {
+                    log.severe("device gone, stopping transfers");
+                    running = false;
+                    return;
+                }
+                default -> {
+                    errors.incrementAndGet();
+                    log.warning(String.format("transfer failed: %s: status %d", bulk ? "bulk" : "interrupt", status));
+                }
+            }
+            if (running) {
+                submit();
+            }
+        }
+    }
+
+    public UsbAsync(UsbIo io, int interruptDepth, int bulkDepth, Consumer<UsbMessage> sink) {
+        this(io,new BufferPool(),interruptDepth,bulkDepth,sink);
+    }
+
+    /**
+     * @param pool received data is copied into buffers leased from here.
+     */
+    public UsbAsync(UsbIo io, BufferPool pool, int interruptDepth, int bulkDepth, Consumer<UsbMessage> sink) {
+        this.io = io;
+        this.pool = pool;
+        this.interruptDepth = interruptDepth;
+        this.bulkDepth = bulkDepth;
+        this.sink = sink;
+    }
+
+    public boolean running() {
+        return running;
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < interruptDepth + bulkDepth; i++) {
+            Slot s = new Slot(i >= interruptDepth);
+            s.submission = io.transfer(s.bulk ? (byte) 0x82 : (byte) 0x81,
+                    s.bulk ? LibUsb.TRANSFER_TYPE_BULK : LibUsb.TRANSFER_TYPE_INTERRUPT,
+                    s.buffer, 0, s);
+            slots.add(s);
+        }
+        slots.forEach(Slot::submit);
+    }
+
+    public int handleEvents(long timeoutMicros) {
+        return io.handleEvents(timeoutMicros);
+    }
+
+    /**
+     * Cancel outstanding transfers and handle events until they have all
+     * completed (or {@code timeoutMillis} passes), then free them.
+     */
+    public void stop(long timeoutMillis) {
+        running = false;
+        slots.forEach(s -> s.submission.cancel());
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight.get() > 0 && System.currentTimeMillis() < end) {
+            io.handleEvents(10_000);
+        }
+        if (inFlight.get() > 0) {
+            log.warning("stop: transfers still in flight: " + inFlight.get());
+            return; // freeing a submitted transfer is unsafe
+        }
+        slots.forEach(s -> s.submission.free());
+        slots.clear();
+        pending.forEach(UsbMessage::release);
+        pending.clear();
+        bulkData.forEach(BufferPool.Lease::release);
+        bulkData.clear();
+    }
+
+    private void received(Slot s, int length) {
+        BufferPool.Lease copy = pool.acquire(s.bulk ? length : INTERRUPT_SIZE);
+        copy.buffer().put(s.buffer.duplicate().limit(length).rewind()).rewind();
+        if (s.bulk) {
+            bulkData.add(copy);
+        } else {
+            UsbMessage m = UsbMessage.fromInterrupt(copy);
+            if (m.extended()) {
+                // extended messages wait in interrupt order for their bulk data
+                m.release();
+                m = new UsbMessage(m.size(), true, -1, null);
+            }
+            pending.add(m);
+        }
+        while (!pending.isEmpty()) {
+            UsbMessage m = pending.peek();
+            if (m.extended()) {
+                if (bulkData.isEmpty()) { break; }
+                m = UsbMessage.fromBulk(bulkData.poll(), m.size());
+            }
+            pending.poll();
+            sink.accept(m);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package g2lib.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous transfer layer under {@link UsbAsync}: libusb's transfer API
+ * in {@link LibUsbIo}, or a fake in tests.
+ */
+public interface UsbIo {
+
+    interface Completion {
+        /**
+         * Called on the thread running {@link #handleEvents}.
+         * @param status libusb transfer status, e.g. {@code LibUsb.TRANSFER_COMPLETED}
+         */
+        void done(int status, int actualLength);
+    }
+
+    interface Submission {
+        int submit();
+        int cancel();
+        void free();
+    }
+
+    /**
+     * Prepare (but do not submit) a transfer that reads into {@code buffer}.
+     * @param type {@code LibUsb.TRANSFER_TYPE_BULK} or {@code LibUsb.TRANSFER_TYPE_INTERRUPT}
+     * @param timeout milliseconds, 0 for none
+     */
+    Submission transfer(byte endpoint, byte type, ByteBuffer buffer, long timeout, Completion completion);
+
+    /**
+     * Run pending completions, waiting up to {@code timeoutMicros} for events.
+     */
+    int handleEvents(long timeoutMicros);
+}
@@ -1,10 +1,103 @@
 package g2lib.usb;
 
+import g2lib.CRC16;
 import g2lib.Util;
 
 import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public record UsbMessage(int size, boolean extended, int crc, ByteBuffer buffer) {
+/**
+ * @param lease pooled buffer backing {@code buffer}, or null; see {@link #release()}.
+ */
+public record UsbMessage(int size, boolean extended, int crc, ByteBuffer buffer, BufferPool.Lease lease) {
+
+    private static final Logger log = Util.getLogger(UsbMessage.class);
+
+    public UsbMessage(int size, boolean extended, int crc, ByteBuffer buffer) {
+        this(size,extended,crc,buffer,null);
+    }
+
+    /**
+     * Parse a received interrupt buffer: embedded messages carry their data
+     * and CRC, extended messages announce the size of the following bulk read.
+     */
+    public static UsbMessage fromInterrupt(ByteBuffer buffer) {
+        return fromInterrupt(buffer,null);
+    }
+
+    public static UsbMessage fromInterrupt(BufferPool.Lease lease) {
+        return fromInterrupt(lease.buffer(),lease);
+    }
+
+    private static UsbMessage fromInterrupt(ByteBuffer buffer, BufferPool.Lease lease) {
+        int type = buffer.get(0) & 0xf;
+        boolean extended = type == 1;
+        boolean embedded = type == 2;
+        int crc = 0;
+        if (embedded) {
+            int dil = (buffer.get(0) & 0xf0) >> 4;
+            crc = CRC16.crc16(buffer, 1, dil - 2);
+            if (log.isLoggable(Level.FINE)) {
+                log.fine(String.format("--------------- Read Interrupt embedded, crc: %x %x", crc, buffer.getShort(dil - 1)) +
+                        Util.dumpBufferString(buffer));
+            }
+
+        }
+        int size = buffer.position(1).getShort();
+        if (extended && log.isLoggable(Level.FINE)) {
+            log.fine(String.format("--------------- Read Interrupt extended, size: %x", size) +
+                    Util.dumpBufferString(buffer));
+        }
+        return new UsbMessage(size,extended,crc,buffer,lease);
+    }
+
+    /**
+     * Extended message from a received bulk buffer, limit set to the bytes transferred.
+     */
+    public static UsbMessage fromBulk(ByteBuffer buffer, int size) {
+        return fromBulk(buffer,size,null);
+    }
+
+    public static UsbMessage fromBulk(BufferPool.Lease lease, int size) {
+        return fromBulk(lease.buffer(),size,lease);
+    }
+
+    private static UsbMessage fromBulk(ByteBuffer buffer, int size, BufferPool.Lease lease) {
+        int len = buffer.limit();
+        //dumpBytes(recd);
+        int ecrc = CRC16.crc16(buffer, 0, len - 2);
+        if (log.isLoggable(Level.FINE)) {
+            log.fine(String.format("--------------- Read Bulk size: %x crc: %x %x", len, ecrc, buffer.getShort(len - 2)) +
+                    Util.dumpBufferString(buffer));
+        }
+        return new UsbMessage(size,true,ecrc,buffer,lease);
+    }
+
+    /**
+     * Return a pooled buffer once the message has been decoded; the buffer
+     * must not be used afterwards. No-op for unpooled messages.
+     */
+    public void release() {
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
+    /**
+     * Index of the first payload byte ({@code 01} command byte): embedded
+     * messages carry a length/type byte first.
+     */
+    public int dataStart() {
+        return extended ? 0 : 1;
+    }
+
+    /**
+     * Index just past the payload, before the CRC.
+     */
+    public int dataEnd() {
+        return extended ? buffer.limit() - 2 : ((buffer.get(0) & 0xf0) >> 4) - 1;
+    }
 
     public boolean success() {
         return size > 0 && buffer != null;
@@ -2,9 +2,9 @@ package g2lib.usb;
 
 import g2lib.Util;
 
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
@@ -12,62 +12,177 @@ import java.util.logging.Logger;
 public class UsbReadThread implements Runnable {
 
     private final Usb usb;
+    private final boolean async;
     private final Logger log = Util.getLogger(UsbReadThread.class);
     public final Thread thread;
 
     public UsbReadThread(Usb usb) {
+        this(usb,false);
+    }
+
+    /**
+     * @param async if true, the thread runs a {@link UsbAsync} engine on
+     *              {@link Usb#asyncIo()} instead of polling with blocking reads.
+     */
+    public UsbReadThread(Usb usb, boolean async) {
+        // messages nobody expects (pipeline, bus or stage sessions, stray unsolicited ones)
+        // must not stall the read thread: drop the oldest instead
+        this(usb,async,1024,RingBuffer.Overflow.DROP_OLDEST,RingBuffer.Wait.PARK);
+    }
+
+    /**
+     * @param capacity received messages held for {@link #expect}
+     * @param overflow what to do when the consumer falls behind; {@link RingBuffer.Overflow#FAIL} stops the thread.
+     */
+    public UsbReadThread(Usb usb, boolean async, int capacity, RingBuffer.Overflow overflow, RingBuffer.Wait wait) {
         this.usb = usb;
+        this.async = async;
+        this.q = new RingBuffer<>(capacity,overflow,wait,UsbMessage::release);
+        this.mailbox = new Mailbox(q);
         thread = new Thread(this);
     }
 
     public final AtomicBoolean go = new AtomicBoolean(true);
     public final AtomicInteger recd = new AtomicInteger(0);
-    public final LinkedBlockingQueue<UsbMessage> q = new LinkedBlockingQueue<>();
+    public final RingBuffer<UsbMessage> q;
+    public final Mailbox mailbox;
+    private volatile Predicate<UsbMessage> router = m -> false;
+    private volatile Predicate<UsbMessage> decoder = m -> false;
+    private volatile Predicate<UsbMessage> bus = m -> false;
+    private volatile Runnable onDisconnect = () -> { };
+
+    /**
+     * Messages accepted by {@code router} are not queued for {@link #expect}.
+     */
+    public void setRouter(Predicate<UsbMessage> router) {
+        this.router = router;
+    }
+
+    /**
+     * Messages not routed but accepted by {@code decoder} are not queued either;
+     * see {@link g2lib.state.DecodeStage}.
+     */
+    public void setDecoder(Predicate<UsbMessage> decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Messages not routed or decoded but accepted by {@code bus} are not queued either; see {@link MessageBus}.
+     */
+    public void setBus(Predicate<UsbMessage> bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * Called on the read thread when a read finds the device gone; the thread then stops.
+     */
+    public void onDisconnect(Runnable onDisconnect) {
+        this.onDisconnect = onDisconnect;
+    }
 
     public void start() { thread.start(); }
 
     @Override
     public void run() {
         log.info("Go");
+        if (async) {
+            runAsync();
+        } else {
+            runPolling();
+        }
+        log.info("Done");
+    }
+
+    private void runPolling() {
         while (go.get()) {
             UsbMessage r = usb.readInterrupt(500);
             if (!r.success()) {
+                if (r.size() == -4) { // ERROR_NO_DEVICE
+                    log.warning("device gone, stopping");
+                    go.set(false);
+                    onDisconnect.run();
+                }
                 continue;
             }
-            recd.incrementAndGet();
             if (r.extended()) {
+                recd.incrementAndGet();
+                r.release();
                 r = usb.readBulkRetries(r.size(), 5);
                 if (r.success()) {
-                    try {
-                        q.put(r);
-                    } catch (Exception e) {
-                        log.severe("extended put failed" + e);
-                    }
+                    put(r);
                 }
             } else {
-                try {
-                    q.put(r);
-                } catch (Exception e) {
-                    log.severe("embedded put failed" + e);
-                }
+                recd.incrementAndGet();
+                put(r);
             }
         }
-        log.info("Done");
+    }
+
+    private void runAsync() {
+        UsbAsync engine = new UsbAsync(usb.asyncIo(), usb.pool(), 2, 2, m -> {
+            recd.incrementAndGet();
+            put(m);
+        });
+        engine.start();
+        while (go.get() && engine.running()) {
+            engine.handleEvents(500_000);
+        }
+        engine.stop(1000);
+        if (go.getAndSet(false)) { // the engine stopped by itself: device gone
+            log.warning("device gone, stopping");
+            onDisconnect.run();
+        }
+    }
+
+    private void put(UsbMessage r) {
+        if (router.test(r) || decoder.test(r) || bus.test(r)) {
+            return;
+        }
+        try {
+            q.offer(r);
+        } catch (IllegalStateException e) {
+            log.severe("receive queue overflow, stopping: " + q);
+            r.release();
+            go.set(false);
+        } catch (InterruptedException e) {
+            log.severe((r.extended() ? "extended" : "embedded") + " put failed" + e);
+            r.release();
+            go.set(false);
+        }
+    }
+
+    /**
+     * Deliver unrouted messages to {@code consumer} on the read thread instead of queuing them.
+     */
+    public void onMessage(Consumer<UsbMessage> consumer) {
+        q.setCallback(consumer);
     }
 
     public interface MsgP extends Predicate<UsbMessage> {
 
     }
 
+    public static final long EXPECT_TIMEOUT = 10_000;
+
+    /**
+     * Take the oldest received message matching {@code filter}, waiting up to
+     * {@link #EXPECT_TIMEOUT}; messages that don't match stay queued.
+     * @return the message, or null on timeout
+     */
     public UsbMessage expect(String msg, MsgP filter) throws InterruptedException {
-        UsbMessage m = q.take();
-        if (filter.test(m)) {
-            log.fine("expect: received " + msg + ": " + m.dump());
-            return m;
-        } else {
-            log.warning("expect: " + msg + ": did not receive: " + m.dump());
-            return null;
-        }
+        return expect(msg,filter,EXPECT_TIMEOUT);
+    }
+
+    public UsbMessage expect(String msg, MsgP filter, long timeoutMillis) throws InterruptedException {
+        return mailbox.expect(msg,filter,timeoutMillis);
+    }
+
+    /**
+     * Like {@link #expect(String, MsgP, long)} for a header prefix, matched
+     * against only the queued messages starting with the same byte.
+     */
+    public UsbMessage expect(String msg, long timeoutMillis, int... head) throws InterruptedException {
+        return mailbox.expect(msg,timeoutMillis,head);
     }
 
 
@@ -0,0 +1,35 @@
+package g2lib.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Synchronous transfers under {@link Usb}: the G2's bulk OUT (0x03), interrupt
+ * IN (0x81) and bulk IN (0x82) endpoints. {@link LibUsbTransport} talks to the
+ * device; {@link RecordingTransport} logs a session that {@link ReplayTransport}
+ * can play back without one.
+ * <p>
+ * Transfers use the whole buffer, position 0 to capacity, and return the
+ * number of bytes transferred or a negative libusb error code. Timeouts are
+ * in milliseconds; 0 means no timeout, as in libusb.
+ */
+public interface UsbTransport {
+
+    byte BULK_OUT = 0x03;
+    byte INTERRUPT_IN = (byte) 0x81;
+    byte BULK_IN = (byte) 0x82;
+
+    int sendBulk(ByteBuffer data, int timeout);
+
+    int readInterrupt(ByteBuffer buffer, int timeout);
+
+    int readBulk(ByteBuffer buffer, int timeout);
+
+    /**
+     * Transfer layer for {@link UsbAsync}, if supported.
+     */
+    default UsbIo asyncIo() {
+        throw new UnsupportedOperationException("async transfers not supported by " + getClass().getSimpleName());
+    }
+
+    void close();
+}
@@ -6,7 +6,9 @@ import org.junit.jupiter.api.Test;
 
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static g2lib.Protocol.*;
@@ -67,4 +69,37 @@ class BitBufferTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    void randomWidths() throws Exception {
+        Random r = new Random(0x62);
+        int n = 5000;
+        int[] lens = new int[n];
+        int[] vals = new int[n];
+        BitBuffer w = new BitBuffer(n * 4);
+        for (int i = 0; i < n; i++) {
+            lens[i] = 1 + r.nextInt(24);
+            vals[i] = r.nextInt(1 << lens[i]);
+            w.put(lens[i], vals[i]);
+            if (i % 97 == 0) {
+                w.toBuffer(); // sync mid-stream, writes must continue in place
+            }
+        }
+        ByteBuffer out = w.toBuffer();
+        assertEquals((w.getBitLength() + 7) / 8, out.limit());
+
+        ByteBuffer le = ByteBuffer.allocate(out.limit()).order(ByteOrder.LITTLE_ENDIAN);
+        le.put(out).rewind();
+        for (ByteBuffer b : new ByteBuffer[] { w.toBuffer(), le }) {
+            BitBuffer bb = new BitBuffer(b);
+            for (int i = 0; i < n; i++) {
+                if (i % 13 == 0) {
+                    assertEquals(vals[i], bb.peek(lens[i]));
+                }
+                assertEquals(vals[i], bb.get(lens[i]), "index " + i);
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new BitBuffer(4).put(7, 0x80));
+    }
+
+}
@@ -2,6 +2,10 @@ package g2lib;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class MainTest {
@@ -29,4 +33,27 @@ class MainTest {
                 Util.concat(Util.asBytes(0,1,2),Util.asBytes(3,4),Util.asBytes(5)));
     }
 
-}
\ No newline at end of file
+    @Test
+    void crcSlicing() {
+        Random r = new Random(0x1021);
+        for (int len : new int[] {0, 1, 7, 8, 9, 15, 16, 17, 63, 64, 65, 1000, 4099}) {
+            byte[] data = new byte[len + 5];
+            r.nextBytes(data);
+            int expected = CRC16.crc16Bytewise(data, 3, len);
+            assertEquals(expected, CRC16.crc16(data, 3, len), "array " + len);
+
+            ByteBuffer heap = ByteBuffer.wrap(data);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+            direct.put(data).rewind();
+            ByteBuffer slice = ByteBuffer.wrap(data, 2, len + 1).slice();
+            for (ByteBuffer b : new ByteBuffer[] {heap, heap.asReadOnlyBuffer(), direct}) {
+                assertEquals(expected, CRC16.crc16(b, 3, len), "absolute " + len);
+                b.position(3).limit(3 + len);
+                assertEquals(expected, CRC16.crc16(b), "relative " + len);
+                assertEquals(3 + len, b.position());
+            }
+            assertEquals(expected, CRC16.crc16(slice, 1, len), "slice " + len);
+        }
+    }
+
+}
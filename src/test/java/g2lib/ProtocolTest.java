@@ -729,6 +729,28 @@ class ProtocolTest {
     }
 
 
+    @Test
+    void lazyPatchFile() throws Exception {
+        Patch lazy = Patch.readFromFile(PATCH_FILE, true);
+        for (Patch.Sections s : Patch.FILE_SECTIONS) {
+            assertFalse(lazy.isDecoded(s), s.toString());
+        }
+        ByteBuffer filebuf = Util.readFile(PATCH_FILE);
+        assertEquals(filebuf.rewind(), lazy.writeFile().rewind());
+
+        Patch eager = Patch.readFromFile(PATCH_FILE);
+        assertEquals(eager.getSection(Patch.Sections.STextPad).values(),
+                lazy.getSection(Patch.Sections.STextPad).values());
+        assertTrue(lazy.isDecoded(Patch.Sections.STextPad));
+        assertFalse(lazy.isDecoded(Patch.Sections.SModuleParams1));
+
+        lazy.getSection(Patch.Sections.SPatchDescription).values().update(PatchDescription.Voices.value(3));
+        eager.getSection(Patch.Sections.SPatchDescription).values().update(PatchDescription.Voices.value(3));
+        assertEquals(eager.writeFile().rewind(), lazy.writeFile().rewind());
+        eager.slot = lazy.slot = 1;
+        assertEquals(eager.writeMessage().rewind(), lazy.writeMessage().rewind());
+    }
+
     @Test
     void readSynthSettingsMessage() throws Exception {
         ByteBuffer buf = Util.readFile("data/msg_SynthSettings_f574.msg");
@@ -0,0 +1,53 @@
+package g2lib.library;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatchIndexTest {
+
+    @Test
+    void refreshAndLookup(@TempDir Path dir) throws Exception {
+        Path lib = dir.resolve("lib");
+        Files.createDirectories(lib.resolve("sub"));
+        Files.copy(PatchLibraryTest.PATCH_FILE, lib.resolve("one.pch2"));
+        Files.copy(PatchLibraryTest.PATCH_FILE, lib.resolve("sub/two.pch2"));
+        Path indexFile = dir.resolve("patches.idx");
+
+        PatchLibrary library = new PatchLibrary();
+        PatchIndex index = PatchIndex.load(indexFile);
+        assertEquals(0, index.size());
+        assertEquals(new PatchIndex.RefreshStats(0, 2, 0, 0), index.refresh(lib, library));
+        index.save(indexFile);
+
+        PatchIndex loaded = PatchIndex.load(indexFile);
+        assertEquals(2, loaded.size());
+        assertEquals(List.of("one", "two"), loaded.withModule(0x5c).stream().map(PatchLibrary.Entry::name).toList());
+        assertEquals(2, loaded.inCategory(0).size());
+        assertEquals(List.of(), loaded.withModule(0x01));
+        assertEquals(List.of(), loaded.inCategory(3));
+        PatchLibrary.Entry one = loaded.entries().iterator().next();
+        assertEquals(5, one.voices());
+        assertEquals(3, one.voiceCables());
+
+        assertEquals(new PatchIndex.RefreshStats(2, 0, 0, 0), loaded.refresh(lib, library));
+
+        Files.setLastModifiedTime(lib.resolve("one.pch2"), FileTime.fromMillis(one.mtime() + 5000));
+        Files.delete(lib.resolve("sub/two.pch2"));
+        Files.copy(PatchLibraryTest.PATCH_FILE, lib.resolve("three.pch2"));
+        assertEquals(new PatchIndex.RefreshStats(0, 2, 0, 1), loaded.refresh(lib, library));
+        assertEquals(List.of("one", "three"), loaded.withModule(0x5c).stream().map(PatchLibrary.Entry::name).toList());
+
+        List<PatchLibrary.Entry> before = loaded.entries();
+        Files.write(lib.resolve("three.pch2"), new byte[] {1, 2, 3});
+        assertEquals(new PatchIndex.RefreshStats(1, 0, 1, 1), loaded.refresh(lib, library));
+        assertEquals(1, loaded.size());
+        assertEquals(2, before.size()); // a copy, not a view
+    }
+}
@@ -0,0 +1,48 @@
+package g2lib.library;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatchLibraryTest {
+
+    public static final Path PATCH_FILE = Path.of("data/simplesynth001-20240802.pch2");
+
+    @Test
+    void scan(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve("a/b"));
+        Files.copy(PATCH_FILE, dir.resolve("one.pch2"));
+        Files.copy(PATCH_FILE, dir.resolve("a/b/two.PCH2"));
+        Files.copy(Path.of("data/simplesynth001-g2lib.pch2"), dir.resolve("a/three.pch2"));
+        Files.write(dir.resolve("a/broken.pch2"), new byte[] {1, 2, 3});
+        Files.write(dir.resolve("a/readme.txt"), new byte[] {1, 2, 3});
+
+        PatchLibrary lib = new PatchLibrary();
+        List<PatchLibrary.Entry> es = new ArrayList<>();
+        PatchLibrary.ScanStats stats = lib.scan(dir, e -> {
+            synchronized (es) { es.add(e); }
+        });
+        assertEquals(new PatchLibrary.ScanStats(4, 1, 0), stats);
+        es.sort(Comparator.comparing(PatchLibrary.Entry::name));
+        assertEquals(List.of("one", "three", "two"), es.stream().map(PatchLibrary.Entry::name).toList());
+
+        PatchLibrary.Entry one = es.getFirst();
+        assertEquals(Files.size(PATCH_FILE), one.size());
+        assertEquals(0, one.category());
+        assertEquals(5, one.voices());
+        byte[] bs = Files.readAllBytes(PATCH_FILE);
+        assertEquals(((bs[bs.length - 2] & 0xff) << 8) | (bs[bs.length - 1] & 0xff), one.crc());
+        assertEquals(one.crc(), es.getLast().crc());
+        assertEquals(List.of(0x04, 0x09, 0x17, 0x5c, 0x7f, 0xc2), one.moduleIds());
+        assertEquals(3, one.voiceCables());
+        assertEquals(2, one.fxCables());
+        assertEquals(one, PatchLibrary.read(one.path())); // by value, module ids too
+    }
+}
@@ -0,0 +1,130 @@
+package g2lib.protocol;
+
+import g2lib.BitBuffer;
+import g2lib.Util;
+import g2lib.state.Patch;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static g2lib.Protocol.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FieldsCodecTest {
+
+    private static void assertSameRead(Fields fields, ByteBuffer data, int skipBits, String msg) throws Exception {
+        BitBuffer ib = new BitBuffer(data.duplicate().rewind());
+        BitBuffer cb = new BitBuffer(data.duplicate().rewind());
+        ib.get(skipBits);
+        cb.get(skipBits);
+        FieldValues interpreted = fields.read(ib);
+        FieldValues compiled = fields.codec().read(cb);
+        assertEquals(interpreted, compiled, msg);
+        assertEquals(ib.getBitIndex(), cb.getBitIndex(), msg + ": bits consumed");
+        BitBuffer colb = new BitBuffer(data.duplicate().rewind());
+        colb.get(skipBits);
+        FieldValues columnar = fields.codec().readColumnar(colb);
+        assertEquals(interpreted, columnar, msg + ": columnar");
+        assertEquals(compiled.hashCode(), columnar.hashCode(), msg + ": columnar hash");
+        assertEquals(ib.getBitIndex(), colb.getBitIndex(), msg + ": columnar bits consumed");
+
+        BitBuffer iw = new BitBuffer(data.limit() * 2 + 64);
+        BitBuffer cw = new BitBuffer(data.limit() * 2 + 64);
+        for (FieldValue fv : interpreted.values) {
+            fv.write(iw);
+        }
+        fields.codec().write(cw, compiled);
+        assertEquals(iw.toBuffer(), cw.toBuffer(), msg + ": write");
+        BitBuffer colw = new BitBuffer(data.limit() * 2 + 64);
+        fields.codec().write(colw, columnar);
+        assertEquals(iw.toBuffer(), colw.toBuffer(), msg + ": columnar write");
+    }
+
+    private static void assertSections(ByteBuffer buf, Patch.Sections[] sections, String file) throws Exception {
+        for (Patch.Sections s : sections) {
+            BitBuffer bb = Patch.sliceSection(s.type, buf);
+            assertSameRead(s.fields(), bb.toBuffer(), s.location != null ? 2 : 0, file + ": " + s);
+            if (s == Patch.Sections.SPatchDescription && sections == Patch.MSG_SECTIONS) {
+                Util.advanceBuffer(buf, 2);
+            }
+        }
+    }
+
+    @Test
+    void patchFiles() throws Exception {
+        for (String f : new String[] {"data/simplesynth001-20240802.pch2", "data/simplesynth001-g2lib.pch2"}) {
+            ByteBuffer buf = Util.readFile(f);
+            buf.position(Patch.HEADER.limit() + 2);
+            assertSections(buf, Patch.FILE_SECTIONS, f);
+        }
+    }
+
+    @Test
+    void patchMessages() throws Exception {
+        for (String f : new String[] {"data/msg_Slot1Patch_ed77.msg", "data/msg_Slot0Patch_3dc3.msg"}) {
+            ByteBuffer buf = Util.readFile(f);
+            buf.position(3);
+            assertSections(buf, Patch.MSG_SECTIONS, f);
+        }
+        ByteBuffer note = Util.readFile("data/msg_Slot1Note_cc8f.msg").position(3);
+        assertSections(note, new Patch.Sections[] {Patch.Sections.SCurrentNote}, "note");
+        ByteBuffer text = Util.readFile("data/msg_Slot1TextPad_5f41.msg").position(3);
+        assertSections(text, new Patch.Sections[] {Patch.Sections.STextPad}, "textpad");
+    }
+
+    @Test
+    void systemMessages() throws Exception {
+        assertSameRead(SynthSettings.FIELDS,
+                Util.readFile("data/msg_SynthSettings_f574.msg").position(4).slice(), 0, "SynthSettings");
+        assertSameRead(BankEntries.FIELDS,
+                Util.readFile("data/msg_PatchListMessage00_19f4.msg").position(4).slice(), 0, "BankEntries");
+    }
+
+    @Test
+    void columnarView() throws Exception {
+        ByteBuffer buf = Util.readFile("data/msg_Slot1Patch_ed77.msg").position(3);
+        BitBuffer bb = Patch.sliceSection(Patch.Sections.SPatchDescription.type, buf);
+        FieldValues pd = PatchDescription.FIELDS.codec().readColumnar(bb);
+        assertInstanceOf(ColumnarFieldValues.class, pd);
+        assertEquals(5, PatchDescription.Voices.intValue(pd).orElseThrow());
+        assertEquals(7, PatchDescription.Reserved.subfieldsValue(pd).orElseThrow().size());
+
+        pd.update(PatchDescription.Voices.value(3));
+        pd.update(PatchDescription.Reserved.value(Data8.asSubfield(0, 0, 0, 0, 0, 0, 0)));
+        assertEquals(3, PatchDescription.Voices.intValue(pd).orElseThrow());
+        assertEquals(Data8.asSubfield(0, 0, 0, 0, 0, 0, 0),
+                PatchDescription.Reserved.subfieldsValue(pd).orElseThrow());
+        // updated again: the held value is replaced, not added
+        for (int i = 0; i < 10; i++) {
+            pd.update(PatchDescription.Reserved.value(Data8.asSubfield(i, 0, 0, 0, 0, 0, 0)));
+        }
+        assertEquals(Data8.asSubfield(9, 0, 0, 0, 0, 0, 0),
+                PatchDescription.Reserved.subfieldsValue(pd).orElseThrow());
+        assertEquals(1, ((ColumnarFieldValues) pd).columns.store.opaque.size());
+        assertThrows(IllegalArgumentException.class, () -> pd.add(PatchDescription.Voices.value(1)));
+
+
+        FieldValues fresh = PatchDescription.FIELDS.codec().readColumnar(
+                Patch.sliceSection(Patch.Sections.SPatchDescription.type, buf.position(3)));
+        List<FieldValues> rows = PatchDescription.Reserved.subfieldsValue(fresh).orElseThrow();
+        assertEquals(Data8.asSubfield(1).getFirst(), rows.removeFirst());
+        assertEquals(Data8.asSubfield(0).getFirst(), rows.removeLast());
+        assertEquals(5, rows.size());
+        assertEquals(7, PatchDescription.Reserved.subfieldsValue(fresh).orElseThrow().size());
+
+        FieldValues built = PatchDescription.FIELDS.codec().newColumnar();
+        assertEquals(0, built.values.size());
+        assertFalse(PatchDescription.Voices.intValue(built).isPresent());
+        for (FieldValue fv : pd.values) {
+            built.add(fv);
+        }
+        assertEquals(pd, built);
+        assertThrows(IllegalArgumentException.class, () -> built.add(PatchDescription.Voices.value(1)));
+        BitBuffer pw = new BitBuffer(256);
+        BitBuffer bw = new BitBuffer(256);
+        PatchDescription.FIELDS.codec().write(pw, pd);
+        PatchDescription.FIELDS.codec().write(bw, built);
+        assertEquals(pw.toBuffer(), bw.toBuffer());
+    }
+}
@@ -0,0 +1,100 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import g2lib.usb.UsbTransport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionTest {
+
+    /**
+     * Emulated G2 on a cable that can be pulled: transfers then fail with ERROR_NO_DEVICE.
+     */
+    static class Cable implements UsbTransport {
+        final G2Emulator g2;
+        final AtomicBoolean plugged;
+
+        Cable(G2Emulator g2, AtomicBoolean plugged) {
+            this.g2 = g2;
+            this.plugged = plugged;
+        }
+
+        @Override
+        public int sendBulk(ByteBuffer data, int timeout) {
+            return plugged.get() ? g2.sendBulk(data, timeout) : -4;
+        }
+
+        @Override
+        public int readInterrupt(ByteBuffer buffer, int timeout) {
+            return plugged.get() ? g2.readInterrupt(buffer, 50) : -4;
+        }
+
+        @Override
+        public int readBulk(ByteBuffer buffer, int timeout) {
+            return plugged.get() ? g2.readBulk(buffer, timeout) : -4;
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) { fail("timed out"); }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void reconnect(@TempDir Path dir) throws Exception {
+        Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve("a.pch2"));
+        AtomicBoolean plugged = new AtomicBoolean(true);
+        AtomicInteger opens = new AtomicInteger();
+        try (Connection c = new Connection(() -> {
+            // first open fails, as when the device node is not ready yet
+            if (opens.getAndIncrement() == 0 || !plugged.get()) { throw new RuntimeException("not there"); }
+            return new Cable(new G2Emulator(dir), plugged);
+        }, false)) {
+            AtomicInteger ready = new AtomicInteger();
+            c.onReady(s -> ready.incrementAndGet());
+            c.arrived();
+            Connection.Stack first = c.awaitReady(5000);
+            assertNotNull(first);
+            assertEquals(1, c.failures.get());
+            assertEquals(1, c.connects.get());
+
+            // cable blip: the read thread notices, the stack is torn down
+            plugged.set(false);
+            first.readThread().thread.join(5000);
+            assertFalse(first.readThread().thread.isAlive());
+            await(() -> c.state() == Connection.State.DISCONNECTED);
+            assertNull(c.stack());
+            assertEquals(1, c.disconnects.get());
+
+            plugged.set(true);
+            c.arrived();
+            Connection.Stack second = c.awaitReady(5000);
+            assertNotNull(second);
+            assertNotSame(first, second);
+            assertEquals(1, c.reconnects.get());
+            // listeners run after waiters are woken
+            await(() -> ready.get() >= 2);
+            assertEquals(2, c.timeToReady.count.get());
+
+            // hotplug reports the device leaving
+            c.left();
+            await(() -> c.state() == Connection.State.DISCONNECTED);
+            assertEquals(2, c.disconnects.get());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecodeStageTest {
+
+    @Test
+    public void readPatches(@TempDir Path dir) throws Exception {
+        for (int i = 0; i < 4; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve(String.format("patch %03d.pch2", i)));
+        }
+        G2Emulator g2 = new G2Emulator(dir);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        Device d = new Device(usb, readThread);
+        // a system kind too, for the system lane
+        DecodeStage.Kind<Integer> settings = new DecodeStage.Kind<>("synth settings", true, 0x03, b -> b.limit());
+        try (DecodeStage stage = new DecodeStage(4, DecodeStage.PATCH, settings)) {
+            d.initialize();
+            stage.attach(readThread);
+            g2.load(2, g2.patches().get(3));
+            List<Device.SlotInfo> slots = d.readSlots();
+            List<Patch> patches = d.readPatches(stage, slots);
+            assertEquals(4, patches.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(0x08 + i, patches.get(i).slot);
+                assertEquals(slots.get(i).version(), patches.get(i).version);
+            }
+
+            usb.sendSystemCmd("synth settings", G2Emulator.Q_SYNTH_SETTINGS);
+            assertTrue(stage.takeValue(settings, -1, 5000) > 4);
+            assertEquals(5, stage.submitted.get());
+            assertEquals(5, stage.decoded.get());
+            assertTrue(usb.pool().outstanding.get() <= 1);
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void slotOrder(@TempDir Path dir) throws Exception {
+        Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve("a.pch2"));
+        G2Emulator g2 = new G2Emulator(dir);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        // earlier versions take longer, so workers finish in reverse; version 3 fails with an Error,
+        // which must still be published in order
+        DecodeStage.Kind<Integer> name = new DecodeStage.Kind<>("name", false, 0x27, b -> {
+            int version = b.get(2);
+            Thread.sleep(60 - version * 20L);
+            if (version == 3) { throw new StackOverflowError("bad name"); }
+            return version;
+        });
+        try (DecodeStage stage = new DecodeStage(4, name).attach(readThread)) {
+            readThread.start();
+            for (int v = 0; v < 4; v++) {
+                if (v > 0) { g2.load(0, g2.patches().get(0)); }
+                usb.sendSlotCmd(0, v, "slot 0 name", G2Emulator.Q_PATCH_NAME);
+            }
+            for (int v = 0; v < 3; v++) {
+                DecodeStage.Result<Integer> r = stage.take(name, 0, 5000);
+                assertEquals(v, r.version());
+                assertEquals(v, r.value());
+            }
+            DecodeStage.Result<Integer> r = stage.take(name, 0, 5000);
+            assertInstanceOf(StackOverflowError.class, r.error());
+            assertNull(stage.take(name, 1, 10));
+            assertEquals(1, stage.errors.get());
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeviceManagerTest {
+
+    @Test
+    public void parallelUnits(@TempDir Path dir) throws Exception {
+        for (int i = 0; i < 40; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve(String.format("patch %03d.pch2", i)));
+        }
+        List<G2Emulator> g2s = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            G2Emulator g2 = new G2Emulator(dir);
+            g2.setLatency(10_000, 0);
+            g2s.add(g2);
+        }
+        try (DeviceManager dm = new DeviceManager(g2s)) {
+            dm.initialize();
+            Map<String, Map<Integer, Map<Integer, String>>> lists = dm.readEntryLists(true);
+            assertEquals(3, lists.size());
+            for (Map<Integer, Map<Integer, String>> l : lists.values()) {
+                assertEquals(40, l.get(0).size());
+            }
+            DeviceManager.Metrics total = dm.totals();
+            assertEquals(6, total.tasks());
+            assertEquals(0, total.failures());
+            // at most the pending interrupt read of each unit
+            assertTrue(total.buffersOutstanding() <= 3);
+            for (G2Emulator g2 : g2s) {
+                assertEquals(0, g2.errors.get());
+            }
+        }
+    }
+
+    @Test
+    public void failure(@TempDir Path dir) throws Exception {
+        Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve("a.pch2"));
+        try (DeviceManager dm = new DeviceManager(List.of(new G2Emulator(dir), new G2Emulator(dir)))) {
+            Map<String, Integer> r = dm.all("index", u -> u.name.charAt(0) - '0');
+            assertEquals(List.of(0, 1), List.copyOf(r.values()));
+            RuntimeException e = assertThrows(RuntimeException.class, () -> dm.all("fail", u -> {
+                throw new IllegalStateException(u.name);
+            }));
+            assertEquals(1, e.getSuppressed().length);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            assertEquals(1, dm.units().get(1).metrics().failures());
+        }
+    }
+}
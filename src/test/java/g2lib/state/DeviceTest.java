@@ -5,7 +5,10 @@ import g2lib.usb.Usb;
 import g2lib.usb.UsbMessage;
 import g2lib.usb.UsbReadThread;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -20,11 +23,73 @@ class DeviceTest {
         Usb usb = mock(Usb.class);
         UsbReadThread readThread = mock(UsbReadThread.class);
         Device d = new Device(usb,readThread);
+        when(readThread.expect(eq("Init response"),any(MsgP.class))).thenReturn(
+                new UsbMessage(0,true,0, Util.readFile("data/msg_Init_3924.msg")));
+        when(readThread.expect(eq("Stop Comm"),any(MsgP.class))).thenReturn(
+                new UsbMessage(0,false,0, Util.readFile("data/msg_CommStop_8cad.msg")));
         when(readThread.expect(eq("perf version"),any(MsgP.class))).thenReturn(
                 new UsbMessage(0,false,0, Util.readFile("data/msg_PerfVersion_1bd6.msg").position(6)));
         when(readThread.expect(eq("Synth settings"),any(MsgP.class))).thenReturn(
                 new UsbMessage(0,false,0, Util.readFile("data/msg_SynthSettings_f574.msg").position(4)));
         d.initialize();
+        assertEquals("ModularG2R", d.deviceName());
+    }
+
+    @Test
+    public void silentDevice() throws Exception {
+        Usb usb = mock(Usb.class);
+        UsbReadThread readThread = mock(UsbReadThread.class);
+        Device d = new Device(usb,readThread);
+        RuntimeException e = assertThrows(RuntimeException.class, d::initialize);
+        assertEquals("No response to Init response", e.getMessage());
+    }
+
+    private static UsbMessage slotMsg(String file, int index, int slot) throws Exception {
+        ByteBuffer b = Util.readFile(file);
+        b.put(index, (byte) (b.get(index) - 1 + slot));
+        return new UsbMessage(b.limit(), true, 0, b);
+    }
+
+    @Test
+    public void readSlots() throws Exception {
+        Usb usb = mock(Usb.class);
+        UsbReadThread readThread = mock(UsbReadThread.class);
+        Device d = new Device(usb, readThread);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Predicate<UsbMessage>> router = ArgumentCaptor.forClass(Predicate.class);
+        verify(readThread).setRouter(router.capture());
+
+        // responses arrive from another thread once all four version queries are outstanding
+        when(usb.sendSystemCmd(any(), anyInt(), anyInt())).thenReturn(9);
+        when(usb.sendSlotCmd(anyInt(), anyInt(), any(), anyInt())).thenAnswer(inv -> {
+            int slot = inv.getArgument(0);
+            int cmd = inv.getArgument(3);
+            String file = cmd == 0x28 ? "data/msg_Slot1Name_2cca.msg" : "data/msg_Slot1TextPad_5f41.msg";
+            assertTrue(router.getValue().test(slotMsg(file, 1, slot)));
+            return 9;
+        });
+        Thread responder = new Thread(() -> {
+            try {
+                while (d.pipeline().pending() < 4) { Thread.sleep(1); }
+                for (int slot = 3; slot >= 0; slot--) {
+                    assertTrue(router.getValue().test(slotMsg("data/msg_Slot1Version_e423.msg", 5, slot)));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        responder.start();
+        List<Device.SlotInfo> slots = d.readSlots();
+        responder.join();
 
+        assertEquals(4, slots.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(new Device.SlotInfo(i, 0, "simple synth 001", "Writing notes ..."), slots.get(i));
+        }
+        assertEquals(12, d.pipeline().sent.get());
+        assertEquals(12, d.pipeline().routed.get());
+        assertEquals(0, d.pipeline().pending());
+        // unclaimed messages fall through to expect()
+        assertFalse(router.getValue().test(slotMsg("data/msg_Slot1Version_e423.msg", 5, 1)));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import g2lib.usb.MessageBus;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryCacheTest {
+
+    @Test
+    public void warmStart(@TempDir Path dir) throws Exception {
+        Path patches = Files.createDirectory(dir.resolve("patches"));
+        for (int i = 0; i < 3; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), patches.resolve(String.format("patch %03d.pch2", i)));
+        }
+        G2Emulator g2 = new G2Emulator(patches);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        Device d = new Device(usb, readThread);
+        EntryCache cache = new EntryCache(dir.resolve("cache"));
+        MessageBus bus = new MessageBus().attach(readThread);
+        try {
+            d.initialize();
+            EntryCache.Stamp stamp = d.stamp();
+            assertEquals(new EntryCache.Stamp("ModularG2R"), stamp);
+
+            // cold: nothing on disk, read from the device
+            EntryCache.Warm cold = cache.open(stamp, EntryCache.fetch(d.scheduler(), readThread), ForkJoinPool.commonPool());
+            assertNull(cold.cached());
+            assertEquals("patch 002", cold.now().patches().name(0, 2));
+            assertEquals(1, cache.misses.get());
+
+            // warm: served from disk, checked in the background and left alone
+            EntryCache.Warm warm = cache.open(stamp, EntryCache.fetch(d.scheduler(), readThread), ForkJoinPool.commonPool());
+            assertNotNull(warm.cached());
+            assertEquals(cold.now().patches().entries(), warm.now().patches().entries());
+            assertEquals(0, warm.now().perfs().size());
+            warm.current().join();
+            assertEquals(1, cache.hits.get());
+            assertEquals(0, cache.stale.get());
+            assertEquals(2, cache.fetches.get());
+
+            // stored while disconnected: the saved copy is served, then replaced
+            g2.load(1, g2.patches().get(2));
+            usb.sendSystemCmd("store", G2Emulator.S_STORE, 1, 0, 3);
+            readThread.expect("store", m -> m.head(0x62, 0x01, 0x0c, 0x00, 0x7f)).release();
+            readThread.expect("bank change", m -> m.head(0x82, 0x01, 0x0c, 0x00, G2Emulator.S_STORE)).release();
+            EntryCache.Warm changed = cache.open(stamp, EntryCache.fetch(d.scheduler(), readThread), ForkJoinPool.commonPool());
+            assertNull(changed.cached().patches().get(0, 3));
+            assertEquals("patch 002", changed.current().join().patches().name(0, 3));
+            assertEquals(1, cache.stale.get());
+            assertEquals("patch 002", cache.load("ModularG2R").patches().name(0, 3));
+
+            // cleared while watched: the saved copy goes at once
+            cache.watch(bus, "ModularG2R");
+            usb.sendSystemCmd("clear", G2Emulator.S_CLEAR, 0, 0, 3);
+            readThread.expect("clear", m -> m.head(0x62, 0x01, 0x0c, 0x00, 0x7f)).release();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.invalidations.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, cache.invalidations.get());
+            assertNull(cache.load("ModularG2R"));
+            assertEquals(1, bus.dispatched.get());
+            assertEquals(0, g2.errors.get());
+        } finally {
+            bus.shutdown();
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void invalidatedWhileReading(@TempDir Path dir) throws Exception {
+        EntryCache cache = new EntryCache(dir);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch invalidated = new CountDownLatch(1);
+        EntryCache.Warm warm = cache.open(new EntryCache.Stamp("G2"), stamp -> {
+            EntryGrid patches = EntryGrid.patches();
+            patches.accept(new BankEntry(0, 0, "before", 0));
+            reading.countDown();
+            assertTrue(invalidated.await(5, TimeUnit.SECONDS));
+            return new EntryCache.Lists(stamp, patches, EntryGrid.perfs());
+        }, ForkJoinPool.commonPool());
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        cache.invalidate("G2");
+        invalidated.countDown();
+        assertEquals("before", warm.current().join().patches().name(0, 0));
+        assertNull(cache.load("G2"));
+
+        // read after the change: saved
+        cache.open(new EntryCache.Stamp("G2"), stamp -> new EntryCache.Lists(stamp, EntryGrid.patches(), EntryGrid.perfs()),
+                ForkJoinPool.commonPool()).current().join();
+        assertNotNull(cache.load("G2"));
+    }
+}
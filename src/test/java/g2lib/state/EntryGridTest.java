@@ -0,0 +1,89 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryGridTest {
+
+    @Test
+    public void grid() {
+        EntryGrid g = EntryGrid.patches();
+        g.accept(new BankEntry(0, 0, "Init", 1));
+        g.accept(new BankEntry(31, 127, "Init", 2));
+        g.accept(new BankEntry(3, 5, "Lead", 0));
+        assertEquals(3, g.size());
+        assertEquals(2, g.poolSize());
+        assertEquals(new BankEntry(31, 127, "Init", 2), g.get(31, 127));
+        assertNull(g.get(0, 1));
+        g.accept(new BankEntry(3, 5, "Bass", 3));
+        assertEquals(3, g.size());
+        assertEquals("Bass", g.name(3, 5));
+        g.clear(0, 0);
+        assertEquals(List.of(new BankEntry(3, 5, "Bass", 3), new BankEntry(31, 127, "Init", 2)), g.entries());
+        assertThrows(IllegalArgumentException.class, () -> g.get(32, 0));
+    }
+
+    @Test
+    public void streamed(@TempDir Path dir) throws Exception {
+        // more responses than the 32 requests there used to be
+        for (int i = 0; i < 700; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve(String.format("patch %03d.pch2", i)));
+        }
+        G2Emulator g2 = new G2Emulator(dir);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        readThread.start();
+        try {
+            EntryGrid grid = EntryGrid.patches();
+            List<Integer> requestsSeen = new ArrayList<>();
+            assertTrue(Device.readEntryList(usb, readThread, true, e -> {
+                // first entries arrive with only the first response in
+                requestsSeen.add((int) g2.requests.get());
+                grid.accept(e);
+            }));
+            assertEquals(700, grid.size());
+            assertEquals(700, grid.poolSize());
+            assertEquals(1, requestsSeen.getFirst());
+            assertTrue(requestsSeen.getLast() > 32);
+            assertEquals("patch 129", grid.name(1, 1));
+            assertEquals("patch 699", grid.name(5, 59));
+            assertEquals(Device.readEntryList(usb, readThread, true), grid.toMap());
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void strayEmbedded(@TempDir Path dir) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve(String.format("patch %03d.pch2", i)));
+        }
+        G2Emulator g2 = new G2Emulator(dir);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        readThread.start();
+        try {
+            // a bank change notice nobody claimed waits in the mailbox
+            usb.sendSystemCmd("store", G2Emulator.S_STORE, 0, 0, 3);
+            readThread.expect("store", m -> m.head(0x62, 0x01, 0x0c, 0x00, 0x7f)).release();
+            EntryGrid grid = EntryGrid.patches();
+            assertTrue(Device.readEntryList(usb, readThread, true, grid));
+            assertEquals(4, grid.size());
+            assertEquals("patch 000", grid.name(0, 3));
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+}
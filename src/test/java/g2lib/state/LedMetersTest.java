@@ -0,0 +1,131 @@
+package g2lib.state;
+
+import g2lib.Util;
+import g2lib.usb.UsbMessage;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LedMetersTest {
+
+    static UsbMessage frame(int slot, int type, int... data) {
+        byte[] d = Util.asBytes(data);
+        ByteBuffer b = ByteBuffer.allocate(d.length + 6);
+        b.put(Util.asBytes(0x01, 0x08 + slot, 0x00, type)).put(d).rewind();
+        return new UsbMessage(b.limit(), true, 0, b);
+    }
+
+    static void setMeters(UsbMessage m, int v) {
+        for (int i = 4; i < m.buffer().limit() - 2; i += 2) {
+            m.buffer().putShort(i, (short) v);
+        }
+    }
+
+    @Test
+    public void leds() {
+        LedMeters lm = new LedMeters();
+        // module 3 has 2 LEDs, module 7 one
+        lm.setLayout(1, new int[] {3, 3, 7}, new int[0]);
+        assertTrue(lm.decode(frame(1, LedMeters.LED_DATA, 0x00, 0b01_10_11_00)));
+        assertEquals(1, lm.led(1, 3, 0));
+        assertEquals(2, lm.led(1, 3, 1));
+        assertEquals(3, lm.led(1, 7, 0));
+        assertEquals(0, lm.led(0, 3, 0));
+
+        assertFalse(lm.decode(frame(1, 0x27, 0x00)));
+        assertFalse(lm.decode(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x0c, 0x00, 0x39, 0, 0)))));
+    }
+
+    @Test
+    public void meters() {
+        LedMeters lm = new LedMeters(4);
+        assertEquals(4, lm.history());
+        lm.setLayout(2, new int[0], new int[] {5, 5, 9});
+        UsbMessage f = frame(2, LedMeters.VOLUME_DATA, 0, 0, 0, 0, 0, 0);
+        for (int v = 1; v <= 6; v++) {
+            f.buffer().putShort(4, (short) v);
+            f.buffer().putShort(6, (short) (v * 10));
+            f.buffer().putShort(8, (short) 0xfff0);
+            assertTrue(lm.decode(f));
+        }
+        assertEquals(6, lm.frames(2));
+        assertEquals(6, lm.meter(2, 5, 0));
+        assertEquals(60, lm.meter(2, 5, 1));
+        assertEquals(0xfff0, lm.meter(2, 9, 0));
+
+        int[] cur = new int[8];
+        assertEquals(3, lm.sampleMeters(2, cur));
+        assertArrayEquals(new int[] {6, 60, 0xfff0}, Arrays.copyOf(cur, 3));
+
+        int[] h = new int[8];
+        assertEquals(4, lm.meterHistory(2, 5, 1, h));
+        assertArrayEquals(new int[] {30, 40, 50, 60}, Arrays.copyOf(h, 4));
+        assertEquals(-1, lm.meterHistory(2, 6, 0, h));
+    }
+
+    @Test
+    public void largeFrame() {
+        LedMeters lm = new LedMeters(4);
+        // 2 bytes per meter, past the initial scratch size
+        int[] mods = new int[LedMeters.MAX_MODULES * 3];
+        for (int i = 0; i < mods.length; i++) { mods[i] = i / 3; }
+        lm.setLayout(0, new int[0], mods);
+        UsbMessage f = frame(0, LedMeters.VOLUME_DATA, new int[mods.length * 2]);
+        f.buffer().putShort(4 + 2 * (mods.length - 1), (short) 1234);
+        assertTrue(lm.decode(f));
+        assertEquals(1234, lm.meter(0, LedMeters.MAX_MODULES - 1, 2));
+    }
+
+    @Test
+    public void noAllocation() {
+        LedMeters lm = new LedMeters();
+        int[] mods = new int[64];
+        for (int i = 0; i < mods.length; i++) { mods[i] = i; }
+        lm.setLayout(0, mods, mods);
+        UsbMessage leds = frame(0, LedMeters.LED_DATA, new int[17]);
+        UsbMessage meters = frame(0, LedMeters.VOLUME_DATA, new int[128]);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20_000; i++) { lm.decode(leds); lm.decode(meters); }
+        long before = mx.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 20_000; i++) { lm.decode(leds); lm.decode(meters); }
+        long allocated = mx.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(allocated < 4096, "allocated " + allocated);
+    }
+
+    @Test
+    public void consistentSamples() throws Exception {
+        LedMeters lm = new LedMeters();
+        int[] mods = new int[32];
+        for (int i = 0; i < mods.length; i++) { mods[i] = i; }
+        lm.setLayout(3, new int[0], mods);
+        UsbMessage f = frame(3, LedMeters.VOLUME_DATA, new int[64]);
+        AtomicBoolean go = new AtomicBoolean(true);
+        AtomicInteger torn = new AtomicInteger();
+        AtomicInteger samples = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            int[] dst = new int[32];
+            while (go.get()) {
+                lm.sampleMeters(3, dst);
+                for (int v : dst) {
+                    if (v != dst[0]) { torn.incrementAndGet(); break; }
+                }
+                samples.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int v = 0; v < 200_000; v++) {
+            setMeters(f, v & 0xffff);
+            lm.decode(f);
+        }
+        go.set(false);
+        reader.join();
+        assertEquals(0, torn.get());
+        assertTrue(samples.get() > 0);
+    }
+}
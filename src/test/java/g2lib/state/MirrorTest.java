@@ -0,0 +1,181 @@
+package g2lib.state;
+
+import g2lib.usb.G2Emulator;
+import g2lib.usb.Usb;
+import g2lib.usb.UsbReadThread;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MirrorTest {
+
+    private static final Path PATCH = Path.of("data/simplesynth001-20240802.pch2");
+
+    interface Session {
+        void run(G2Emulator g2, Mirror mirror) throws Exception;
+    }
+
+    private static void session(Path device, Path local, Session s) throws Exception {
+        session(device, local, true, s);
+    }
+
+    private static void session(Path device, Path local, boolean replaceSlots, Session s) throws Exception {
+        G2Emulator g2 = new G2Emulator(device);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        Device d = new Device(usb, readThread);
+        try {
+            d.initialize();
+            s.run(g2, new Mirror(readThread, d, local, replaceSlots));
+            assertEquals(0, g2.errors.get());
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void incremental(@TempDir Path dir) throws Exception {
+        Path device = Files.createDirectory(dir.resolve("device"));
+        Path local = dir.resolve("local");
+        for (int i = 0; i < 6; i++) {
+            Files.copy(PATCH, device.resolve(String.format("p%03d.pch2", i)));
+        }
+        session(device, local, (g2, m) -> {
+            assertEquals(6, m.sync());
+            Path f = m.file(0, 5, "p005");
+            assertEquals(local.resolve("01/006 p005.pch2"), f);
+            assertArrayEquals(Files.readAllBytes(PATCH), Files.readAllBytes(f));
+
+            assertEquals(0, m.sync());
+            assertEquals(6, m.unchanged.get());
+
+            // local copy damaged
+            byte[] bs = Files.readAllBytes(f);
+            bs[100] ^= 1;
+            Files.write(f, bs);
+            assertEquals(1, m.sync());
+            assertArrayEquals(Files.readAllBytes(PATCH), Files.readAllBytes(f));
+        });
+
+        // renamed in place and last one deleted
+        Files.move(device.resolve("p002.pch2"), device.resolve("p002b.pch2"));
+        Files.delete(device.resolve("p005.pch2"));
+        session(device, local, (g2, m) -> {
+            assertEquals(1, m.sync());
+            assertEquals(1, m.deleted.get());
+            assertTrue(Files.exists(m.file(0, 2, "p002b")));
+            assertFalse(Files.exists(m.file(0, 2, "p002")));
+            assertFalse(Files.exists(m.file(0, 5, "p005")));
+            assertEquals(5, m.manifest().size());
+            assertEquals(5, Files.readAllLines(local.resolve(Mirror.MANIFEST)).size());
+        });
+    }
+
+    @Test
+    public void incomplete(@TempDir Path dir) throws Exception {
+        Path device = Files.createDirectory(dir.resolve("device"));
+        Path local = dir.resolve("local");
+        for (int i = 0; i < 4; i++) {
+            Files.copy(PATCH, device.resolve(String.format("p%03d.pch2", i)));
+        }
+        session(device, local, (g2, m) -> {
+            assertEquals(4, m.sync());
+
+            // list cut short after two entries: the rest stay
+            EntryGrid grid = EntryGrid.patches();
+            for (Mirror.Item i : m.manifest().values()) {
+                if (i.item() < 2) { grid.accept(new BankEntry(i.bank(), i.item(), i.name(), i.category())); }
+            }
+            assertEquals(0, m.sync(grid, false));
+            assertEquals(0, m.deleted.get());
+            assertEquals(4, m.manifest().size());
+            assertTrue(Files.exists(m.file(0, 3, "p003")));
+
+            // the same list, complete: the other two are gone
+            assertEquals(0, m.sync(grid));
+            assertEquals(2, m.deleted.get());
+            assertFalse(Files.exists(m.file(0, 3, "p003")));
+        });
+    }
+
+    @Test
+    public void withCache(@TempDir Path dir) throws Exception {
+        Path device = Files.createDirectory(dir.resolve("device"));
+        Path local = dir.resolve("local");
+        for (int i = 0; i < 150; i++) {
+            Files.copy(PATCH, device.resolve(String.format("p%03d.pch2", i)));
+        }
+        G2Emulator g2 = new G2Emulator(device);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        Device d = new Device(usb, readThread);
+        EntryCache cache = new EntryCache(dir.resolve("cache"));
+        try {
+            d.initialize();
+            cache.open(d.stamp(), EntryCache.fetch(d.scheduler(), readThread), ForkJoinPool.commonPool()).current().join();
+            // warm start: the refresh is reading while the mirror starts
+            EntryCache.Warm warm = cache.open(d.stamp(), EntryCache.fetch(d.scheduler(), readThread), ForkJoinPool.commonPool());
+            Mirror m = new Mirror(readThread, d, local, true);
+            assertEquals(150, m.sync(warm));
+            assertEquals(0, m.deleted.get());
+            assertEquals(150, m.manifest().size());
+            assertTrue(Files.exists(m.file(1, 21, "p149")));
+            assertEquals(0, cache.stale.get());
+            assertEquals(2, cache.fetches.get());
+            assertEquals(0, g2.errors.get());
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void slotsKept(@TempDir Path dir) throws Exception {
+        Path device = Files.createDirectory(dir.resolve("device"));
+        Path local = dir.resolve("local");
+        for (int i = 0; i < 6; i++) {
+            Files.copy(PATCH, device.resolve(String.format("p%03d.pch2", i)));
+        }
+        // not confirmed: nothing retrieved into the slots
+        session(device, local, false, (g2, m) -> {
+            assertThrows(IllegalStateException.class, m::sync);
+            for (int slot = 0; slot < 4; slot++) {
+                assertEquals(0, g2.version(slot));
+            }
+            assertTrue(m.manifest().isEmpty());
+        });
+    }
+
+    @Test
+    public void resume(@TempDir Path dir) throws Exception {
+        Path device = Files.createDirectory(dir.resolve("device"));
+        Path local = dir.resolve("local");
+        for (int i = 0; i < 5; i++) {
+            Files.copy(PATCH, device.resolve(String.format("p%03d.pch2", i)));
+        }
+        session(device, local, (g2, m) -> assertEquals(5, m.sync()));
+
+        // interrupted: last two lines never written, one file half written
+        Path manifest = local.resolve(Mirror.MANIFEST);
+        List<String> lines = Files.readAllLines(manifest);
+        Files.write(manifest, lines.subList(0, 3));
+        Path f = local.resolve("01/005 p004.pch2");
+        Files.delete(f);
+        Files.write(f.resolveSibling(f.getFileName() + ".tmp"), new byte[10]);
+
+        session(device, local, (g2, m) -> {
+            assertEquals(2, m.sync());
+            assertEquals(3, m.unchanged.get());
+            assertArrayEquals(Files.readAllBytes(PATCH), Files.readAllBytes(f));
+            assertFalse(Files.exists(f.resolveSibling(f.getFileName() + ".tmp")));
+            assertEquals(lines, Files.readAllLines(manifest));
+        });
+    }
+}
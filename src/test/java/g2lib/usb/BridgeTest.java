@@ -0,0 +1,199 @@
+package g2lib.usb;
+
+import g2lib.CRC16;
+import g2lib.state.Device;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BridgeTest {
+
+    @Test
+    public void remoteDevice(@TempDir Path dir) throws Exception {
+        Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve("a.pch2"));
+        G2Emulator g2 = new G2Emulator(dir);
+        Usb local = new Usb(g2);
+        UsbReadThread localRead = new UsbReadThread(local);
+        try (BridgeServer server = new BridgeServer(local, localRead, new InetSocketAddress("127.0.0.1", 0))) {
+            localRead.start();
+            BridgeClient a = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            BridgeClient b = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            await(() -> server.clients() == 2);
+
+            Usb usb = new Usb(a);
+            UsbReadThread readThread = new UsbReadThread(usb);
+            Device d = new Device(usb, readThread);
+            d.initialize();
+            List<Device.SlotInfo> slots = d.readSlots();
+            assertEquals("a", slots.get(3).name());
+            assertEquals(0, g2.errors.get());
+
+            // responses went to a only: init, perf version, stop, synth settings, 4 versions, 4 names, 4 texts
+            assertEquals(2 + 1 + 1 + 2 + 4 + 8 + 8 + a.roundTrip.count.get(), a.framesIn.get());
+            assertEquals(0, b.framesIn.get());
+            assertEquals(16, server.routed.get());
+            assertEquals(0, server.broadcasts.get());
+            assertEquals(server.sends.get(), a.roundTrip.count.get());
+            assertTrue(server.writes.get() <= server.framesOut.get() + server.sends.get());
+
+            for (int i = 0; i < 1000; i++) { assertTrue(a.ping() >= 0); }
+            // loopback, so this is the bridge's own overhead
+            assertTrue(a.pings.quantile(0.5) <= 1024, a.pings.toString());
+
+            readThread.go.set(false);
+            readThread.thread.join();
+            a.close();
+            b.close();
+        } finally {
+            localRead.go.set(false);
+            localRead.thread.join();
+        }
+    }
+
+    @Test
+    public void serverGone() throws Exception {
+        Usb local = new Usb(new G2Emulator(Path.of("data")));
+        UsbReadThread localRead = new UsbReadThread(local);
+        BridgeClient c;
+        try (BridgeServer server = new BridgeServer(local, localRead, new InetSocketAddress("127.0.0.1", 0))) {
+            c = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            assertTrue(c.ping() >= 0);
+        }
+        assertEquals(-1, c.ping());
+        assertEquals(-4, c.readInterrupt(ByteBuffer.allocateDirect(16), 100));
+        c.close();
+    }
+
+    @Test
+    public void noTimeout() throws Exception {
+        Usb local = new Usb(new G2Emulator(Path.of("data")));
+        UsbReadThread localRead = new UsbReadThread(local);
+        BridgeClient c;
+        CompletableFuture<Integer> waiting;
+        try (BridgeServer server = new BridgeServer(local, localRead, new InetSocketAddress("127.0.0.1", 0))) {
+            localRead.start();
+            c = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            await(() -> server.clients() == 1);
+            // 0 waits for the response, as libusb does, instead of returning at once
+            CompletableFuture<Integer> r = CompletableFuture.supplyAsync(() -> c.readInterrupt(ByteBuffer.allocateDirect(16), 0));
+            Thread.sleep(50);
+            assertFalse(r.isDone());
+            assertTrue(new Usb(c).sendSystemCmd("synth settings", G2Emulator.Q_SYNTH_SETTINGS) > 0);
+            assertTrue(r.get(5, TimeUnit.SECONDS) > 0);
+            assertTrue(c.readBulk(ByteBuffer.allocateDirect(1024), 0) > 0);
+            waiting = CompletableFuture.supplyAsync(() -> c.readInterrupt(ByteBuffer.allocateDirect(16), 0));
+            Thread.sleep(50);
+            assertFalse(waiting.isDone());
+        } finally {
+            localRead.go.set(false);
+            localRead.thread.join();
+        }
+        // a read waiting without timeout still learns the server is gone
+        assertEquals(-4, waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(-4, c.readBulk(ByteBuffer.allocateDirect(16), 0));
+        c.close();
+    }
+
+    /**
+     * Emulated G2 that can also push a message nobody asked for.
+     */
+    static class Chatty implements UsbTransport {
+        final G2Emulator g2;
+        final ConcurrentLinkedQueue<byte[]> pushed = new ConcurrentLinkedQueue<>();
+
+        Chatty(G2Emulator g2) {
+            this.g2 = g2;
+        }
+
+        @Override
+        public int sendBulk(ByteBuffer data, int timeout) {
+            return g2.sendBulk(data, timeout);
+        }
+
+        @Override
+        public int readInterrupt(ByteBuffer buffer, int timeout) {
+            byte[] p = pushed.poll();
+            if (p == null) { return g2.readInterrupt(buffer, timeout); }
+            buffer.put(0, p);
+            return p.length;
+        }
+
+        @Override
+        public int readBulk(ByteBuffer buffer, int timeout) {
+            return g2.readBulk(buffer, timeout);
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    @Test
+    public void unsolicited(@TempDir Path dir) throws Exception {
+        Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve("a.pch2"));
+        Chatty chatty = new Chatty(new G2Emulator(dir));
+        Usb local = new Usb(chatty);
+        UsbReadThread localRead = new UsbReadThread(local);
+        try (BridgeServer server = new BridgeServer(local, localRead, new InetSocketAddress("127.0.0.1", 0))) {
+            localRead.start();
+            BridgeClient a = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            BridgeClient b = new BridgeClient(new InetSocketAddress("127.0.0.1", server.port()));
+            await(() -> server.clients() == 2);
+
+            // a asks for the slot 0 version: the answer is a's alone
+            Usb usb = new Usb(a);
+            usb.sendSystemCmd("slot 0 version", G2Emulator.Q_VERSION_CNT, 0);
+            UsbMessage m = usb.readInterrupt(5000);
+            assertTrue(m.head(0x82, 0x01, 0x0c, 0x40, 0x36, 0x00));
+            m.release();
+
+            // then the device sends on its own: both get it
+            byte[] led = {0x01, 0x08, 0x00, 0x39, 0x00};
+            int crc = CRC16.crc16(led, 0, led.length);
+            chatty.pushed.add(new byte[] {0x72, 0x01, 0x08, 0x00, 0x39, 0x00, (byte) (crc >> 8), (byte) crc, 0, 0, 0, 0, 0, 0, 0, 0});
+            await(() -> b.framesIn.get() == 1);
+            await(() -> a.framesIn.get() == 3); // ack, version, LEDs
+            assertEquals(1, server.routed.get());
+            assertEquals(1, server.broadcasts.get());
+            a.close();
+            b.close();
+        } finally {
+            localRead.go.set(false);
+            localRead.thread.join();
+        }
+    }
+
+    @Test
+    public void badFrameLength() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            BridgeClient c = new BridgeClient((InetSocketAddress) server.getLocalAddress());
+            try (SocketChannel ch = server.accept()) {
+                ch.write(ByteBuffer.allocate(5).putInt(0, 0));
+                // the client drops the connection instead of spinning on the frame
+                assertEquals(-1, ch.read(ByteBuffer.allocate(1)));
+            }
+            assertEquals(-4, c.readInterrupt(ByteBuffer.allocateDirect(16), 100));
+            c.close();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) { fail("timed out"); }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    public void sizeClasses() {
+        assertEquals(0, BufferPool.sizeClass(0));
+        assertEquals(0, BufferPool.sizeClass(16));
+        assertEquals(1, BufferPool.sizeClass(17));
+        assertEquals(1, BufferPool.sizeClass(32));
+        assertEquals(12, BufferPool.sizeClass(BufferPool.MAX_SIZE));
+    }
+
+    @Test
+    public void leases() {
+        BufferPool pool = new BufferPool(2);
+        BufferPool.Lease a = pool.acquire(100);
+        ByteBuffer b = a.buffer();
+        assertTrue(b.isDirect());
+        assertEquals(100, b.capacity());
+        assertEquals(0, b.position());
+        assertEquals(1, pool.misses.get());
+        assertEquals(1, pool.outstanding.get());
+
+        a.release();
+        a.release();
+        assertTrue(a.released());
+        assertEquals(0, pool.outstanding.get());
+        assertEquals(1, pool.retained());
+
+        // same size class reuses the buffer
+        try (BufferPool.Lease c = pool.acquire(128)) {
+            assertEquals(128, c.buffer().capacity());
+            assertEquals(1, pool.hits.get());
+            assertEquals(0, pool.retained());
+        }
+        assertEquals(0, pool.outstanding.get());
+
+        // retention is capped per class
+        BufferPool.Lease[] ls = new BufferPool.Lease[3];
+        for (int i = 0; i < ls.length; i++) { ls[i] = pool.acquire(20); }
+        for (BufferPool.Lease l : ls) { l.release(); }
+        assertEquals(3, pool.retained()); // 2 of size 32, 1 of size 128
+
+        // oversize buffers are not pooled
+        pool.acquire(BufferPool.MAX_SIZE + 1).release();
+        assertEquals(3, pool.retained());
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test
+    public void messageRelease() {
+        BufferPool pool = new BufferPool();
+        BufferPool.Lease l = pool.acquire(6);
+        l.buffer().put(new byte[] {1, 2, 3, 4, 0, 0}).rewind();
+        UsbMessage m = UsbMessage.fromBulk(l, 6);
+        assertSame(l, m.lease());
+        assertEquals(1, pool.outstanding.get());
+        m.release();
+        assertEquals(0, pool.outstanding.get());
+        new UsbMessage(0, false, 0, null).release();
+    }
+}
@@ -0,0 +1,116 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static g2lib.usb.CommandScheduler.Priority.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CommandSchedulerTest {
+
+    private static CompletableFuture<String> record(List<String> order, String name) {
+        order.add(name);
+        return CompletableFuture.completedFuture(name);
+    }
+
+    /** Occupy the scheduler thread until the returned latch is released. */
+    private static CountDownLatch block(CommandScheduler cs) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        cs.submit(INTERACTIVE, "block", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void priorities() throws Exception {
+        try (CommandScheduler cs = new CommandScheduler(mock(Usb.class))) {
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch release = block(cs);
+            List<CompletableFuture<String>> fs = new ArrayList<>();
+            for (int i = 0; i < 2; i++) { fs.add(cs.submit(BACKGROUND, "b" + i, () -> record(order, "B"))); }
+            for (int i = 0; i < 2; i++) { fs.add(cs.submit(AUTOMATION, "a" + i, () -> record(order, "A"))); }
+            for (int i = 0; i < 3; i++) { fs.add(cs.submit(INTERACTIVE, "i" + i, () -> record(order, "I"))); }
+            assertEquals(2, cs.stats(BACKGROUND).depth());
+            release.countDown();
+            CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("I", "I", "I", "A", "A", "B", "B"), order);
+            assertEquals(0, cs.stats(BACKGROUND).depth());
+            assertEquals(2, cs.stats(BACKGROUND).sent.get());
+            assertEquals(2, cs.stats(BACKGROUND).queueDelay.count.get());
+            assertEquals(4, cs.stats(INTERACTIVE).sent.get());
+        }
+    }
+
+    @Test
+    public void fairShare() throws Exception {
+        try (CommandScheduler cs = new CommandScheduler(mock(Usb.class))) {
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch release = block(cs);
+            List<CompletableFuture<String>> fs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) { fs.add(cs.submit(BACKGROUND, "b" + i, () -> record(order, "B"))); }
+            for (int i = 0; i < 20; i++) { fs.add(cs.submit(INTERACTIVE, "i" + i, () -> record(order, "I"))); }
+            release.countDown();
+            CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            // background gets one command per interactive round instead of waiting for all 20
+            assertEquals("B", order.get(7));
+            assertEquals("B", order.get(16));
+        }
+    }
+
+    @Test
+    public void inFlightLimit() throws Exception {
+        try (CommandScheduler cs = new CommandScheduler(mock(Usb.class))) {
+            CompletableFuture<String> response = new CompletableFuture<>();
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<String> b0 = cs.submit(BACKGROUND, "b0", () -> { order.add("b0"); return response; });
+            CompletableFuture<String> b1 = cs.submit(BACKGROUND, "b1", () -> record(order, "b1"));
+            while (order.isEmpty()) { Thread.sleep(1); }
+            cs.submit(INTERACTIVE, "i0", () -> record(order, "i0")).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("b0", "i0"), order);
+            assertEquals(1, cs.stats(BACKGROUND).inFlight());
+            assertFalse(b1.isDone());
+            response.complete("done");
+            assertEquals("done", b0.get(5, TimeUnit.SECONDS));
+            b1.get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("b0", "i0", "b1"), order);
+        }
+    }
+
+    @Test
+    public void sendsThroughUsb() throws Exception {
+        Usb usb = mock(Usb.class);
+        when(usb.sendSystemCmd(eq("perf version"), anyInt(), anyInt())).thenReturn(9);
+        try (CommandScheduler cs = new CommandScheduler(usb)) {
+            assertEquals(9, cs.sendSystemCmd(INTERACTIVE, "perf version", 0x35, 0x04).get(5, TimeUnit.SECONDS));
+        }
+        verify(usb).sendSystemCmd("perf version", 0x35, 0x04);
+    }
+
+    @Test
+    public void nullFuture() throws Exception {
+        try (CommandScheduler cs = new CommandScheduler(mock(Usb.class))) {
+            CompletableFuture<String> f = cs.submit(INTERACTIVE, "null", () -> null);
+            assertThrows(Exception.class, () -> f.get(5, TimeUnit.SECONDS));
+            assertEquals(1, cs.stats(INTERACTIVE).failed.get());
+            assertEquals(0, cs.stats(INTERACTIVE).sent.get());
+            // dispatcher still running
+            assertEquals("ok", cs.submit(INTERACTIVE, "ok", () -> CompletableFuture.completedFuture("ok")).get(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package g2lib.usb;
+
+import g2lib.state.Device;
+import g2lib.state.Patch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class G2EmulatorTest {
+
+    private static G2Emulator emulator(Path dir, int patches) throws Exception {
+        for (int i = 0; i < patches; i++) {
+            Files.copy(Path.of("data/simplesynth001-20240802.pch2"), dir.resolve(String.format("patch %03d.pch2", i)));
+        }
+        return new G2Emulator(dir);
+    }
+
+    @Test
+    public void session(@TempDir Path dir) throws Exception {
+        G2Emulator g2 = emulator(dir, 130);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        Device d = new Device(usb, readThread);
+        try {
+            d.initialize();
+
+            g2.load(2, g2.patches().get(129));
+            List<Device.SlotInfo> slots = d.readSlots();
+            assertEquals("patch 001", slots.get(1).name());
+            assertEquals("patch 129", slots.get(2).name());
+            assertEquals(1, slots.get(2).version());
+            assertEquals("Writing notes ...", slots.get(0).text());
+
+            usb.sendSlotCmd(1, 0, "slot 1 patch", G2Emulator.Q_PATCH);
+            UsbMessage m = readThread.expect("slot 1 patch", msg -> msg.head(0x01, 0x09, 0x00, 0x21));
+            Patch p = Patch.readFromMessage(m.buffer().rewind());
+            assertEquals(9, p.slot);
+            m.release();
+
+            Map<Integer, Map<Integer, String>> banks = Device.readEntryList(usb, readThread, true);
+            assertEquals(128, banks.get(0).size());
+            assertEquals("patch 127", banks.get(0).get(127));
+            assertEquals(Map.of(0, "patch 128", 1, "patch 129"), banks.get(1));
+
+            assertEquals(0, g2.errors.get());
+            assertEquals(g2.requests.get(), g2.responses.get());
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void latency(@TempDir Path dir) throws Exception {
+        G2Emulator g2 = emulator(dir, 1);
+        g2.setLatency(20_000, 5_000);
+        Usb usb = new Usb(g2);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        readThread.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                usb.sendSystemCmd("stop comm", G2Emulator.S_START_STOP_COM, 0x01);
+                UsbMessage m = readThread.expect("stop comm", msg -> msg.head(0x62, 0x01));
+                long micros = (System.nanoTime() - start) / 1000;
+                assertNotNull(m);
+                assertTrue(micros >= 20_000, "round trip " + micros + "us");
+                m.release();
+            }
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+
+    @Test
+    public void noTimeout(@TempDir Path dir) throws Exception {
+        G2Emulator g2 = emulator(dir, 1);
+        // 0 waits for the response, as libusb does, instead of timing out
+        CompletableFuture<Integer> r = CompletableFuture.supplyAsync(() -> g2.readInterrupt(ByteBuffer.allocateDirect(16), 0));
+        Thread.sleep(50);
+        assertFalse(r.isDone());
+        new Usb(g2).sendSystemCmd("synth settings", G2Emulator.Q_SYNTH_SETTINGS);
+        assertEquals(16, r.get(5, TimeUnit.SECONDS));
+        assertTrue(g2.readBulk(ByteBuffer.allocateDirect(1024), 0) > 0);
+    }
+}
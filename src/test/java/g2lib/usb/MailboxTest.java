@@ -0,0 +1,102 @@
+package g2lib.usb;
+
+import g2lib.Util;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxTest {
+
+    static UsbMessage msg(int... bytes) {
+        return new UsbMessage(bytes.length, false, 0, ByteBuffer.wrap(Util.asBytes(bytes)));
+    }
+
+    @Test
+    public void selective() throws Exception {
+        RingBuffer<UsbMessage> ring = new RingBuffer<>(16, RingBuffer.Overflow.FAIL, RingBuffer.Wait.PARK);
+        Mailbox mb = new Mailbox(ring);
+        UsbMessage stop = msg(0x62, 0x01, 0x0c, 0x00, 0x7f);
+        UsbMessage version = msg(0x82, 0x01, 0x0c, 0x40, 0x36, 0x04, 0x00);
+        UsbMessage slot = msg(0x82, 0x01, 0x0c, 0x40, 0x36, 0x01, 0x00);
+        ring.offer(stop);
+        ring.offer(slot);
+        ring.offer(version);
+
+        // out-of-order responses stay queued for later expectations
+        UsbMessage m = mb.expect("perf version", 100, 0x82, 0x01, 0x0c, 0x40, 0x36, 0x04);
+        assertSame(version, m);
+        assertEquals(6, m.buffer().position());
+        assertEquals(2, mb.backlog());
+        assertSame(slot, mb.expect("any version", m2 -> m2.test(0, 0x82), 100));
+        assertSame(stop, mb.expect("stop", 100, 0x62, 0x01));
+        assertEquals(0, mb.backlog());
+
+        assertNull(mb.expect("stop", 10, 0x62, 0x01));
+        Histogram h = mb.stats().get("stop");
+        assertEquals(1, h.count.get());
+        assertEquals(1, h.timeouts.get());
+        assertEquals(1, mb.stats().get("perf version").count.get());
+    }
+
+    @Test
+    public void predicateTakesOldest() throws Exception {
+        RingBuffer<UsbMessage> ring = new RingBuffer<>(16, RingBuffer.Overflow.FAIL, RingBuffer.Wait.PARK);
+        Mailbox mb = new Mailbox(ring);
+        UsbMessage a = msg(0x82, 0x01, 0x00);
+        UsbMessage b = msg(0x62, 0x01, 0x00);
+        UsbMessage c = msg(0x72, 0x02, 0x00);
+        ring.offer(a);
+        ring.offer(b);
+        ring.offer(c);
+        assertSame(b, mb.expect("2nd byte", m -> m.test(1, 0x01) && m != a, 100));
+        assertSame(a, mb.expect("2nd byte", m -> m.test(1, 0x01), 100));
+    }
+
+    @Test
+    public void concurrentWaiters() throws Exception {
+        RingBuffer<UsbMessage> ring = new RingBuffer<>(16, RingBuffer.Overflow.BLOCK, RingBuffer.Wait.PARK);
+        Mailbox mb = new Mailbox(ring);
+        UsbMessage[] got = new UsbMessage[3];
+        Thread[] ts = new Thread[3];
+        for (int i = 0; i < ts.length; i++) {
+            int n = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    got[n] = mb.expect("slot " + n, 5000, 0x01, 0x08 + n);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            ts[i].start();
+        }
+        Thread.sleep(20);
+        UsbMessage[] sent = new UsbMessage[3];
+        for (int i = ts.length - 1; i >= 0; i--) {
+            sent[i] = msg(0x01, 0x08 + i, 0x00, 0x27);
+            ring.offer(msg(0x72, i));
+            ring.offer(sent[i]);
+        }
+        for (Thread t : ts) { t.join(5000); }
+        assertArrayEquals(sent, got);
+        assertEquals(3, mb.backlog());
+    }
+
+    @Test
+    public void backlogLimit() throws Exception {
+        BufferPool pool = new BufferPool();
+        RingBuffer<UsbMessage> ring = new RingBuffer<>(16, RingBuffer.Overflow.FAIL, RingBuffer.Wait.PARK);
+        Mailbox mb = new Mailbox(ring, 2);
+        for (int i = 0; i < 3; i++) {
+            BufferPool.Lease l = pool.acquire(16);
+            l.buffer().put(0, (byte) (0x10 * (i + 1)));
+            ring.offer(UsbMessage.fromInterrupt(l));
+        }
+        assertEquals(2, mb.backlog());
+        assertEquals(1, mb.discarded.get());
+        assertEquals(2, pool.outstanding.get());
+        assertNull(mb.expect("first", 10, 0x10));
+        assertNotNull(mb.expect("second", 10, 0x20));
+    }
+}
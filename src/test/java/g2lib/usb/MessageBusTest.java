@@ -0,0 +1,64 @@
+package g2lib.usb;
+
+import g2lib.Util;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageBusTest {
+
+    @Test
+    public void dispatch() throws Exception {
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        MessageBus bus = new MessageBus(ex);
+        List<String> got = new ArrayList<>();
+        MessageBus.Subscription s1 = bus.subscribeSlot(1, 0x27, (m, d) ->
+                got.add("name " + d.remaining() + " " + (char) d.get(4)));
+        bus.subscribeSlot(MessageBus.ANY_SLOT, 0x40, (m, d) -> got.add("param " + (d.get(1) & 0x0f)));
+        bus.subscribeSystem(0x7f, (m, d) -> got.add("stop " + d.remaining()));
+
+        ByteBuffer name = Util.readFile("data/msg_Slot1Name_2cca.msg");
+        BufferPool pool = new BufferPool();
+        BufferPool.Lease lease = pool.acquire(name.limit());
+        lease.buffer().put(name).rewind();
+        assertTrue(bus.dispatch(UsbMessage.fromBulk(lease, lease.buffer().limit())));
+        // embedded: 62 01 0c 00 7f -- stop; payload excludes length byte and CRC
+        assertTrue(bus.dispatch(new UsbMessage(0, false, 0, ByteBuffer.wrap(Util.asBytes(0x62, 0x01, 0x0c, 0x00, 0x7f, 0, 0)))));
+        assertTrue(bus.dispatch(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x0a, 0x00, 0x40, 0, 0)))));
+        // no subscriber: slot 0 name, slot 1 description, request echo
+        assertFalse(bus.dispatch(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x08, 0x00, 0x27, 0, 0)))));
+        assertFalse(bus.dispatch(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x09, 0x00, 0x21, 0, 0)))));
+        assertFalse(bus.dispatch(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x29, 0x00, 0x27, 0, 0)))));
+
+        s1.close();
+        assertFalse(bus.dispatch(new UsbMessage(0, true, 0, ByteBuffer.wrap(Util.asBytes(0x01, 0x09, 0x00, 0x27, 0, 0)))));
+
+        ex.shutdown();
+        assertTrue(ex.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(List.of("name 20 s", "stop 4", "param 10"), got);
+        assertEquals(3, bus.dispatched.get());
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test
+    public void handlerErrors() throws Exception {
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        MessageBus bus = new MessageBus(ex);
+        List<Integer> got = new ArrayList<>();
+        bus.subscribeSystem(0x36, (m, d) -> { throw new RuntimeException("boom"); });
+        bus.subscribeSystem(0x36, (m, d) -> got.add(d.get(4) & 0xff));
+        assertTrue(bus.dispatch(new UsbMessage(0, false, 0,
+                ByteBuffer.wrap(Util.asBytes(0x82, 0x01, 0x0c, 0x40, 0x36, 0x04, 0x00, 0, 0)))));
+        ex.shutdown();
+        assertTrue(ex.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(List.of(4), got);
+        assertEquals(1, bus.errors.get());
+    }
+}
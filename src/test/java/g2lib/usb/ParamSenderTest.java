@@ -0,0 +1,101 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ParamSenderTest {
+
+    private static List<int[]> capture(Usb usb) {
+        List<int[]> sent = new ArrayList<>();
+        when(usb.sendSlotCmd(anyInt(), anyInt(), anyString(), (int[]) any())).thenAnswer(inv -> {
+            // slot, version, then the expanded varargs
+            Object[] args = inv.getArguments();
+            int[] r = new int[args.length - 1];
+            r[0] = (Integer) args[0];
+            r[1] = (Integer) args[1];
+            for (int i = 3; i < args.length; i++) { r[i - 1] = (Integer) args[i]; }
+            sent.add(r);
+            return r.length + 5;
+        });
+        return sent;
+    }
+
+    @Test
+    public void coalesce() {
+        Usb usb = mock(Usb.class);
+        List<int[]> sent = capture(usb);
+        try (CommandScheduler cs = new CommandScheduler(usb)) {
+            ParamSender ps = new ParamSender(cs, CommandScheduler.Priority.INTERACTIVE, s -> s + 10, 0);
+            for (int v = 0; v < 100; v++) {
+                ps.set(1, 1, 3, 2, v, 0);
+            }
+            ps.set(1, 0, 4, 5, 64, 1);
+            ps.set(2, 1, 3, 2, 7, 0);
+            assertEquals(3, ps.pending());
+            assertEquals(3, ps.flush());
+            assertEquals(0, ps.flush());
+
+            assertEquals(2, sent.size());
+            assertArrayEquals(new int[] {1, 11, 0x40, 1, 3, 2, 99, 0, 0x40, 0, 4, 5, 64, 1}, sent.get(0));
+            assertArrayEquals(new int[] {2, 12, 0x40, 1, 3, 2, 7, 0}, sent.get(1));
+            assertEquals(102, ps.submitted.get());
+            assertEquals(99, ps.coalesced.get());
+            assertEquals(3, ps.transmitted.get());
+            assertEquals(2, ps.transfers.get());
+        }
+    }
+
+    @Test
+    public void batchLimit() {
+        Usb usb = mock(Usb.class);
+        List<int[]> sent = capture(usb);
+        try (CommandScheduler cs = new CommandScheduler(usb)) {
+            ParamSender ps = new ParamSender(cs, CommandScheduler.Priority.INTERACTIVE, s -> 0, 0);
+            for (int p = 0; p < ParamSender.MAX_BATCH + 1; p++) {
+                ps.set(0, 1, 1, p, p, 0);
+            }
+            assertEquals(ParamSender.MAX_BATCH + 1, ps.flush());
+            assertEquals(2, sent.size());
+            assertEquals(2 + 6 * ParamSender.MAX_BATCH, sent.get(0).length);
+        }
+    }
+
+    @Test
+    public void failedSendRequeues() {
+        Usb usb = mock(Usb.class);
+        when(usb.sendSlotCmd(anyInt(), anyInt(), anyString(), (int[]) any())).thenReturn(0);
+        try (CommandScheduler cs = new CommandScheduler(usb)) {
+            ParamSender ps = new ParamSender(cs, CommandScheduler.Priority.INTERACTIVE, s -> 0, 0);
+            ps.set(0, 1, 1, 1, 10, 0);
+            assertEquals(0, ps.flush());
+            assertEquals(1, ps.pending());
+            assertEquals(1, ps.failures.get());
+            assertEquals(0, ps.transmitted.get());
+        }
+    }
+
+    @Test
+    public void rateLimited() throws Exception {
+        Usb usb = mock(Usb.class);
+        List<int[]> sent = capture(usb);
+        try (CommandScheduler cs = new CommandScheduler(usb);
+             ParamSender ps = new ParamSender(cs, CommandScheduler.Priority.INTERACTIVE, s -> 0, 50)) {
+            long end = System.nanoTime() + 200_000_000L;
+            int v = 0;
+            while (System.nanoTime() < end) {
+                ps.set(0, 1, 7, 0, v++ & 0x7f, 0);
+                Thread.sleep(0, 100_000);
+            }
+            ps.set(0, 1, 7, 0, 42, 0);
+        }
+        // ~10 flushes in 200ms at 50/s, plus the final one on close
+        assertTrue(sent.size() <= 13, "transfers: " + sent.size());
+        assertEquals(42, sent.getLast()[6]);
+    }
+}
@@ -0,0 +1,29 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class PipelineTest {
+
+    @Test
+    public void failedSend() throws Exception {
+        Usb usb = mock(Usb.class);
+        when(usb.sendSystemCmd(anyString(), any(int[].class))).thenReturn(0);
+        try (CommandScheduler cs = new CommandScheduler(usb)) {
+            Pipeline p = new Pipeline(cs, CommandScheduler.Priority.INTERACTIVE, mock(UsbReadThread.class), 60_000);
+            CompletableFuture<UsbMessage> f = p.sendSystemCmd("stop", m -> true, 0x7d, 0x01);
+            // fails now, not at the response timeout
+            ExecutionException e = assertThrows(ExecutionException.class, () -> f.get(1, TimeUnit.SECONDS));
+            assertTrue(e.getCause().getMessage().contains("send failed: stop"));
+            assertEquals(0, p.pending());
+            assertEquals(1, cs.stats(CommandScheduler.Priority.INTERACTIVE).failed.get());
+            assertEquals(0, cs.stats(CommandScheduler.Priority.INTERACTIVE).inFlight());
+        }
+    }
+}
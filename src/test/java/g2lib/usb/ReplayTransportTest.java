@@ -0,0 +1,158 @@
+package g2lib.usb;
+
+import g2lib.state.Device;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayTransportTest {
+
+    /**
+     * Answers the {@link Device#initialize} sequence from the captured
+     * responses in data/, after {@code delayMillis}.
+     */
+    static class FakeG2 implements UsbTransport {
+        final LinkedBlockingQueue<byte[]> interrupts = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<byte[]> bulks = new LinkedBlockingQueue<>();
+        final long delayMillis;
+
+        FakeG2(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        static byte[] file(String name) {
+            try {
+                return Files.readAllBytes(Path.of("data/msg_" + name + ".msg"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void extended(String name) {
+            byte[] data = file(name);
+            byte[] i = new byte[16];
+            i[0] = 0x01;
+            i[1] = (byte) (data.length >> 8);
+            i[2] = (byte) data.length;
+            bulks.add(data);
+            interrupts.add(i);
+        }
+
+        @Override
+        public int sendBulk(ByteBuffer data, int timeout) {
+            // 2 size bytes, then 80 (init) or 01 2c 41 cmd ...
+            byte init = data.get(2);
+            byte cmd = data.capacity() > 5 ? data.get(5) : 0;
+            CompletableFuture.delayedExecutor(delayMillis,TimeUnit.MILLISECONDS).execute(() -> {
+                if (init == (byte) 0x80) {
+                    extended("Init_3924");
+                } else {
+                    switch (cmd) {
+                        case 0x35 -> interrupts.add(file("PerfVersion_1bd6"));
+                        case 0x7d -> interrupts.add(file("CommStop_8cad"));
+                        case 0x02 -> extended("SynthSettings_f574");
+                        default -> { }
+                    }
+                }
+            });
+            return data.capacity();
+        }
+
+        private static int read(LinkedBlockingQueue<byte[]> q, ByteBuffer buffer, int timeout) {
+            try {
+                byte[] bs = q.poll(timeout,TimeUnit.MILLISECONDS);
+                if (bs == null) { return -7; }
+                buffer.put(0,bs,0,Math.min(bs.length,buffer.capacity()));
+                return Math.min(bs.length,buffer.capacity());
+            } catch (InterruptedException e) {
+                return -10;
+            }
+        }
+
+        @Override
+        public int readInterrupt(ByteBuffer buffer, int timeout) {
+            return read(interrupts,buffer,timeout);
+        }
+
+        @Override
+        public int readBulk(ByteBuffer buffer, int timeout) {
+            return read(bulks,buffer,timeout);
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    private static long initialize(UsbTransport transport) throws Exception {
+        Usb usb = new Usb(transport);
+        UsbReadThread readThread = new UsbReadThread(usb);
+        long start = System.nanoTime();
+        new Device(usb,readThread).initialize();
+        long elapsed = System.nanoTime() - start;
+        readThread.go.set(false);
+        readThread.thread.join();
+        usb.shutdown();
+        return elapsed;
+    }
+
+    @Test
+    public void recordAndReplay(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("session.g2log");
+        RecordingTransport rec = new RecordingTransport(new FakeG2(20),log);
+        initialize(rec);
+
+        List<RecordingTransport.Entry> es = RecordingTransport.read(log);
+        assertEquals(rec.entries.get(),es.size());
+        assertEquals(4,es.stream().filter(e -> !e.in()).count());
+        assertEquals(4,es.stream().filter(e -> e.endpoint() == UsbTransport.INTERRUPT_IN).count());
+        assertEquals(2,es.stream().filter(e -> e.endpoint() == UsbTransport.BULK_IN).count());
+        assertEquals((byte) 0x80,es.get(0).data()[2]);
+
+        ReplayTransport fast = new ReplayTransport(log,0);
+        initialize(fast);
+        assertEquals(0,fast.mismatches.get());
+        assertEquals(0,fast.remaining());
+
+        // four sends, each answered 20ms later in the recording
+        ReplayTransport paced = new ReplayTransport(es,1);
+        long elapsed = initialize(paced);
+        assertEquals(0,paced.mismatches.get());
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(70),"replayed in " + elapsed + "ns");
+    }
+
+    @Test
+    public void sendMismatch() {
+        ReplayTransport t = new ReplayTransport(List.of(
+                new RecordingTransport.Entry(0,UsbTransport.BULK_OUT,3,new byte[] {1,2,3}),
+                new RecordingTransport.Entry(10,UsbTransport.INTERRUPT_IN,2,new byte[] {5,6})),0);
+        ByteBuffer b = ByteBuffer.allocateDirect(16);
+        assertEquals(-7,t.readInterrupt(b,10));
+        assertEquals(3,t.sendBulk(ByteBuffer.allocateDirect(3).put(0,(byte) 9),100));
+        assertEquals(1,t.mismatches.get());
+        assertEquals(2,t.readInterrupt(b,10));
+        assertEquals(6,b.get(1));
+        assertEquals(-4,t.sendBulk(ByteBuffer.allocateDirect(3),100));
+    }
+
+    @Test
+    public void noTimeout() throws Exception {
+        ReplayTransport t = new ReplayTransport(List.of(
+                new RecordingTransport.Entry(0,UsbTransport.BULK_OUT,1,new byte[] {1}),
+                new RecordingTransport.Entry(10,UsbTransport.INTERRUPT_IN,1,new byte[] {5})),0);
+        // 0 waits for the read to come due, as libusb does, instead of timing out
+        CompletableFuture<Integer> r = CompletableFuture.supplyAsync(() -> t.readInterrupt(ByteBuffer.allocateDirect(16),0));
+        Thread.sleep(50);
+        assertFalse(r.isDone());
+        assertEquals(1,t.sendBulk(ByteBuffer.allocateDirect(1).put(0,(byte) 1),100));
+        assertEquals(1,r.get(5,TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,98 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static g2lib.usb.RingBuffer.Overflow.*;
+import static g2lib.usb.RingBuffer.Wait.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+
+    @Test
+    public void fifo() throws Exception {
+        RingBuffer<Integer> r = new RingBuffer<>(3, FAIL, PARK);
+        assertEquals(4, r.capacity());
+        assertNull(r.poll());
+        for (int i = 0; i < 10; i++) {
+            r.offer(i);
+            r.offer(i + 100);
+            assertEquals(i, r.poll());
+            assertEquals(i + 100, r.take());
+        }
+        assertEquals(0, r.size());
+        assertEquals(2, r.peak.get());
+        assertNull(r.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        List<Integer> dropped = new ArrayList<>();
+        RingBuffer<Integer> r = new RingBuffer<>(4, DROP_OLDEST, SPIN, dropped::add);
+        for (int i = 0; i < 6; i++) { r.offer(i); }
+        assertEquals(List.of(0, 1), dropped);
+        assertEquals(2, r.drops.get());
+        assertEquals(4, r.peak.get());
+        for (int i = 2; i < 6; i++) { assertEquals(i, r.poll()); }
+    }
+
+    @Test
+    public void fail() throws Exception {
+        RingBuffer<Integer> r = new RingBuffer<>(2, FAIL, PARK);
+        r.offer(1);
+        r.offer(2);
+        assertThrows(IllegalStateException.class, () -> r.offer(3));
+        assertTrue(r.failed());
+        // queued elements still drain, then consumers see the failure
+        assertEquals(1, r.take());
+        assertEquals(2, r.take());
+        assertThrows(IllegalStateException.class, r::take);
+    }
+
+    @Test
+    public void callback() throws Exception {
+        RingBuffer<Integer> r = new RingBuffer<>(2, FAIL, PARK);
+        r.offer(1);
+        List<Integer> got = new ArrayList<>();
+        r.setCallback(got::add);
+        r.offer(2);
+        r.offer(3);
+        assertEquals(List.of(1, 2, 3), got);
+        assertEquals(0, r.size());
+    }
+
+    @Test
+    public void blockingProducer() throws Exception {
+        for (RingBuffer.Wait w : RingBuffer.Wait.values()) {
+            int n = 100_000;
+            RingBuffer<Integer> r = new RingBuffer<>(16, BLOCK, w);
+            AtomicLong sum = new AtomicLong();
+            List<Thread> consumers = new ArrayList<>();
+            for (int c = 0; c < 2; c++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        Integer v;
+                        while ((v = r.poll(200, TimeUnit.MILLISECONDS)) != null && v >= 0) {
+                            sum.addAndGet(v);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                t.start();
+                consumers.add(t);
+            }
+            for (int i = 0; i < n; i++) { r.offer(i); }
+            r.offer(-1);
+            r.offer(-1);
+            for (Thread t : consumers) { t.join(5000); }
+            assertEquals((long) n * (n - 1) / 2, sum.get(), w.toString());
+            assertEquals(0, r.drops.get());
+            assertTrue(r.peak.get() <= 16);
+        }
+    }
+}
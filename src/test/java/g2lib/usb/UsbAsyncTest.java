@@ -0,0 +1,236 @@
+package g2lib.usb;
+
+import g2lib.CRC16;
+import g2lib.Util;
+import org.junit.jupiter.api.Test;
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UsbAsyncTest {
+
+    /**
+     * Fake transfer layer: data queued per endpoint completes submitted
+     * transfers in {@link #handleEvents}.
+     */
+    static class FakeIo implements UsbIo {
+
+        class Fake implements Submission {
+            final byte endpoint;
+            final ByteBuffer buffer;
+            final Completion completion;
+            boolean submitted;
+            boolean cancelled;
+            boolean freed;
+
+            Fake(byte endpoint, ByteBuffer buffer, Completion completion) {
+                this.endpoint = endpoint;
+                this.buffer = buffer;
+                this.completion = completion;
+            }
+
+            @Override
+            public int submit() {
+                submitted = true;
+                submits++;
+                return 0;
+            }
+
+            @Override
+            public int cancel() {
+                cancelled = true;
+                return 0;
+            }
+
+            @Override
+            public void free() {
+                freed = true;
+            }
+        }
+
+        final List<Fake> transfers = new ArrayList<>();
+        final ArrayDeque<byte[]> interrupts = new ArrayDeque<>();
+        final ArrayDeque<byte[]> bulks = new ArrayDeque<>();
+        int submits;
+        volatile boolean gone;
+
+        @Override
+        public Submission transfer(byte endpoint, byte type, ByteBuffer buffer, long timeout, Completion completion) {
+            Fake f = new Fake(endpoint, buffer, completion);
+            transfers.add(f);
+            return f;
+        }
+
+        @Override
+        public int handleEvents(long timeoutMicros) {
+            for (Fake f : new ArrayList<>(transfers)) {
+                if (!f.submitted) { continue; }
+                if (f.cancelled) {
+                    f.submitted = false;
+                    f.completion.done(LibUsb.TRANSFER_CANCELLED, 0);
+                    continue;
+                }
+                if (gone) {
+                    f.submitted = false;
+                    f.completion.done(LibUsb.TRANSFER_NO_DEVICE, 0);
+                    continue;
+                }
+                byte[] data = (f.endpoint == (byte) 0x82 ? bulks : interrupts).poll();
+                if (data != null) {
+                    f.submitted = false;
+                    f.buffer.put(0, data);
+                    f.completion.done(LibUsb.TRANSFER_COMPLETED, data.length);
+                }
+            }
+            return 0;
+        }
+
+        long inFlight() {
+            return transfers.stream().filter(f -> f.submitted).count();
+        }
+    }
+
+    static byte[] embedded(int... data) {
+        byte[] b = new byte[UsbAsync.INTERRUPT_SIZE];
+        int dil = data.length + 3;
+        b[0] = (byte) ((dil << 4) | 2);
+        for (int i = 0; i < data.length; i++) {
+            b[i + 1] = (byte) data[i];
+        }
+        int crc = CRC16.crc16(ByteBuffer.wrap(b), 1, data.length);
+        b[dil - 2] = (byte) (crc >> 8);
+        b[dil - 1] = (byte) crc;
+        return b;
+    }
+
+    static byte[] extended(int size) {
+        byte[] b = new byte[UsbAsync.INTERRUPT_SIZE];
+        b[0] = 1;
+        b[1] = (byte) (size >> 8);
+        b[2] = (byte) size;
+        return b;
+    }
+
+    static byte[] bulk(int... data) {
+        byte[] b = Util.asBytes(data);
+        byte[] r = new byte[b.length + 2];
+        System.arraycopy(b, 0, r, 0, b.length);
+        int crc = CRC16.crc16(ByteBuffer.wrap(b), 0, b.length);
+        r[b.length] = (byte) (crc >> 8);
+        r[b.length + 1] = (byte) crc;
+        return r;
+    }
+
+    @Test
+    public void embeddedAndExtended() {
+        FakeIo io = new FakeIo();
+        List<UsbMessage> recd = new ArrayList<>();
+        BufferPool pool = new BufferPool();
+        UsbAsync async = new UsbAsync(io, pool, 2, 2, recd::add);
+        async.start();
+        assertEquals(4, io.inFlight());
+        assertEquals(4, async.inFlight.get());
+
+        io.interrupts.add(embedded(0x62, 0x01));
+        io.interrupts.add(extended(6));
+        async.handleEvents(0);
+        // extended interrupt waits for its bulk data
+        assertEquals(1, recd.size());
+        io.interrupts.add(embedded(0x72, 0x01));
+        async.handleEvents(0);
+        assertEquals(1, recd.size());
+
+        io.bulks.add(bulk(0x01, 0x0c, 0x00, 0x03));
+        async.handleEvents(0);
+        assertEquals(3, recd.size());
+        assertFalse(recd.get(0).extended());
+        assertTrue(recd.get(0).test(1, 0x62, 0x01));
+        assertTrue(recd.get(1).extended());
+        assertEquals(6, recd.get(1).size());
+        assertTrue(recd.get(1).head(0x01, 0x0c, 0x00, 0x03));
+        assertFalse(recd.get(2).extended());
+        assertTrue(recd.get(2).test(1, 0x72, 0x01));
+
+        // every completed transfer was resubmitted
+        assertEquals(4, io.inFlight());
+        assertEquals(4, async.inFlight.get());
+        assertEquals(4, async.completed.get());
+        assertEquals(8, io.submits);
+        assertEquals(0, async.errors.get());
+
+        recd.forEach(UsbMessage::release);
+        assertEquals(0, pool.outstanding.get());
+        async.stop(1000);
+        assertEquals(0, pool.outstanding.get());
+    }
+
+    @Test
+    public void bulkBeforeInterrupt() {
+        FakeIo io = new FakeIo();
+        List<UsbMessage> recd = new ArrayList<>();
+        UsbAsync async = new UsbAsync(io, 1, 1, recd::add);
+        async.start();
+        io.bulks.add(bulk(0x01, 0x09, 0x00, 0x21));
+        async.handleEvents(0);
+        assertEquals(0, recd.size());
+        io.interrupts.add(extended(6));
+        async.handleEvents(0);
+        assertEquals(1, recd.size());
+        assertTrue(recd.getFirst().head(0x01, 0x09, 0x00, 0x21));
+    }
+
+    @Test
+    public void stop() {
+        FakeIo io = new FakeIo();
+        UsbAsync async = new UsbAsync(io, 2, 1, m -> { });
+        async.start();
+        async.stop(1000);
+        assertFalse(async.running());
+        assertEquals(0, async.inFlight.get());
+        assertEquals(0, io.inFlight());
+        assertTrue(io.transfers.stream().allMatch(f -> f.cancelled && f.freed));
+    }
+
+    @Test
+    public void readThreadAsync() throws Exception {
+        FakeIo io = new FakeIo();
+        Usb usb = mock(Usb.class);
+        when(usb.asyncIo()).thenReturn(io);
+        when(usb.pool()).thenReturn(new BufferPool());
+        io.interrupts.add(embedded(0x80, 0x0a));
+        UsbReadThread rt = new UsbReadThread(usb, true);
+        rt.start();
+        UsbMessage m = rt.expect("Init response", msg -> msg.test(1, 0x80, 0x0a));
+        assertNotNull(m);
+        rt.go.set(false);
+        rt.thread.join(5000);
+        assertFalse(rt.thread.isAlive());
+        verify(usb, never()).readInterrupt(anyInt());
+        assertTrue(io.transfers.stream().allMatch(f -> f.freed));
+    }
+
+    @Test
+    public void readThreadAsyncGone() throws Exception {
+        FakeIo io = new FakeIo();
+        Usb usb = mock(Usb.class);
+        when(usb.asyncIo()).thenReturn(io);
+        when(usb.pool()).thenReturn(new BufferPool());
+        UsbReadThread rt = new UsbReadThread(usb, true);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        rt.onDisconnect(disconnected::countDown);
+        io.gone = true;
+        rt.start();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        rt.thread.join(5000);
+        assertFalse(rt.thread.isAlive());
+        assertFalse(rt.go.get());
+    }
+}
@@ -0,0 +1,33 @@
+package g2lib.usb;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UsbReadThreadTest {
+
+    @Test
+    public void unclaimedDoesNotStall() throws Exception {
+        Usb usb = new Usb(new G2Emulator(Path.of("data")));
+        UsbReadThread readThread = new UsbReadThread(usb);
+        readThread.start();
+        try {
+            int n = readThread.q.capacity() + 100;
+            for (int i = 0; i < n; i++) {
+                usb.sendSystemCmd("stop comm", G2Emulator.S_START_STOP_COM, 0x01);
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (readThread.recd.get() < n && System.currentTimeMillis() < deadline) { Thread.sleep(1); }
+            assertEquals(n, readThread.recd.get());
+            assertTrue(readThread.q.drops.get() >= 100, readThread.q.toString());
+            // still answering
+            usb.sendSystemCmd("stop comm", G2Emulator.S_START_STOP_COM, 0x01);
+            assertNotNull(readThread.expect("stop comm", 5000, 0x62, 0x01));
+        } finally {
+            readThread.go.set(false);
+            readThread.thread.join();
+        }
+    }
+}